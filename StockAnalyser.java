@@ -1,9 +1,27 @@
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.InputMismatchException;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 
@@ -15,12 +33,37 @@ import java.text.SimpleDateFormat;
  * Github ID: DemetriusChatterjee
  * Version: 1.0
  */
-public class StockAnalyser {
+public class StockAnalyser implements StockStore {
 
     private Node root;
+    private int size;
     private static final boolean RED = true;
     private static final boolean BLACK = false;
 
+    private final Map<Integer, List<Stock>> dateIndex = new HashMap<>();
+    private final SymbolDictionary symbols = new SymbolDictionary();
+    private Date lastIndexedDate;
+    private int lastIndexedDay;
+    private IndicatorEngine indicators;
+    private QueryCache queryCache;
+    private Metrics metrics;
+
+    /**
+     * Selects the CSV row parser used by readCSV and readCSVParallel.
+     * LEGACY splits each line and uses SimpleDateFormat, FAST parses the raw bytes and falls back
+     * to the legacy parser for rows it cannot handle, and COMPARE runs both and reports mismatches.
+     */
+    public enum ParserMode { LEGACY, FAST, COMPARE }
+
+    private ParserMode parserMode = ParserMode.FAST;
+    private boolean reportSortTimes = true;
+    private final ConcurrentHashMap<String, String> symbolPool = new ConcurrentHashMap<>();
+    private static final double[] POW10 = new double[23];
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) POW10[i] = POW10[i - 1] * 10;
+    }
+
     /*
      * Class: Node
      * Description: This class is used to store the stock data in the Red-Black Tree.
@@ -28,14 +71,31 @@ public class StockAnalyser {
      * Github ID: DemetriusChatterjee
      * Version: 1.0
      */
-    private class Node {
+    private static class Node {
         Stock stock;
+        // The packed (symbol id, epoch day) key of the stock, see packKey
+        long key;
         Node left, right;
         boolean color;
+        // Aggregates over the subtree rooted at this node
+        int count;
+        long sumVolume;
+        double minOpen;
+        double minLow;
+        double maxHigh;
+        // The number of nodes on the longest path down from this node, kept for the height gauge
+        short height;
         
-        Node(Stock stock) {
+        Node(Stock stock, long key) {
             this.stock = stock;
+            this.key = key;
             this.color = RED;
+            this.count = 1;
+            this.sumVolume = stock.volume;
+            this.minOpen = stock.open;
+            this.minLow = stock.low;
+            this.maxHigh = stock.high;
+            this.height = 1;
         }
     }
 
@@ -46,7 +106,7 @@ public class StockAnalyser {
      * Github ID: DemetriusChatterjee
      * Version: 1.0
      */
-    public class Stock {
+    public static class Stock {
         String name;
         double price;
         double open;
@@ -70,6 +130,60 @@ public class StockAnalyser {
         }
     }
 
+    /*
+     * Class: StockStats
+     * Description: This class is used to hold the summary statistics of a stock symbol.
+     * Author: Demetrius Chatterjee
+     * Github ID: DemetriusChatterjee
+     * Version: 1.0
+     */
+    public static class StockStats {
+        int count;
+        long totalVolume;
+        double minOpen = Double.MAX_VALUE;
+        double minLow = Double.MAX_VALUE;
+        double maxHigh = -Double.MAX_VALUE;
+
+        /**
+         * Adds a bar to the statistics.
+         * @param open The opening price
+         * @param high The high price
+         * @param low The low price
+         * @param volume The volume
+         */
+        void add(double open, double high, double low, long volume) {
+            minOpen = Math.min(minOpen, open);
+            minLow = Math.min(minLow, low);
+            maxHigh = Math.max(maxHigh, high);
+            totalVolume += volume;
+            count++;
+        }
+
+        /**
+         * Adds a group of bars that have already been aggregated.
+         * @param count The number of bars
+         * @param volume The total volume of the bars
+         * @param open The minimum opening price of the bars
+         * @param low The minimum low price of the bars
+         * @param high The maximum high price of the bars
+         */
+        void merge(int count, long volume, double open, double low, double high) {
+            minOpen = Math.min(minOpen, open);
+            minLow = Math.min(minLow, low);
+            maxHigh = Math.max(maxHigh, high);
+            totalVolume += volume;
+            this.count += count;
+        }
+
+        /**
+         * Gets the average volume of the bars in the statistics.
+         * @return The average volume, or 0 if there are no bars
+         */
+        public double averageVolume() {
+            return count > 0 ? totalVolume / (double) count : 0;
+        }
+    }
+
     /**
      * Comparator for sorting stocks by volume.
      * Author: Demetrius Chatterjee
@@ -96,6 +210,235 @@ public class StockAnalyser {
         }
     }
 
+    /*
+     * Class: TopK
+     * Description: This class is used to select the first k stocks in comparator order with a
+     *              bounded heap, in O(N log k) time and O(k) memory. Stocks that compare equal keep
+     *              the order in which they were offered, so the result matches a stable sort.
+     * Author: Demetrius Chatterjee
+     * Github ID: DemetriusChatterjee
+     * Version: 1.0
+     */
+    public static class TopK implements Consumer<Stock> {
+        private final int k;
+        private final Comparator<Stock> comparator;
+        private Stock[] heap;
+        private long[] order;
+        private int size;
+        private long offered;
+
+        /**
+         * Creates a selection. The heap starts small and grows as stocks are offered, so a large k
+         * costs memory only for the stocks actually seen.
+         * @param k The number of stocks to select
+         * @param comparator The comparator to rank by
+         * @throws IllegalArgumentException if k is negative
+         */
+        public TopK(int k, Comparator<Stock> comparator) {
+            if (k < 0) throw new IllegalArgumentException("k must not be negative: " + k);
+            this.k = k;
+            this.comparator = comparator;
+            this.heap = new Stock[Math.min(k, 16)];
+            this.order = new long[heap.length];
+        }
+
+        /**
+         * Offers a stock to the selection.
+         * @param stock The stock to offer
+         */
+        @Override
+        public void accept(Stock stock) {
+            offer(stock, offered++);
+        }
+
+        /**
+         * Offers a stock with an explicit position used to break ties.
+         * @param stock The stock to offer
+         * @param position The position of the stock in the input
+         */
+        private void offer(Stock stock, long position) {
+            if (k == 0) return;
+            if (size < k) {
+                if (size == heap.length) {
+                    int capacity = (int) Math.min(k, 2L * size);
+                    heap = java.util.Arrays.copyOf(heap, capacity);
+                    order = java.util.Arrays.copyOf(order, capacity);
+                }
+                heap[size] = stock;
+                order[size] = position;
+                siftUp(size++);
+            } else if (compare(stock, position, 0) < 0) {
+                heap[0] = stock;
+                order[0] = position;
+                siftDown(0);
+            }
+        }
+
+        /**
+         * Compares a candidate to a heap entry, breaking ties by input position.
+         * @param stock The candidate stock
+         * @param position The position of the candidate
+         * @param i The index of the heap entry
+         * @return The comparison result
+         */
+        private int compare(Stock stock, long position, int i) {
+            int cmp = comparator.compare(stock, heap[i]);
+            return cmp != 0 ? cmp : Long.compare(position, order[i]);
+        }
+
+        /**
+         * Moves an entry up the heap until its parent ranks after it.
+         * @param i The index of the entry
+         */
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (compare(heap[i], order[i], parent) <= 0) return;
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        /**
+         * Moves an entry down the heap until both children rank before it.
+         * @param i The index of the entry
+         */
+        private void siftDown(int i) {
+            while (true) {
+                int worst = i;
+                for (int child = 2 * i + 1; child <= 2 * i + 2 && child < size; child++)
+                    if (compare(heap[child], order[child], worst) > 0) worst = child;
+                if (worst == i) return;
+                swap(i, worst);
+                i = worst;
+            }
+        }
+
+        /**
+         * Swaps two heap entries.
+         * @param i The first index
+         * @param j The second index
+         */
+        private void swap(int i, int j) {
+            Stock stock = heap[i];
+            heap[i] = heap[j];
+            heap[j] = stock;
+            long position = order[i];
+            order[i] = order[j];
+            order[j] = position;
+        }
+
+        /**
+         * Gets the selected stocks.
+         * @return Up to k stocks in comparator order
+         */
+        public List<Stock> result() {
+            Integer[] indexes = new Integer[size];
+            for (int i = 0; i < size; i++) indexes[i] = i;
+            java.util.Arrays.sort(indexes, (a, b) -> {
+                int cmp = comparator.compare(heap[a], heap[b]);
+                return cmp != 0 ? cmp : Long.compare(order[a], order[b]);
+            });
+            List<Stock> stocks = new ArrayList<>(size);
+            for (int i : indexes) stocks.add(heap[i]);
+            return stocks;
+        }
+    }
+
+    /**
+     * Selects the first k stocks of a list in comparator order.
+     * @param stocks The stocks to select from
+     * @param k The number of stocks to select
+     * @param comparator The comparator to rank by, e.g. VolumeComparator for the highest volumes
+     * @return Up to k stocks in comparator order
+     */
+    public static List<Stock> topK(List<Stock> stocks, int k, Comparator<Stock> comparator) {
+        TopK topK = new TopK(k, comparator);
+        for (Stock stock : stocks) topK.accept(stock);
+        return topK.result();
+    }
+
+    /**
+     * Selects the first k stocks of a list in comparator order, splitting the list across all cores.
+     * Each part keeps its own bounded heap and the candidates are merged at the end.
+     * @param stocks The stocks to select from
+     * @param k The number of stocks to select
+     * @param comparator The comparator to rank by
+     * @return Up to k stocks in comparator order
+     */
+    public static List<Stock> topKParallel(List<Stock> stocks, int k, Comparator<Stock> comparator) {
+        int parts = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), stocks.size() / 10_000));
+        if (parts == 1) return topK(stocks, k, comparator);
+
+        List<TopK> partials = java.util.stream.IntStream.range(0, parts).parallel().mapToObj(part -> {
+            TopK topK = new TopK(k, comparator);
+            int from = (int) ((long) stocks.size() * part / parts);
+            int to = (int) ((long) stocks.size() * (part + 1) / parts);
+            for (int i = from; i < to; i++) topK.offer(stocks.get(i), i);
+            return topK;
+        }).collect(java.util.stream.Collectors.toList());
+
+        TopK merged = new TopK(k, comparator);
+        for (TopK partial : partials)
+            for (int i = 0; i < partial.size; i++) merged.offer(partial.heap[i], partial.order[i]);
+        return merged.result();
+    }
+
+    /**
+     * Selects the first k stocks in the tree in comparator order, splitting the tree into subtrees
+     * that are scanned on all cores without copying it. Each subtree feeds its own bounded heap
+     * through forEachStock with the inorder positions taken from the subtree counts, so ties come
+     * out in symbol and date order like topK.
+     * @param k The number of stocks to select
+     * @param comparator The comparator to rank by
+     * @return Up to k stocks in comparator order
+     */
+    @Override
+    public List<Stock> topKParallel(int k, Comparator<Stock> comparator) {
+        int parts = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), size() / 10_000));
+        if (parts == 1) return topK(k, comparator);
+
+        TopK merged = new TopK(k, comparator);
+        List<Node> subtrees = new ArrayList<>();
+        List<Long> firsts = new ArrayList<>();
+        int depth = 32 - Integer.numberOfLeadingZeros(parts - 1) + 1;
+        splitSubtrees(root, 0, depth, subtrees, firsts, merged);
+
+        List<TopK> partials = java.util.stream.IntStream.range(0, subtrees.size()).parallel().mapToObj(part -> {
+            TopK topK = new TopK(k, comparator);
+            long[] position = { firsts.get(part) };
+            forEachStock(subtrees.get(part), stock -> topK.offer(stock, position[0]++));
+            return topK;
+        }).collect(java.util.stream.Collectors.toList());
+
+        for (TopK partial : partials)
+            for (int i = 0; i < partial.size; i++) merged.offer(partial.heap[i], partial.order[i]);
+        return merged.result();
+    }
+
+    /**
+     * Cuts a subtree at a given depth. The nodes above the cut are offered to a selection
+     * directly and the subtrees below it are collected with the inorder position of their first stock.
+     * @param x The root node of the subtree
+     * @param first The inorder position of the subtree's first stock
+     * @param depth The number of levels left above the cut
+     * @param subtrees The list to add the subtrees below the cut to
+     * @param firsts The list to add the position of each subtree's first stock to
+     * @param selection The selection to offer the nodes above the cut to
+     */
+    private void splitSubtrees(Node x, long first, int depth, List<Node> subtrees, List<Long> firsts, TopK selection) {
+        if (x == null) return;
+        if (depth == 0) {
+            subtrees.add(x);
+            firsts.add(first);
+            return;
+        }
+        long position = first + (x.left != null ? x.left.count : 0);
+        selection.offer(x.stock, position);
+        splitSubtrees(x.left, first, depth - 1, subtrees, firsts, selection);
+        splitSubtrees(x.right, position + 1, depth - 1, subtrees, firsts, selection);
+    }
+
     /**
      * Checks if a node is red.
      * @param x The node to check
@@ -112,11 +455,14 @@ public class StockAnalyser {
      * @return The new root node after rotation
      */
     private Node rotateLeft(Node h) {
+        if (metrics != null) metrics.rotations.increment();
         Node x = h.right;
         h.right = x.left;
         x.left = h;
         x.color = h.color;
         h.color = RED;
+        update(h);
+        update(x);
         return x;
     }
 
@@ -126,22 +472,57 @@ public class StockAnalyser {
      * @return The new root node after rotation
      */
     private Node rotateRight(Node h) {
+        if (metrics != null) metrics.rotations.increment();
         Node x = h.left;
         h.left = x.right;
         x.right = h;
         x.color = h.color;
         h.color = RED;
+        update(h);
+        update(x);
         return x;
     }
 
     /**
-     * Flips the colors of a node and its two children.
+     * Recomputes the subtree aggregates of a node from its stock and its children.
+     * Color flips do not change the shape of the tree, so only rotations and inserts need this.
+     * @param h The node to update
+     */
+    private void update(Node h) {
+        h.count = 1;
+        h.sumVolume = h.stock.volume;
+        h.minOpen = h.stock.open;
+        h.minLow = h.stock.low;
+        h.maxHigh = h.stock.high;
+        h.height = 1;
+        if (h.left != null) absorb(h, h.left);
+        if (h.right != null) absorb(h, h.right);
+    }
+
+    /**
+     * Adds the aggregates of a child subtree to a node.
+     * @param h The node to update
+     * @param child One of its children
+     */
+    private void absorb(Node h, Node child) {
+        h.count += child.count;
+        h.sumVolume += child.sumVolume;
+        h.minOpen = Math.min(h.minOpen, child.minOpen);
+        h.minLow = Math.min(h.minLow, child.minLow);
+        h.maxHigh = Math.max(h.maxHigh, child.maxHigh);
+        h.height = (short) Math.max(h.height, child.height + 1);
+    }
+
+    /**
+     * Flips the colors of a node and its two children. Inserts split a 4-node with it and deletes
+     * use it to merge a node with its children.
      * @param h The parent node
      */
     private void flipColors(Node h) {
-        h.color = RED;
-        h.left.color = BLACK;
-        h.right.color = BLACK;
+        if (metrics != null) metrics.colorFlips.increment();
+        h.color = !h.color;
+        h.left.color = !h.left.color;
+        h.right.color = !h.right.color;
     }
 
     /**
@@ -149,406 +530,6964 @@ public class StockAnalyser {
      * @param stock The stock to insert
      */
     public void insert(Stock stock) {
-        root = insert(root, stock);
+        long startTime = metrics != null ? metrics.start(Metrics.Operation.INSERT) : 0;
+        int before = size;
+        root = insert(root, stock, keyOf(stock));
         root.color = BLACK;
+        if (size != before) onInserted(stock);
+        if (metrics != null) metrics.record(Metrics.Operation.INSERT, startTime);
     }
 
-    /*
-     * Class: StockKey
-     * Description: This class is used to store the stock data in the Red-Black Tree.
-     * Author: Demetrius Chatterjee
-     * Github ID: DemetriusChatterjee
-     * Version: 1.0
+    /**
+     * Packs a symbol id and an epoch day into one key whose signed order is symbol order, then date order.
+     * @param symbolId The id of the symbol in the dictionary
+     * @param epochDay The epoch day
+     * @return The packed key
      */
-    private class StockKey implements Comparable<StockKey> {
-        String symbol;
-        Date date;
-        
-        public StockKey(String symbol, Date date) {
-            this.symbol = symbol;
-            this.date = date;
-        }
-        
-        /**
-         * Compares two StockKey objects.
-         * @param other The StockKey to compare to
-         * @return The comparison result
-         */
-        @Override
-        public int compareTo(StockKey other) {
-            int symbolCompare = this.symbol.compareTo(other.symbol);
-            if (symbolCompare != 0) return symbolCompare;
-            return this.date.compareTo(other.date);
-        }
+    static long packKey(int symbolId, int epochDay) {
+        return (long) symbolId << 32 | (epochDay ^ 0x80000000) & 0xFFFFFFFFL;
     }
 
     /**
-     * Inserts a new stock into the Red-Black tree.
-     * @param h The root node of the tree
-     * @param stock The stock to insert
-     * @return The new root node after insertion
+     * Gets the key of a stock that is about to be inserted, adding its symbol to the dictionary if
+     * it is new. The stock's name is replaced with the dictionary's copy, so every row of a symbol
+     * shares one String.
+     * @param stock The stock
+     * @return The packed key
      */
-    private Node insert(Node h, Stock stock) {
-        if (h == null) return new Node(stock);
-
-        StockKey newKey = new StockKey(stock.name, stock.date);
-        StockKey existingKey = new StockKey(h.stock.name, h.stock.date);
-        
-        int cmp = newKey.compareTo(existingKey);
-        if (cmp < 0) h.left = insert(h.left, stock);
-        else if (cmp > 0) h.right = insert(h.right, stock);
-
-        if (isRed(h.right) && !isRed(h.left)) h = rotateLeft(h);
-        if (isRed(h.left) && isRed(h.left.left)) h = rotateRight(h);
-        if (isRed(h.left) && isRed(h.right)) flipColors(h);
-
-        return h;
+    private long keyOf(Stock stock) {
+        SymbolDictionary.Symbol symbol = symbols.get(stock.name);
+        if (symbol == null) {
+            int generation = symbols.generation();
+            symbol = symbols.add(stock.name);
+            if (symbols.generation() != generation) rekey(root);
+        }
+        stock.name = symbol.name;
+        return packKey(symbol.id, insertDay(stock.date));
     }
 
     /**
-     * Searches for a stock by symbol and date.
-     * @param symbol The stock symbol to search for
-     * @param date The date to search for
-     * @return The found Stock object, or null if not found
+     * Gets the epoch day of a stock being inserted.
+     * @param date The date of the stock
+     * @return The epoch day
      */
-    public Stock search(String symbol, Date date) {
-        return search(root, symbol, date);
+    private int insertDay(Date date) {
+        // Rows parsed by CsvRowParser share one Date per day, so consecutive rows usually hit this cache
+        if (date != lastIndexedDate) {
+            lastIndexedDate = date;
+            lastIndexedDay = toEpochDay(date);
+        }
+        return lastIndexedDay;
     }
 
     /**
-     * Searches for a stock by symbol and date.
+     * Rewrites the symbol half of every key after the dictionary renumbered its ids.
+     * The order of the ids is unchanged, so the shape of the tree stays valid.
      * @param x The root node of the tree
-     * @param symbol The stock symbol to search for
-     * @param date The date to search for
-     * @return The found Stock object, or null if not found
      */
-    private Stock search(Node x, String symbol, Date date) {
-        while (x != null) {
-            int cmp = symbol.compareTo(x.stock.name);
-            if (cmp < 0) x = x.left;
-            else if (cmp > 0) x = x.right;
-            else {
-                if (x.stock.date.equals(date)) return x.stock;
-                x = x.right;
-            }
-        }
-        return null;
+    private void rekey(Node x) {
+        if (x == null) return;
+        x.key = (long) symbols.get(x.stock.name).id << 32 | x.key & 0xFFFFFFFFL;
+        rekey(x.left);
+        rekey(x.right);
     }
 
     /**
-     * Reads stock data from a CSV file and populates the tree.
-     * @param filename The path to the CSV file
-     * @throws RuntimeException if there's an error reading the file
+     * Gets the key bound for a symbol and an optional date.
+     * @param symbol The symbol in the dictionary
+     * @param date The date, or null
+     * @param unbounded The epoch day to use when the date is null
+     * @return The packed key
      */
-    public void readCSV(String filename) {
-        try {
-            java.io.BufferedReader reader = new java.io.BufferedReader(new java.io.FileReader(filename));
-            reader.readLine();
-            String line;
-            
-            while ((line = reader.readLine()) != null) {
-                try {
-                    String[] data = line.split(",");
-                    Date date = new SimpleDateFormat("yyyy-MM-dd").parse(data[0]);
-                    double open = Double.parseDouble(data[1]);
-                    double high = Double.parseDouble(data[2]);
-                    double low = Double.parseDouble(data[3]);
-                    double close = Double.parseDouble(data[4]);
-                    int volume = Integer.parseInt(data[5]);
-                    String name = data[6];
-                    
-                    Stock stock = new Stock(name, close, date, open, high, low, close, close, volume);
-                    insert(stock);
-                } catch (NumberFormatException e) {
-                    continue;
-                }
-            }
-            reader.close();
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to read CSV: " + e.getMessage());
-        }
+    private static long boundKey(SymbolDictionary.Symbol symbol, Date date, int unbounded) {
+        return packKey(symbol.id, date != null ? toEpochDay(date) : unbounded);
     }
 
     /**
-     * Returns a list of all stocks in the tree.
-     * @return List of all stocks
+     * Updates the secondary structures after a stock has been added to the tree.
+     * @param stock The stock that was added
      */
-    public List<Stock> getAllStocks() {
-        List<Stock> stocks = new ArrayList<>();
-        inorderTraversal(root, stocks);
-        return stocks;
+    private void onInserted(Stock stock) {
+        indexDate(stock);
+        if (indicators != null) indicators.onBar(stock);
+        if (queryCache != null) queryCache.invalidate(stock.name);
     }
 
     /**
-     * Performs an inorder traversal of the tree and adds the stocks to the list.
-     * @param x The root node of the tree
-     * @param stocks The list to add the stocks to
+     * Updates the secondary structures after a stock has replaced the bar with the same symbol and date.
+     * @param previous The stock that was replaced
+     * @param stock The stock that replaced it
      */
-    private void inorderTraversal(Node x, List<Stock> stocks) {
-        if (x == null) return;
-        inorderTraversal(x.left, stocks);
-        stocks.add(x.stock);
-        inorderTraversal(x.right, stocks);
+    private void onReplaced(Stock previous, Stock stock) {
+        List<Stock> stocks = dateIndex.get(insertDay(stock.date));
+        stocks.set(stocks.indexOf(previous), stock);
+        if (indicators != null) {
+            indicators.onBarRemoved(previous);
+            indicators.onBar(stock);
+        }
+        if (queryCache != null) queryCache.invalidate(stock.name);
     }
 
     /**
-     * Performs bubble sort on an array of stocks.
-     * @param arr The array to sort
-     * @param comparator The comparator to use for sorting
+     * Updates the secondary structures after a stock has been deleted from the tree.
+     * @param stock The stock that was deleted
      */
-    public void bubbleSort(Stock[] arr, Comparator<Stock> comparator) {
-        long startTime = System.nanoTime();
-        int n = arr.length;
-        for (int i = 0; i < n-1; i++)
-            for (int j = 0; j < n-i-1; j++)
-                if (comparator.compare(arr[j], arr[j+1]) < 0) {
-                    Stock temp = arr[j];
-                    arr[j] = arr[j+1];
-                    arr[j+1] = temp;
-                }
-        long endTime = System.nanoTime();
-        System.out.printf("Bubble Sort took %.3f milliseconds%n", (endTime - startTime) / 1_000_000.0);
+    private void onDeleted(Stock stock) {
+        int day = toEpochDay(stock.date);
+        List<Stock> stocks = dateIndex.get(day);
+        stocks.remove(stocks.indexOf(stock));
+        if (stocks.isEmpty()) dateIndex.remove(day);
+        if (indicators != null) indicators.onBarRemoved(stock);
+        if (queryCache != null) queryCache.invalidate(stock.name);
     }
 
     /**
-     * Performs selection sort on an array of stocks.
-     * @param arr The array to sort
-     * @param comparator The comparator to use for sorting
+     * Enables the streaming indicator engine, feeding it every stock already in the tree.
+     * The 5- and 20-day SMAs used by getPriceTrend are tracked from the start.
+     * @return The indicator engine
      */
-    public void selectionSort(Stock[] arr, Comparator<Stock> comparator) {
-        long startTime = System.nanoTime();
-        int n = arr.length;
-        for (int i = 0; i < n-1; i++) {
-            int maxIdx = i;
-            for (int j = i+1; j < n; j++)
-                if (comparator.compare(arr[j], arr[maxIdx]) > 0)
-                    maxIdx = j;
-            Stock temp = arr[maxIdx];
-            arr[maxIdx] = arr[i];
-            arr[i] = temp;
+    public IndicatorEngine enableIndicators() {
+        if (indicators == null) {
+            IndicatorEngine engine = new IndicatorEngine();
+            engine.track(IndicatorEngine.Indicator.SMA, 5);
+            engine.track(IndicatorEngine.Indicator.SMA, 20);
+            forEachStock(engine::onBar);
+            indicators = engine;
         }
-        long endTime = System.nanoTime();
-        System.out.printf("Selection Sort took %.3f milliseconds%n", (endTime - startTime) / 1_000_000.0);
+        return indicators;
     }
 
     /**
-     * Performs merge sort on an array of stocks.
-     * @param arr The array to sort
-     * @param comparator The comparator to use for sorting
+     * Enables the query result cache for calculateSMA, getPriceTrend and getAverageVolume.
+     * @param capacity The maximum number of cached results
+     * @return The query cache
      */
-    public void mergeSort(Stock[] arr, Comparator<Stock> comparator) {
-        long startTime = System.nanoTime();
-        mergeSort(arr, 0, arr.length - 1, comparator);
-        long endTime = System.nanoTime();
-        System.out.printf("Merge Sort took %.3f milliseconds%n", (endTime - startTime) / 1_000_000.0);
+    public QueryCache enableQueryCache(int capacity) {
+        if (queryCache == null) queryCache = new QueryCache(capacity);
+        return queryCache;
     }
 
     /**
-     * Performs the merge sort algorithm on an array of stocks.
-     * @param arr The array to sort
-     * @param left The left index of the array
-     * @param right The right index of the array
-     * @param comparator The comparator to use for sorting
+     * Gets the query result cache.
+     * @return The query cache, or null if it is not enabled
      */
-    private void mergeSort(Stock[] arr, int left, int right, Comparator<Stock> comparator) {
-        if (left < right) {
-            int mid = (left + right) / 2;
-            mergeSort(arr, left, mid, comparator);
-            mergeSort(arr, mid + 1, right, comparator);
-            merge(arr, left, mid, right, comparator);
-        }
+    public QueryCache queryCache() {
+        return queryCache;
     }
 
     /**
-     * Merges two halves of an array of stocks.
-     * @param arr The array to merge
-     * @param left The left index of the array
-     * @param mid The middle index of the array
-     * @param right The right index of the array
-     * @param comparator The comparator to use for sorting
+     * Enables metrics: every tree and query operation records its latency from now on, rotations
+     * and color flips are counted, and the node count and tree height are reported as gauges.
+     * @return The metrics
      */
-    private void merge(Stock[] arr, int left, int mid, int right, Comparator<Stock> comparator) {
-        Stock[] temp = new Stock[right - left + 1];
-        int i = left, j = mid + 1, k = 0;
-        
-        while (i <= mid && j <= right) {
-            if (comparator.compare(arr[i], arr[j]) >= 0)
-                temp[k++] = arr[i++];
-            else
-                temp[k++] = arr[j++];
+    public Metrics enableMetrics() {
+        if (metrics == null) {
+            Metrics enabled = new Metrics();
+            enabled.gauge("nodes", () -> size);
+            enabled.gauge("height", this::height);
+            metrics = enabled;
         }
-        
-        while (i <= mid) temp[k++] = arr[i++];
-        while (j <= right) temp[k++] = arr[j++]; 
-        
-        for (i = 0; i < temp.length; i++)
-            arr[left + i] = temp[i];
+        return metrics;
     }
 
     /**
-     * Performs quick sort on an array of stocks.
-     * @param arr The array to sort
-     * @param comparator The comparator to use for sorting
+     * Gets the metrics.
+     * @return The metrics, or null if they are not enabled
      */
-    public void quickSort(Stock[] arr, Comparator<Stock> comparator) {
-        long startTime = System.nanoTime();
-        quickSort(arr, 0, arr.length - 1, comparator);
-        long endTime = System.nanoTime();
-        System.out.printf("Quick Sort took %.3f milliseconds%n", (endTime - startTime) / 1_000_000.0);
+    public Metrics metrics() {
+        return metrics;
     }
 
     /**
-     * Performs the quick sort algorithm on an array of stocks.
-     * @param arr The array to sort
-     * @param low The left index of the array
+     * Gets the height of the tree, which every node keeps for its subtree, so the metrics reporter
+     * can read it in O(1) without walking the tree.
+     * @return The number of nodes on the longest path from the root to a leaf
+     */
+    public int height() {
+        Node x = root;
+        return x != null ? x.height : 0;
+    }
+
+    /**
+     * Gets the number of stocks in the tree.
+     * @return The number of stocks
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds a newly inserted stock to the date index, keeping each day's list ordered by symbol.
+     * @param stock The stock to index
+     */
+    private void indexDate(Stock stock) {
+        List<Stock> stocks = dateIndex.computeIfAbsent(insertDay(stock.date), day -> new ArrayList<>());
+        int i = stocks.size();
+        while (i > 0 && stocks.get(i - 1).name.compareTo(stock.name) > 0) i--;
+        stocks.add(i, stock);
+    }
+
+    /*
+     * Class: SymbolDictionary
+     * Description: This class is used to give every symbol an int id whose order is the symbol's
+     *              String order, so a (symbol id, day) key sorts like (symbol, date). Ids are spaced
+     *              apart so a new symbol normally gets an id between its neighbours; when there is no
+     *              room left, all ids are spread out again and the generation changes. Each symbol
+     *              also has a code, its arrival number, which never changes.
+     * Author: Demetrius Chatterjee
+     * Github ID: DemetriusChatterjee
+     * Version: 1.0
+     */
+    static class SymbolDictionary {
+        private static final int GAP = 1 << 16;
+        private final Map<String, Symbol> byName = new HashMap<>();
+        private final TreeMap<String, Symbol> ordered = new TreeMap<>();
+        private final List<Symbol> byCode = new ArrayList<>();
+        private int generation;
+
+        /*
+         * Class: Symbol
+         * Description: This class is used to store a symbol's shared name, its current id and its code.
+         * Author: Demetrius Chatterjee
+         * Github ID: DemetriusChatterjee
+         * Version: 1.0
+         */
+        static class Symbol {
+            final String name;
+            final int code;
+            int id;
+
+            Symbol(String name, int code, int id) {
+                this.name = name;
+                this.code = code;
+                this.id = id;
+            }
+        }
+
+        /**
+         * Looks up a symbol.
+         * @param name The symbol name
+         * @return The symbol, or null if it is not in the dictionary
+         */
+        Symbol get(String name) {
+            return byName.get(name);
+        }
+
+        /**
+         * Adds a symbol, renumbering every symbol if there is no free id between its neighbours.
+         * @param name The symbol name
+         * @return The new symbol
+         */
+        Symbol add(String name) {
+            Map.Entry<String, Symbol> lower = ordered.lowerEntry(name);
+            Map.Entry<String, Symbol> higher = ordered.higherEntry(name);
+            long lo = lower != null ? lower.getValue().id : (higher != null ? higher.getValue().id - 2L * GAP : -GAP);
+            long hi = higher != null ? higher.getValue().id : lo + 2L * GAP;
+            Symbol symbol = new Symbol(name, byCode.size(), (int) ((lo + hi) / 2));
+            ordered.put(name, symbol);
+            byName.put(name, symbol);
+            byCode.add(symbol);
+            if (hi - lo < 2 || lo + hi < 2L * Integer.MIN_VALUE + 2 || lo + hi > 2L * Integer.MAX_VALUE - 2) renumber();
+            return symbol;
+        }
+
+        /**
+         * Spreads the ids of all symbols evenly around 0, GAP apart when they fit.
+         */
+        private void renumber() {
+            long step = Math.min(GAP, (1L << 32) / (ordered.size() + 1));
+            long id = -step * (ordered.size() - 1) / 2;
+            for (Symbol symbol : ordered.values()) {
+                symbol.id = (int) id;
+                id += step;
+            }
+            generation++;
+        }
+
+        /**
+         * Looks up a symbol by its code.
+         * @param code The code
+         * @return The symbol
+         */
+        Symbol byCode(int code) {
+            return byCode.get(code);
+        }
+
+        /**
+         * Gets the symbols in name order.
+         * @return The symbols
+         */
+        Iterable<Symbol> ordered() {
+            return ordered.values();
+        }
+
+        /**
+         * Gets the number of times the ids have been renumbered.
+         * @return The generation
+         */
+        int generation() {
+            return generation;
+        }
+
+        /**
+         * Gets the number of symbols.
+         * @return The number of symbols
+         */
+        int size() {
+            return byName.size();
+        }
+    }
+
+    private static final java.util.TimeZone ZONE = java.util.TimeZone.getDefault();
+    static final Date MIN_DATE = new Date(Long.MIN_VALUE);
+    static final Date MAX_DATE = new Date(Long.MAX_VALUE);
+
+    /**
+     * Inserts a new stock into the Red-Black tree.
+     * @param h The root node of the tree
+     * @param stock The stock to insert
+     * @param key The packed key of the stock
+     * @return The new root node after insertion
+     */
+    private Node insert(Node h, Stock stock, long key) {
+        if (h == null) {
+            size++;
+            return new Node(stock, key);
+        }
+
+        if (key < h.key) h.left = insert(h.left, stock, key);
+        else if (key > h.key) h.right = insert(h.right, stock, key);
+        update(h);
+
+        if (isRed(h.right) && !isRed(h.left)) h = rotateLeft(h);
+        if (isRed(h.left) && isRed(h.left.left)) h = rotateRight(h);
+        if (isRed(h.left) && isRed(h.right)) flipColors(h);
+
+        return h;
+    }
+
+    /**
+     * Inserts many stocks at once, building the tree bottom-up instead of inserting them one by one.
+     * Input that is already sorted by symbol and date, like most historical CSVs, is loaded in O(N)
+     * with no rotations; input made of a few sorted runs is merged first. The stocks already in the
+     * tree are merged in, and as with insert a stock whose symbol and date are already present,
+     * in the tree or earlier in the list, is ignored.
+     * @param stocks The stocks to insert
+     */
+    public void bulkLoad(List<Stock> stocks) {
+        long startTime = metrics != null ? metrics.start(Metrics.Operation.BULK_LOAD) : 0;
+        // Intern every new symbol first, so a renumbering cannot stale the keys computed below
+        for (Stock stock : stocks) if (symbols.get(stock.name) == null) keyOf(stock);
+
+        Node[] loaded = new Node[stocks.size()];
+        boolean sorted = true;
+        for (int i = 0; i < loaded.length; i++) {
+            Stock stock = stocks.get(i);
+            loaded[i] = new Node(stock, keyOf(stock));
+            if (i > 0 && loaded[i].key < loaded[i - 1].key) sorted = false;
+        }
+        // A stable merge sort, so the first of two stocks with the same key is still the one kept
+        if (!sorted) java.util.Arrays.sort(loaded, Comparator.comparingLong(node -> node.key));
+
+        Node[] existing = new Node[size];
+        int[] count = new int[1];
+        forEachNode(root, node -> existing[count[0]++] = node);
+
+        // Merge the two sorted arrays, keeping the existing node on a tie and skipping later duplicates
+        Node[] nodes = new Node[existing.length + loaded.length];
+        List<Stock> added = new ArrayList<>();
+        int n = 0;
+        for (int i = 0, j = 0; i < existing.length || j < loaded.length; ) {
+            Node next;
+            if (j == loaded.length || i < existing.length && existing[i].key <= loaded[j].key) next = existing[i++];
+            else {
+                next = loaded[j++];
+                if (n > 0 && nodes[n - 1].key == next.key) continue;
+                added.add(next.stock);
+            }
+            nodes[n++] = next;
+        }
+
+        root = build(nodes, 0, n, 31 - Integer.numberOfLeadingZeros(n + 1));
+        if (root != null) root.color = BLACK;
+        size = n;
+        for (Stock stock : added) onInserted(stock);
+        if (metrics != null) metrics.record(Metrics.Operation.BULK_LOAD, startTime);
+    }
+
+    /**
+     * Passes the nodes of a subtree to an action in key order.
+     * @param x The root node of the subtree
+     * @param action The action to run for each node
+     */
+    private static void forEachNode(Node x, Consumer<Node> action) {
+        if (x == null) return;
+        forEachNode(x.left, action);
+        action.accept(x);
+        forEachNode(x.right, action);
+    }
+
+    /**
+     * Gets the number of nodes in the largest LLRB tree with a given black height, 3^h - 1.
+     * @param blackHeight The number of black nodes on every path from the root to a leaf
+     * @return The maximum number of nodes
+     */
+    private static long maxNodes(int blackHeight) {
+        long max = 1;
+        for (int i = 0; i < blackHeight; i++) max *= 3;
+        return max - 1;
+    }
+
+    /**
+     * Links sorted nodes into an LLRB subtree with a given black height. A tree with black height h
+     * holds between 2^h - 1 and 3^h - 1 nodes, so the root is a 2-node when the rest fits in two
+     * subtrees of height h - 1 and otherwise a 3-node, a black node with a red left child, over three
+     * subtrees. The nodes are split as evenly as possible, which keeps every subtree within its bounds.
+     * @param nodes The nodes in key order
+     * @param from The index of the first node of the subtree
+     * @param n The number of nodes in the subtree
+     * @param blackHeight The black height of the subtree
+     * @return The root of the subtree, colored black
+     */
+    private Node build(Node[] nodes, int from, int n, int blackHeight) {
+        if (n == 0) return null;
+        if (n - 1 <= 2 * maxNodes(blackHeight - 1)) {
+            int left = (n - 1) / 2;
+            Node h = nodes[from + left];
+            h.left = build(nodes, from, left, blackHeight - 1);
+            h.right = build(nodes, from + left + 1, n - 1 - left, blackHeight - 1);
+            h.color = BLACK;
+            update(h);
+            return h;
+        }
+
+        int first = (n - 2) / 3;
+        int second = (n - 2 - first) / 2;
+        int third = n - 2 - first - second;
+        Node x = nodes[from + first];
+        Node h = nodes[from + first + 1 + second];
+        x.left = build(nodes, from, first, blackHeight - 1);
+        x.right = build(nodes, from + first + 1, second, blackHeight - 1);
+        x.color = RED;
+        update(x);
+        h.left = x;
+        h.right = build(nodes, from + first + second + 2, third, blackHeight - 1);
+        h.color = BLACK;
+        update(h);
+        return h;
+    }
+
+    /**
+     * Inserts a stock, replacing the stock with the same symbol and date if there is one.
+     * This is how a corrected bar is applied, since insert ignores duplicates.
+     * @param stock The stock to insert
+     * @return The stock that was replaced, or null if the stock was new
+     */
+    public Stock upsert(Stock stock) {
+        long startTime = metrics != null ? metrics.start(Metrics.Operation.UPSERT) : 0;
+        try {
+            long key = keyOf(stock);
+            Stock previous = replace(root, key, stock);
+            if (previous != null) {
+                onReplaced(previous, stock);
+                return previous;
+            }
+            root = insert(root, stock, key);
+            root.color = BLACK;
+            onInserted(stock);
+            return null;
+        } finally {
+            if (metrics != null) metrics.record(Metrics.Operation.UPSERT, startTime);
+        }
+    }
+
+    /**
+     * Replaces the stock with a given key and updates the aggregates on the path to it.
+     * @param h The root node of the tree
+     * @param key The packed key of the stock
+     * @param stock The new stock
+     * @return The stock that was replaced, or null if there is no stock with the key
+     */
+    private Stock replace(Node h, long key, Stock stock) {
+        if (h == null) return null;
+        Stock previous;
+        if (key < h.key) previous = replace(h.left, key, stock);
+        else if (key > h.key) previous = replace(h.right, key, stock);
+        else {
+            previous = h.stock;
+            h.stock = stock;
+        }
+        if (previous != null) update(h);
+        return previous;
+    }
+
+    /**
+     * Deletes the stock of a symbol on a date.
+     * @param symbol The stock symbol
+     * @param date The date
+     * @return The deleted stock, or null if there is no stock for the symbol and date
+     */
+    public Stock delete(String symbol, Date date) {
+        long startTime = metrics != null ? metrics.start(Metrics.Operation.DELETE) : 0;
+        try {
+            SymbolDictionary.Symbol entry = symbols.get(symbol);
+            if (entry == null) return null;
+            long key = packKey(entry.id, toEpochDay(date));
+            Stock stock = search(root, key);
+            if (stock == null) return null;
+
+            if (!isRed(root.left) && !isRed(root.right)) root.color = RED;
+            root = delete(root, key);
+            if (root != null) root.color = BLACK;
+            size--;
+            onDeleted(stock);
+            return stock;
+        } finally {
+            if (metrics != null) metrics.record(Metrics.Operation.DELETE, startTime);
+        }
+    }
+
+    /**
+     * Deletes the node with a given key, which must be in the tree. On the way down a red link is
+     * pushed ahead of the search so the node removed at the bottom is never a lone black node.
+     * @param h The root node of the tree
+     * @param key The packed key of the stock
+     * @return The new root node after deletion
+     */
+    private Node delete(Node h, long key) {
+        if (key < h.key) {
+            if (!isRed(h.left) && !isRed(h.left.left)) h = moveRedLeft(h);
+            h.left = delete(h.left, key);
+        } else {
+            if (isRed(h.left)) h = rotateRight(h);
+            if (key == h.key && h.right == null) return null;
+            if (!isRed(h.right) && !isRed(h.right.left)) h = moveRedRight(h);
+            if (key == h.key) {
+                Node successor = h.right;
+                while (successor.left != null) successor = successor.left;
+                h.stock = successor.stock;
+                h.key = successor.key;
+                h.right = deleteMin(h.right);
+            } else {
+                h.right = delete(h.right, key);
+            }
+        }
+        return balance(h);
+    }
+
+    /**
+     * Deletes the node with the smallest key.
+     * @param h The root node of the subtree
+     * @return The new root node after deletion
+     */
+    private Node deleteMin(Node h) {
+        if (h.left == null) return null;
+        if (!isRed(h.left) && !isRed(h.left.left)) h = moveRedLeft(h);
+        h.left = deleteMin(h.left);
+        return balance(h);
+    }
+
+    /**
+     * Makes the left child or one of its children red, borrowing from the right sibling if it can.
+     * @param h A red node whose two children are black
+     * @return The new root of the subtree
+     */
+    private Node moveRedLeft(Node h) {
+        flipColors(h);
+        if (isRed(h.right.left)) {
+            h.right = rotateRight(h.right);
+            h = rotateLeft(h);
+            flipColors(h);
+        }
+        return h;
+    }
+
+    /**
+     * Makes the right child or one of its children red, borrowing from the left sibling if it can.
+     * @param h A red node whose two children are black
+     * @return The new root of the subtree
+     */
+    private Node moveRedRight(Node h) {
+        flipColors(h);
+        if (isRed(h.left.left)) {
+            h = rotateRight(h);
+            flipColors(h);
+        }
+        return h;
+    }
+
+    /**
+     * Restores the left-leaning invariants and the aggregates of a node on the way back up a delete.
+     * @param h The root of the subtree
+     * @return The new root of the subtree
+     */
+    private Node balance(Node h) {
+        if (isRed(h.right) && !isRed(h.left)) h = rotateLeft(h);
+        if (isRed(h.left) && isRed(h.left.left)) h = rotateRight(h);
+        if (isRed(h.left) && isRed(h.right)) flipColors(h);
+        update(h);
+        return h;
+    }
+
+    /**
+     * Checks the invariants of the tree: keys in order and matching their stocks, a black root, no
+     * red right links, no two red links in a row, the same number of black links on every path,
+     * correct subtree aggregates and a date index that holds exactly the stocks in the tree.
+     * @throws IllegalStateException if an invariant does not hold
+     */
+    public void validate() {
+        if (isRed(root)) throw new IllegalStateException("Root is red");
+        int[] blackHeight = { -1 };
+        validate(root, Long.MIN_VALUE, Long.MAX_VALUE, 0, blackHeight);
+        int count = root != null ? root.count : 0;
+        if (count != size) throw new IllegalStateException("Size is " + size + " but the tree holds " + count + " stocks");
+
+        int indexed = 0;
+        for (Map.Entry<Integer, List<Stock>> day : dateIndex.entrySet()) {
+            List<Stock> stocks = day.getValue();
+            for (int i = 0; i < stocks.size(); i++) {
+                Stock stock = stocks.get(i);
+                if (i > 0 && stocks.get(i - 1).name.compareTo(stock.name) >= 0)
+                    throw new IllegalStateException("Date index is out of symbol order on day " + day.getKey());
+                if (toEpochDay(stock.date) != day.getKey() || search(stock.name, stock.date) != stock)
+                    throw new IllegalStateException("Date index holds a stale " + stock.name + " bar on day " + day.getKey());
+            }
+            indexed += stocks.size();
+        }
+        if (indexed != size) throw new IllegalStateException("Date index holds " + indexed + " stocks but the tree holds " + size);
+    }
+
+    /**
+     * Checks the invariants of a subtree.
+     * @param x The root node of the subtree
+     * @param lo The smallest allowed key
+     * @param hi The largest allowed key
+     * @param blacks The number of black nodes above x
+     * @param blackHeight The black height of the first leaf reached, or -1 before one is reached
+     * @throws IllegalStateException if an invariant does not hold
+     */
+    private void validate(Node x, long lo, long hi, int blacks, int[] blackHeight) {
+        if (x == null) {
+            if (blackHeight[0] == -1) blackHeight[0] = blacks;
+            else if (blackHeight[0] != blacks) throw new IllegalStateException("Black height is " + blacks + " and " + blackHeight[0] + " on different paths");
+            return;
+        }
+        if (x.key < lo || x.key > hi) throw new IllegalStateException("Key of " + x.stock.name + " is out of order");
+        SymbolDictionary.Symbol entry = symbols.get(x.stock.name);
+        if (entry == null || x.key != packKey(entry.id, toEpochDay(x.stock.date)))
+            throw new IllegalStateException("Key of " + x.stock.name + " does not match its stock");
+        if (isRed(x.right)) throw new IllegalStateException("Right link of " + x.stock.name + " is red");
+        if (isRed(x) && isRed(x.left)) throw new IllegalStateException("Two red links in a row at " + x.stock.name);
+
+        validate(x.left, lo, x.key - 1, blacks + (isRed(x) ? 0 : 1), blackHeight);
+        validate(x.right, x.key + 1, hi, blacks + (isRed(x) ? 0 : 1), blackHeight);
+
+        Node expected = new Node(x.stock, x.key);
+        if (x.left != null) absorb(expected, x.left);
+        if (x.right != null) absorb(expected, x.right);
+        if (expected.count != x.count || expected.sumVolume != x.sumVolume || expected.minOpen != x.minOpen
+                || expected.minLow != x.minLow || expected.maxHigh != x.maxHigh || expected.height != x.height)
+            throw new IllegalStateException("Aggregates of " + x.stock.name + " are stale");
+    }
+
+    /**
+     * Searches for a stock by symbol and date.
+     * @param symbol The stock symbol to search for
+     * @param date The date to search for
+     * @return The found Stock object, or null if not found
+     */
+    public Stock search(String symbol, Date date) {
+        long startTime = metrics != null ? metrics.start(Metrics.Operation.SEARCH) : 0;
+        SymbolDictionary.Symbol entry = symbols.get(symbol);
+        Stock stock = entry != null ? search(root, packKey(entry.id, toEpochDay(date))) : null;
+        if (metrics != null) metrics.record(Metrics.Operation.SEARCH, startTime);
+        return stock;
+    }
+
+    /**
+     * Searches for a stock by its packed key.
+     * @param x The root node of the tree
+     * @param key The packed key to search for
+     * @return The found Stock object, or null if not found
+     */
+    private Stock search(Node x, long key) {
+        while (x != null) {
+            if (key < x.key) x = x.left;
+            else if (key > x.key) x = x.right;
+            else return x.stock;
+        }
+        return null;
+    }
+
+    /**
+     * Gets the stocks of a symbol within a date range, in date order.
+     * Only the nodes between the two bounds are visited.
+     * @param symbol The stock symbol
+     * @param fromDate The first date to include, or null for no lower bound
+     * @param toDate The last date to include, or null for no upper bound
+     * @return List of matching stocks
+     */
+    public List<Stock> range(String symbol, Date fromDate, Date toDate) {
+        List<Stock> stocks = new ArrayList<>();
+        forEachInRange(symbol, fromDate, toDate, stocks::add);
+        return stocks;
+    }
+
+    /**
+     * Passes the stocks of a symbol within a date range to an action, in date order.
+     * @param symbol The stock symbol
+     * @param fromDate The first date to include, or null for no lower bound
+     * @param toDate The last date to include, or null for no upper bound
+     * @param action The action to run for each stock
+     */
+    public void forEachInRange(String symbol, Date fromDate, Date toDate, Consumer<Stock> action) {
+        SymbolDictionary.Symbol entry = symbols.get(symbol);
+        if (entry != null) range(root, boundKey(entry, fromDate, Integer.MIN_VALUE), boundKey(entry, toDate, Integer.MAX_VALUE), action);
+    }
+
+    /**
+     * Passes the stocks between two keys to an action with an inorder traversal of the matching nodes.
+     * @param x The root node of the tree
+     * @param lo The lowest key to include
+     * @param hi The highest key to include
+     * @param action The action to run for each stock
+     */
+    private void range(Node x, long lo, long hi, Consumer<Stock> action) {
+        if (x == null) return;
+        if (lo < x.key) range(x.left, lo, hi, action);
+        if (lo <= x.key && hi >= x.key) action.accept(x.stock);
+        if (hi > x.key) range(x.right, lo, hi, action);
+    }
+
+    /**
+     * Gets the statistics of a symbol's stocks within a date range from the subtree aggregates.
+     * Whole subtrees inside the range are added in one step, so the cost is O(log N) however wide
+     * the range is.
+     * @param symbol The stock symbol
+     * @param fromDate The first date to include, or null for no lower bound
+     * @param toDate The last date to include, or null for no upper bound
+     * @return The statistics, with a count of 0 if no stock is in the range
+     */
+    public StockStats rangeStats(String symbol, Date fromDate, Date toDate) {
+        StockStats stats = new StockStats();
+        SymbolDictionary.Symbol entry = symbols.get(symbol);
+        if (entry == null) return stats;
+        long lo = boundKey(entry, fromDate, Integer.MIN_VALUE);
+        long hi = boundKey(entry, toDate, Integer.MAX_VALUE);
+
+        // Find the highest node inside the range; the range splits into its two subtrees
+        Node x = root;
+        while (x != null) {
+            if (hi < x.key) x = x.left;
+            else if (lo > x.key) x = x.right;
+            else break;
+        }
+        if (x == null) return stats;
+        addStock(stats, x.stock);
+
+        for (Node n = x.left; n != null; ) {
+            if (lo <= n.key) {
+                addStock(stats, n.stock);
+                addSubtree(stats, n.right);
+                n = n.left;
+            } else {
+                n = n.right;
+            }
+        }
+        for (Node n = x.right; n != null; ) {
+            if (hi >= n.key) {
+                addStock(stats, n.stock);
+                addSubtree(stats, n.left);
+                n = n.right;
+            } else {
+                n = n.left;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Adds a single stock to statistics.
+     * @param stats The statistics
+     * @param stock The stock to add
+     */
+    private void addStock(StockStats stats, Stock stock) {
+        stats.add(stock.open, stock.high, stock.low, stock.volume);
+    }
+
+    /**
+     * Adds the aggregates of a whole subtree to statistics.
+     * @param stats The statistics
+     * @param x The root of the subtree, or null
+     */
+    private void addSubtree(StockStats stats, Node x) {
+        if (x != null) stats.merge(x.count, x.sumVolume, x.minOpen, x.minLow, x.maxHigh);
+    }
+
+    /**
+     * Gets the last k stocks of a symbol on or before a date, in date order.
+     * @param symbol The stock symbol
+     * @param date The last date to include
+     * @param k The maximum number of stocks to return
+     * @return List of up to k stocks, oldest first
+     */
+    public List<Stock> lastK(String symbol, Date date, int k) {
+        List<Stock> stocks = new ArrayList<>();
+        SymbolDictionary.Symbol entry = symbols.get(symbol);
+        if (entry != null) lastK(root, packKey(entry.id, Integer.MIN_VALUE), boundKey(entry, date, Integer.MAX_VALUE), k, stocks);
+        java.util.Collections.reverse(stocks);
+        return stocks;
+    }
+
+    /**
+     * Adds up to k stocks between two keys to a list with a reverse inorder traversal.
+     * @param x The root node of the tree
+     * @param lo The lowest key to include
+     * @param hi The highest key to include
+     * @param k The maximum number of stocks to add
+     * @param stocks The list to add the stocks to, newest first
+     */
+    private void lastK(Node x, long lo, long hi, int k, List<Stock> stocks) {
+        if (x == null || stocks.size() >= k) return;
+        if (hi > x.key) lastK(x.right, lo, hi, k, stocks);
+        if (stocks.size() < k && lo <= x.key && hi >= x.key) stocks.add(x.stock);
+        if (lo < x.key) lastK(x.left, lo, hi, k, stocks);
+    }
+
+    /**
+     * Reads stock data from a CSV file and populates the tree.
+     * @param filename The path to the CSV file
+     * @throws RuntimeException if there's an error reading the file
+     */
+    public void readCSV(String filename) {
+        long startTime = metrics != null ? metrics.start(Metrics.Operation.READ_CSV) : 0;
+        List<Stock> stocks = new ArrayList<>();
+        if (parserMode != ParserMode.LEGACY) {
+            IngestStats stats = ingest(filename, 1, stocks::add);
+            if (parserMode == ParserMode.COMPARE) System.out.println("Parser comparison: " + stats);
+        } else {
+            try {
+                java.io.BufferedReader reader = new java.io.BufferedReader(new java.io.FileReader(filename));
+                reader.readLine();
+                String line;
+
+                while ((line = reader.readLine()) != null) {
+                    try {
+                        stocks.add(parseLine(line));
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                }
+                reader.close();
+            } catch (Exception e) {
+                throw new RuntimeException("Failed to read CSV: " + e.getMessage());
+            }
+        }
+        bulkLoad(stocks);
+        if (metrics != null) metrics.record(Metrics.Operation.READ_CSV, startTime);
+    }
+
+    /**
+     * Parses a single CSV row in the date,open,high,low,close,volume,name layout.
+     * @param line The CSV row
+     * @return The parsed Stock object
+     * @throws ParseException if the date column is not in yyyy-MM-dd format
+     * @throws NumberFormatException if a numeric column is empty or malformed
+     */
+    private Stock parseLine(String line) throws ParseException {
+        String[] data = line.split(",");
+        Date date = new SimpleDateFormat("yyyy-MM-dd").parse(data[0]);
+        double open = Double.parseDouble(data[1]);
+        double high = Double.parseDouble(data[2]);
+        double low = Double.parseDouble(data[3]);
+        double close = Double.parseDouble(data[4]);
+        int volume = Integer.parseInt(data[5]);
+        String name = data[6];
+
+        return new Stock(name, close, date, open, high, low, close, close, volume);
+    }
+
+    /**
+     * Sets the CSV row parser used when reading files.
+     * @param parserMode The parser mode
+     */
+    public void setParserMode(ParserMode parserMode) {
+        this.parserMode = parserMode;
+    }
+
+    /*
+     * Class: IngestStats
+     * Description: This class is used to report the result of a CSV ingest.
+     * Author: Demetrius Chatterjee
+     * Github ID: DemetriusChatterjee
+     * Version: 1.0
+     */
+    public static class IngestStats {
+        long rows;
+        long rejected;
+        long fallbacks;
+        long mismatches;
+        int chunks;
+        int threads;
+        // Time spent parsing, averaged over the threads; it overlaps with inserting the rows
+        long parseNanos;
+        long totalNanos;
+
+        /**
+         * Gets the number of accepted rows loaded per second of wall clock time.
+         * @return The ingest throughput in rows per second
+         */
+        public double rowsPerSecond() {
+            return totalNanos > 0 ? rows * 1_000_000_000.0 / totalNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d rows (%d rejected, %d fallback, %d mismatched) from %d chunks on %d threads in %.3f milliseconds (parse %.3f ms), %.0f rows/sec",
+                    rows, rejected, fallbacks, mismatches, chunks, threads, totalNanos / 1_000_000.0, parseNanos / 1_000_000.0, rowsPerSecond());
+        }
+    }
+
+    /*
+     * Class: ChunkResult
+     * Description: This class is used to hold the stocks parsed from one chunk of a CSV file.
+     * Author: Demetrius Chatterjee
+     * Github ID: DemetriusChatterjee
+     * Version: 1.0
+     */
+    private static class ChunkResult {
+        List<Stock> stocks = new ArrayList<>();
+        long rejected;
+        long fallbacks;
+        long mismatches;
+    }
+
+    /**
+     * Reads stock data from a CSV file using all available cores.
+     * @param filename The path to the CSV file
+     * @return The ingest statistics
+     * @throws RuntimeException if there's an error reading the file
+     */
+    public IngestStats readCSVParallel(String filename) {
+        return readCSVParallel(filename, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Reads stock data from a CSV file by memory-mapping it, parsing newline-aligned
+     * chunks on a thread pool and bulk loading the rows in file order. Because the rows are
+     * loaded in the same order as readCSV, the resulting tree is identical.
+     * @param filename The path to the CSV file
+     * @param threads The number of parser threads
+     * @return The ingest statistics
+     * @throws RuntimeException if there's an error reading the file
+     */
+    public IngestStats readCSVParallel(String filename, int threads) {
+        long startTime = System.nanoTime();
+        List<Stock> stocks = new ArrayList<>();
+        IngestStats stats = ingest(filename, threads, stocks::add);
+        bulkLoad(stocks);
+        stats.totalNanos = System.nanoTime() - startTime;
+        if (metrics != null) metrics.record(Metrics.Operation.READ_CSV, startTime);
+        System.out.println("Parallel ingest: " + stats);
+        return stats;
+    }
+
+    /**
+     * Memory-maps a CSV file, parses its chunks on a thread pool and passes the rows on in file order.
+     * Chunks are at most 4 MB and only a few per thread are parsed ahead of the sink, so the rows
+     * held on the heap at once do not grow with the size of the file.
+     * @param filename The path to the CSV file
+     * @param threads The number of parser threads
+     * @param sink Receives each parsed stock
+     * @return The ingest statistics
+     * @throws RuntimeException if there's an error reading the file
+     */
+    private IngestStats ingest(String filename, int threads, Consumer<Stock> sink) {
+        long startTime = System.nanoTime();
+        IngestStats stats = new IngestStats();
+        stats.threads = Math.max(1, threads);
+        ExecutorService pool = Executors.newFixedThreadPool(stats.threads);
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long start = nextLineStart(channel, 0, size);
+            int chunks = (int) Math.max(stats.threads * 4L, (size - start) / (4 << 20) + 1);
+            long[] bounds = splitChunks(channel, start, size, chunks);
+            stats.chunks = bounds.length - 1;
+
+            java.util.concurrent.atomic.AtomicLong parseNanos = new java.util.concurrent.atomic.AtomicLong();
+            java.util.ArrayDeque<Future<ChunkResult>> pending = new java.util.ArrayDeque<>();
+            int next = 0;
+            while (next < stats.chunks || !pending.isEmpty()) {
+                while (next < stats.chunks && pending.size() < stats.threads * 2) {
+                    long from = bounds[next];
+                    long to = bounds[++next];
+                    pending.add(pool.submit(() -> {
+                        long parseStart = System.nanoTime();
+                        ChunkResult result = parseChunk(channel, from, to);
+                        parseNanos.addAndGet(System.nanoTime() - parseStart);
+                        return result;
+                    }));
+                }
+
+                ChunkResult result = pending.poll().get();
+                for (Stock stock : result.stocks) sink.accept(stock);
+                stats.rows += result.stocks.size();
+                stats.rejected += result.rejected;
+                stats.fallbacks += result.fallbacks;
+                stats.mismatches += result.mismatches;
+            }
+            stats.parseNanos = parseNanos.get() / stats.threads;
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to read CSV: " + e.getCause().getMessage());
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to read CSV: " + e.getMessage());
+        } finally {
+            pool.shutdown();
+        }
+
+        stats.totalNanos = System.nanoTime() - startTime;
+        return stats;
+    }
+
+    /**
+     * Splits a byte range of a file into chunks that each start at the beginning of a line.
+     * @param channel The file channel
+     * @param start The offset of the first data row
+     * @param size The size of the file
+     * @param chunks The desired number of chunks
+     * @return The chunk boundaries, including the start and the end of the range
+     * @throws IOException if the file cannot be read
+     */
+    private long[] splitChunks(FileChannel channel, long start, long size, int chunks) throws IOException {
+        // A single mapping cannot exceed Integer.MAX_VALUE bytes
+        long chunkSize = Math.min(Math.max(1, (size - start) / chunks), Integer.MAX_VALUE / 2);
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(start);
+        long pos = start;
+        while (pos < size) {
+            pos = pos + chunkSize >= size ? size : nextLineStart(channel, pos + chunkSize, size);
+            bounds.add(pos);
+        }
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) result[i] = bounds.get(i);
+        return result;
+    }
+
+    /**
+     * Finds the offset of the first line that starts at or after the given position.
+     * @param channel The file channel
+     * @param pos The position to start scanning from
+     * @param size The size of the file
+     * @return The offset just past the next newline, or the file size if there is none
+     * @throws IOException if the file cannot be read
+     */
+    private long nextLineStart(FileChannel channel, long pos, long size) throws IOException {
+        if (pos > 0) pos--; // a chunk may begin exactly on a line start
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        while (pos < size) {
+            buffer.clear();
+            int n = channel.read(buffer, pos);
+            if (n <= 0) break;
+            for (int i = 0; i < n; i++)
+                if (buffer.get(i) == '\n') return pos + i + 1;
+            pos += n;
+        }
+        return size;
+    }
+
+    /**
+     * Parses all rows of a memory-mapped chunk of a CSV file.
+     * @param channel The file channel
+     * @param from The offset of the first byte of the chunk
+     * @param to The offset just past the last byte of the chunk
+     * @return The parsed stocks in file order and the number of rejected rows
+     * @throws IOException if the chunk cannot be mapped
+     * @throws ParseException if a row has an invalid date
+     */
+    private ChunkResult parseChunk(FileChannel channel, long from, long to) throws IOException, ParseException {
+        return parseChunk(channel, from, to, false);
+    }
+
+    /**
+     * Parses all rows of a memory-mapped chunk of a CSV file.
+     * @param channel The file channel
+     * @param from The offset of the first byte of the chunk
+     * @param to The offset just past the last byte of the chunk
+     * @param lenient true to reject rows with an invalid date or missing columns instead of failing
+     * @return The parsed stocks in file order and the number of rejected rows
+     * @throws IOException if the chunk cannot be mapped
+     * @throws ParseException if a row has an invalid date and lenient is false
+     */
+    private ChunkResult parseChunk(FileChannel channel, long from, long to, boolean lenient) throws IOException, ParseException {
+        ChunkResult result = new ChunkResult();
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+        CsvRowParser parser = new CsvRowParser();
+        byte[] scratch = new byte[256];
+        int limit = buffer.limit();
+        int start = 0;
+
+        while (start < limit) {
+            int end = start;
+            while (end < limit && buffer.get(end) != '\n') end++;
+            int next = end + 1;
+            if (end > start && buffer.get(end - 1) == '\r') end--;
+
+            if (parserMode != ParserMode.LEGACY && parser.parse(buffer, start, end)) {
+                Stock stock = parser.toStock();
+                if (parserMode == ParserMode.COMPARE) {
+                    String line = decodeLine(buffer, start, end, scratch);
+                    if (!sameStock(stock, line)) {
+                        result.mismatches++;
+                        if (result.mismatches <= 5) System.out.println("Parser mismatch: " + line);
+                    }
+                }
+                result.stocks.add(stock);
+            } else {
+                if (parserMode != ParserMode.LEGACY) result.fallbacks++;
+                try {
+                    result.stocks.add(parseLine(decodeLine(buffer, start, end, scratch)));
+                } catch (NumberFormatException e) {
+                    result.rejected++;
+                } catch (ParseException | IndexOutOfBoundsException e) {
+                    if (!lenient) throw e;
+                    result.rejected++;
+                }
+            }
+            start = next;
+        }
+        return result;
+    }
+
+    /**
+     * Decodes one line of a mapped CSV chunk into a String.
+     * @param buffer The mapped chunk
+     * @param start The offset of the first byte of the line
+     * @param end The offset just past the last byte of the line
+     * @param scratch A scratch array large enough to hold the line
+     * @return The decoded line
+     */
+    private String decodeLine(ByteBuffer buffer, int start, int end, byte[] scratch) {
+        if (end - start > scratch.length) scratch = new byte[end - start];
+
+        for (int i = start; i < end; i++) scratch[i - start] = buffer.get(i);
+        return new String(scratch, 0, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Checks that the legacy parser produces the same stock as the fast parser for a line.
+     * @param stock The stock produced by the fast parser
+     * @param line The CSV row
+     * @return true if both parsers agree, false otherwise
+     */
+    private boolean sameStock(Stock stock, String line) {
+        try {
+            Stock legacy = parseLine(line);
+            return legacy.name.equals(stock.name) && legacy.date.equals(stock.date)
+                    && legacy.open == stock.open && legacy.high == stock.high && legacy.low == stock.low
+                    && legacy.close == stock.close && legacy.volume == stock.volume;
+        } catch (ParseException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    /*
+     * Class: CsvRowParser
+     * Description: This class is used to parse date,open,high,low,close,volume,name rows directly
+     *              from a byte buffer without splitting the line or creating per-field objects.
+     *              Rows it cannot handle exactly are rejected so the caller can fall back to parseLine.
+     * Author: Demetrius Chatterjee
+     * Github ID: DemetriusChatterjee
+     * Version: 1.0
+     */
+    private class CsvRowParser {
+        private String[] symbolCache = new String[256];
+        private int symbolCount;
+        private Date[] dates = new Date[0];
+        private int dateBase;
+        private int pos;
+
+        int epochDay;
+        double open;
+        double high;
+        double low;
+        double close;
+        int volume;
+        String name;
+
+        /**
+         * Parses one row into the fields of this parser.
+         * @param b The buffer holding the row
+         * @param start The offset of the first byte of the row
+         * @param end The offset just past the last byte of the row
+         * @return true if the row was parsed, false if it must go through the legacy parser
+         */
+        boolean parse(ByteBuffer b, int start, int end) {
+            pos = start;
+            if (!parseDate(b, end)) return false;
+            open = parseDecimal(b, end);
+            if (Double.isNaN(open)) return false;
+            high = parseDecimal(b, end);
+            if (Double.isNaN(high)) return false;
+            low = parseDecimal(b, end);
+            if (Double.isNaN(low)) return false;
+            close = parseDecimal(b, end);
+            if (Double.isNaN(close)) return false;
+            if (!parseVolume(b, end)) return false;
+            return parseName(b, end);
+        }
+
+        /**
+         * Creates a Stock from the most recently parsed row.
+         * @return The parsed Stock object
+         */
+        Stock toStock() {
+            return new Stock(name, close, toDate(epochDay), open, high, low, close, close, volume);
+        }
+
+        /**
+         * Parses a yyyy-MM-dd date followed by a comma into an epoch day.
+         * @param b The buffer holding the row
+         * @param end The offset just past the last byte of the row
+         * @return true if a valid date was parsed, false otherwise
+         */
+        private boolean parseDate(ByteBuffer b, int end) {
+            int p = pos;
+            if (end - p < 11 || b.get(p + 4) != '-' || b.get(p + 7) != '-' || b.get(p + 10) != ',') return false;
+            int year = digits(b, p, 4);
+            int month = digits(b, p + 5, 2);
+            int day = digits(b, p + 8, 2);
+            // Pre-1900 dates go through SimpleDateFormat, which switches to the Julian calendar
+            if (year < 1900 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) return false;
+            epochDay = epochDay(year, month, day);
+            pos = p + 11;
+            return true;
+        }
+
+        /**
+         * Parses a fixed number of decimal digits.
+         * @param b The buffer holding the row
+         * @param p The offset of the first digit
+         * @param count The number of digits
+         * @return The parsed value, or -1 if a byte is not a digit
+         */
+        private int digits(ByteBuffer b, int p, int count) {
+            int value = 0;
+            for (int i = 0; i < count; i++) {
+                int c = b.get(p + i) - '0';
+                if (c < 0 || c > 9) return -1;
+                value = value * 10 + c;
+            }
+            return value;
+        }
+
+        /**
+         * Parses a plain decimal number followed by a comma. Numbers with at most 15 significant
+         * digits are exact in a double, so mantissa / 10^scale rounds exactly like Double.parseDouble.
+         * @param b The buffer holding the row
+         * @param end The offset just past the last byte of the row
+         * @return The parsed value, or NaN if the field must go through the legacy parser
+         */
+        private double parseDecimal(ByteBuffer b, int end) {
+            int p = pos;
+            boolean negative = p < end && b.get(p) == '-';
+            if (negative) p++;
+            long mantissa = 0;
+            int digitCount = 0, significant = 0, scale = 0;
+            boolean dot = false;
+            while (p < end) {
+                byte c = b.get(p);
+                if (c >= '0' && c <= '9') {
+                    if (mantissa != 0 || c != '0') significant++;
+                    mantissa = mantissa * 10 + (c - '0');
+                    digitCount++;
+                    if (dot) scale++;
+                } else if (c == '.' && !dot) {
+                    dot = true;
+                } else {
+                    break;
+                }
+                p++;
+            }
+            if (digitCount == 0 || significant > 15 || scale >= POW10.length || p >= end || b.get(p) != ',') return Double.NaN;
+            pos = p + 1;
+            double value = scale == 0 ? mantissa : mantissa / POW10[scale];
+            return negative ? -value : value;
+        }
+
+        /**
+         * Parses an integer volume followed by a comma.
+         * @param b The buffer holding the row
+         * @param end The offset just past the last byte of the row
+         * @return true if a volume in int range was parsed, false otherwise
+         */
+        private boolean parseVolume(ByteBuffer b, int end) {
+            int p = pos;
+            boolean negative = p < end && b.get(p) == '-';
+            if (negative) p++;
+            long value = 0;
+            int digitCount = 0;
+            while (p < end && b.get(p) >= '0' && b.get(p) <= '9') {
+                value = value * 10 + (b.get(p++) - '0');
+                if (++digitCount > 10) return false;
+            }
+            if (negative) value = -value;
+            if (digitCount == 0 || value > Integer.MAX_VALUE || value < Integer.MIN_VALUE || p >= end || b.get(p) != ',') return false;
+            volume = (int) value;
+            pos = p + 1;
+            return true;
+        }
+
+        /**
+         * Parses the ASCII symbol in the last column, reusing one String per symbol.
+         * @param b The buffer holding the row
+         * @param end The offset just past the last byte of the row
+         * @return true if a symbol was parsed, false otherwise
+         */
+        private boolean parseName(ByteBuffer b, int end) {
+            int start = pos;
+            int hash = 0;
+            for (int p = start; p < end; p++) {
+                byte c = b.get(p);
+                if (c == ',' || c < 0) return false;
+                hash = 31 * hash + c;
+            }
+            if (end == start) return false;
+
+            int mask = symbolCache.length - 1;
+            int slot = hash & mask;
+            while (symbolCache[slot] != null) {
+                if (matches(symbolCache[slot], b, start, end)) {
+                    name = symbolCache[slot];
+                    return true;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            char[] chars = new char[end - start];
+            for (int p = start; p < end; p++) chars[p - start] = (char) b.get(p);
+            String symbol = new String(chars);
+            String pooled = symbolPool.putIfAbsent(symbol, symbol);
+            name = pooled != null ? pooled : symbol;
+            symbolCache[slot] = name;
+            if (++symbolCount * 2 > symbolCache.length) rehash();
+            return true;
+        }
+
+        /**
+         * Checks whether a cached symbol equals the bytes of a field.
+         * @param symbol The cached symbol
+         * @param b The buffer holding the row
+         * @param start The offset of the first byte of the field
+         * @param end The offset just past the last byte of the field
+         * @return true if they are equal, false otherwise
+         */
+        private boolean matches(String symbol, ByteBuffer b, int start, int end) {
+            if (symbol.length() != end - start) return false;
+            for (int i = 0; i < symbol.length(); i++)
+                if (symbol.charAt(i) != b.get(start + i)) return false;
+            return true;
+        }
+
+        /**
+         * Doubles the symbol cache.
+         */
+        private void rehash() {
+            String[] old = symbolCache;
+            symbolCache = new String[old.length * 2];
+            int mask = symbolCache.length - 1;
+            for (String symbol : old) {
+                if (symbol == null) continue;
+                int slot = symbol.hashCode() & mask;
+                while (symbolCache[slot] != null) slot = (slot + 1) & mask;
+                symbolCache[slot] = symbol;
+            }
+        }
+
+        /**
+         * Gets the Date at local midnight for an epoch day, sharing one Date per trading day.
+         * @param day The epoch day
+         * @return The Date for the day
+         */
+        private Date toDate(int day) {
+            if (dates.length == 0) dateBase = day - 512;
+            if (day < dateBase || day >= dateBase + dates.length) {
+                int from = Math.min(dateBase, day - 512);
+                int to = Math.max(dateBase + dates.length, day + 512);
+                Date[] grown = new Date[to - from];
+                System.arraycopy(dates, 0, grown, dateBase - from, dates.length);
+                dates = grown;
+                dateBase = from;
+            }
+            Date date = dates[day - dateBase];
+            if (date == null) {
+                date = StockAnalyser.toDate(day);
+                dates[day - dateBase] = date;
+            }
+            return date;
+        }
+    }
+
+    /**
+     * Converts an epoch day to a Date at local midnight, matching SimpleDateFormat("yyyy-MM-dd").
+     * @param epochDay The number of days since 1970-01-01
+     * @return The Date at the start of that day in the default time zone
+     */
+    static Date toDate(int epochDay) {
+        return Date.from(java.time.LocalDate.ofEpochDay(epochDay).atStartOfDay(ZONE.toZoneId()).toInstant());
+    }
+
+    /**
+     * Converts a Date to the epoch day of its calendar date in the default time zone.
+     * @param date The date
+     * @return The number of days since 1970-01-01, clamped to the int range (so MIN_DATE and
+     *         MAX_DATE map to Integer.MIN_VALUE and Integer.MAX_VALUE)
+     */
+    static int toEpochDay(Date date) {
+        // TimeZone.getOffset does not allocate, unlike the equivalent ZonedDateTime conversion
+        long millis = date.getTime();
+        if (millis <= Integer.MIN_VALUE * 86_400_000L) return Integer.MIN_VALUE;
+        if (millis >= Integer.MAX_VALUE * 86_400_000L) return Integer.MAX_VALUE;
+        return (int) Math.floorDiv(millis + ZONE.getOffset(millis), 86_400_000L);
+    }
+
+    /**
+     * Computes the epoch day of a proleptic Gregorian calendar date.
+     * @param year The year
+     * @param month The month, 1 to 12
+     * @param day The day of the month
+     * @return The number of days since 1970-01-01
+     */
+    static int epochDay(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * Gets the number of days in a month.
+     * @param year The year
+     * @param month The month, 1 to 12
+     * @return The number of days in the month
+     */
+    static int daysInMonth(int year, int month) {
+        if (month == 2) return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+        return (month == 4 || month == 6 || month == 9 || month == 11) ? 30 : 31;
+    }
+
+    /**
+     * Returns a list of all stocks in the tree.
+     * @return List of all stocks
+     */
+    public List<Stock> getAllStocks() {
+        List<Stock> stocks = new ArrayList<>();
+        inorderTraversal(root, stocks);
+        return stocks;
+    }
+
+    /**
+     * Passes every stock in the tree to an action in symbol and date order without copying the tree.
+     * @param action The action to run for each stock
+     */
+    public void forEachStock(Consumer<Stock> action) {
+        forEachStock(root, action);
+    }
+
+    /**
+     * Performs an inorder traversal of the tree and passes the stocks to an action.
+     * @param x The root node of the tree
+     * @param action The action to run for each stock
+     */
+    private void forEachStock(Node x, Consumer<Stock> action) {
+        if (x == null) return;
+        forEachStock(x.left, action);
+        action.accept(x.stock);
+        forEachStock(x.right, action);
+    }
+
+    /**
+     * Performs an inorder traversal of the tree and adds the stocks to the list.
+     * @param x The root node of the tree
+     * @param stocks The list to add the stocks to
+     */
+    private void inorderTraversal(Node x, List<Stock> stocks) {
+        if (x == null) return;
+        inorderTraversal(x.left, stocks);
+        stocks.add(x.stock);
+        inorderTraversal(x.right, stocks);
+    }
+
+    /**
+     * Sets whether the sort methods print how long they took.
+     * @param reportSortTimes true to print sort times, false to stay quiet
+     */
+    public void setReportSortTimes(boolean reportSortTimes) {
+        this.reportSortTimes = reportSortTimes;
+    }
+
+    /**
+     * Performs bubble sort on an array of stocks.
+     * @param arr The array to sort
+     * @param comparator The comparator to use for sorting
+     */
+    public void bubbleSort(Stock[] arr, Comparator<Stock> comparator) {
+        long startTime = System.nanoTime();
+        int n = arr.length;
+        for (int i = 0; i < n-1; i++)
+            for (int j = 0; j < n-i-1; j++)
+                if (comparator.compare(arr[j], arr[j+1]) < 0) {
+                    Stock temp = arr[j];
+                    arr[j] = arr[j+1];
+                    arr[j+1] = temp;
+                }
+        long endTime = System.nanoTime();
+        if (metrics != null) metrics.record(Metrics.Operation.BUBBLE_SORT, startTime);
+        if (reportSortTimes) System.out.printf("Bubble Sort took %.3f milliseconds%n", (endTime - startTime) / 1_000_000.0);
+    }
+
+    /**
+     * Performs selection sort on an array of stocks.
+     * @param arr The array to sort
+     * @param comparator The comparator to use for sorting
+     */
+    public void selectionSort(Stock[] arr, Comparator<Stock> comparator) {
+        long startTime = System.nanoTime();
+        int n = arr.length;
+        for (int i = 0; i < n-1; i++) {
+            int maxIdx = i;
+            for (int j = i+1; j < n; j++)
+                if (comparator.compare(arr[j], arr[maxIdx]) > 0)
+                    maxIdx = j;
+            Stock temp = arr[maxIdx];
+            arr[maxIdx] = arr[i];
+            arr[i] = temp;
+        }
+        long endTime = System.nanoTime();
+        if (metrics != null) metrics.record(Metrics.Operation.SELECTION_SORT, startTime);
+        if (reportSortTimes) System.out.printf("Selection Sort took %.3f milliseconds%n", (endTime - startTime) / 1_000_000.0);
+    }
+
+    /**
+     * Performs merge sort on an array of stocks.
+     * @param arr The array to sort
+     * @param comparator The comparator to use for sorting
+     */
+    public void mergeSort(Stock[] arr, Comparator<Stock> comparator) {
+        long startTime = System.nanoTime();
+        mergeSort(arr, 0, arr.length - 1, comparator);
+        long endTime = System.nanoTime();
+        if (metrics != null) metrics.record(Metrics.Operation.MERGE_SORT, startTime);
+        if (reportSortTimes) System.out.printf("Merge Sort took %.3f milliseconds%n", (endTime - startTime) / 1_000_000.0);
+    }
+
+    /**
+     * Performs the merge sort algorithm on an array of stocks.
+     * @param arr The array to sort
+     * @param left The left index of the array
+     * @param right The right index of the array
+     * @param comparator The comparator to use for sorting
+     */
+    private void mergeSort(Stock[] arr, int left, int right, Comparator<Stock> comparator) {
+        if (left < right) {
+            int mid = (left + right) / 2;
+            mergeSort(arr, left, mid, comparator);
+            mergeSort(arr, mid + 1, right, comparator);
+            merge(arr, left, mid, right, comparator);
+        }
+    }
+
+    /**
+     * Merges two halves of an array of stocks.
+     * @param arr The array to merge
+     * @param left The left index of the array
+     * @param mid The middle index of the array
+     * @param right The right index of the array
+     * @param comparator The comparator to use for sorting
+     */
+    private void merge(Stock[] arr, int left, int mid, int right, Comparator<Stock> comparator) {
+        Stock[] temp = new Stock[right - left + 1];
+        int i = left, j = mid + 1, k = 0;
+        
+        while (i <= mid && j <= right) {
+            if (comparator.compare(arr[i], arr[j]) >= 0)
+                temp[k++] = arr[i++];
+            else
+                temp[k++] = arr[j++];
+        }
+        
+        while (i <= mid) temp[k++] = arr[i++];
+        while (j <= right) temp[k++] = arr[j++]; 
+        
+        for (i = 0; i < temp.length; i++)
+            arr[left + i] = temp[i];
+    }
+
+    /**
+     * Performs quick sort on an array of stocks.
+     * @param arr The array to sort
+     * @param comparator The comparator to use for sorting
+     */
+    public void quickSort(Stock[] arr, Comparator<Stock> comparator) {
+        long startTime = System.nanoTime();
+        quickSort(arr, 0, arr.length - 1, comparator);
+        long endTime = System.nanoTime();
+        if (metrics != null) metrics.record(Metrics.Operation.QUICK_SORT, startTime);
+        if (reportSortTimes) System.out.printf("Quick Sort took %.3f milliseconds%n", (endTime - startTime) / 1_000_000.0);
+    }
+
+    /**
+     * Performs the quick sort algorithm on an array of stocks.
+     * It recurses into the smaller partition and loops on the larger one, so the stack depth stays
+     * O(log N) even when the partitions are unbalanced.
+     * @param arr The array to sort
+     * @param low The left index of the array
+     * @param high The right index of the array
+     * @param comparator The comparator to use for sorting
+     */
+    private void quickSort(Stock[] arr, int low, int high, Comparator<Stock> comparator) {
+        while (low < high) {
+            int pi = partition(arr, low, high, comparator);
+            if (pi - low < high - pi) {
+                quickSort(arr, low, pi - 1, comparator);
+                low = pi + 1;
+            } else {
+                quickSort(arr, pi + 1, high, comparator);
+                high = pi - 1;
+            }
+        }
+    }
+
+    /**
+     * Partitions an array of stocks around the median of its first, middle and last elements,
+     * so that already sorted input does not degrade to O(N^2).
+     * @param arr The array to partition
+     * @param low The left index of the array
      * @param high The right index of the array
      * @param comparator The comparator to use for sorting
+     * @return The pivot index
+     */
+    private int partition(Stock[] arr, int low, int high, Comparator<Stock> comparator) {
+        int mid = (low + high) >>> 1;
+        if (comparator.compare(arr[mid], arr[low]) < 0) swap(arr, mid, low);
+        if (comparator.compare(arr[high], arr[low]) < 0) swap(arr, high, low);
+        if (comparator.compare(arr[mid], arr[high]) < 0) swap(arr, mid, high);
+        Stock pivot = arr[high];
+        int i = (low - 1);
+        for (int j = low; j < high; j++) {
+            if (comparator.compare(arr[j], pivot) >= 0) {
+                i++;
+                Stock temp = arr[i];
+                arr[i] = arr[j];
+                arr[j] = temp;
+            }
+        }
+        Stock temp = arr[i + 1];
+        arr[i + 1] = arr[high];
+        arr[high] = temp;
+        return i + 1;
+    }
+
+    /**
+     * Swaps two elements of an array of stocks.
+     * @param arr The array
+     * @param i The index of the first element
+     * @param j The index of the second element
+     */
+    private static void swap(Stock[] arr, int i, int j) {
+        Stock temp = arr[i];
+        arr[i] = arr[j];
+        arr[j] = temp;
+    }
+
+    /*
+     * Class: SortEngine
+     * Description: This class is used to sort large arrays of stocks. It offers a parallel fork-join
+     *              merge sort for any comparator and an LSD radix sort over primitive keys for the
+     *              comparators whose order is a single field (VolumeComparator, OpenPriceComparator),
+     *              which replaces N log N virtual compare calls with a few linear passes.
+     *              Both sorts are stable and, like the four instance sorts above, put the largest
+     *              element by the comparator first, so their results are identical.
+     * Author: Demetrius Chatterjee
+     * Github ID: DemetriusChatterjee
+     * Version: 1.0
+     */
+    public static class SortEngine {
+        private static final int SEQUENTIAL_THRESHOLD = 1 << 13;
+
+        /**
+         * The sort algorithms the engine can run.
+         */
+        public enum Algorithm { AUTO, PARALLEL_MERGE, RADIX }
+
+        /**
+         * Sorts an array of stocks with the fastest algorithm for the comparator: radix sort when the
+         * comparator has a primitive key, parallel merge sort otherwise. The largest element by the
+         * comparator comes first.
+         * @param arr The array to sort
+         * @param comparator The comparator to use for sorting
+         */
+        public static void sort(Stock[] arr, Comparator<Stock> comparator) {
+            sort(arr, comparator, Algorithm.AUTO);
+        }
+
+        /**
+         * Sorts an array of stocks with a given algorithm.
+         * @param arr The array to sort
+         * @param comparator The comparator to use for sorting
+         * @param algorithm The algorithm to run
+         * @throws IllegalArgumentException if RADIX is requested for a comparator without a primitive key
+         */
+        public static void sort(Stock[] arr, Comparator<Stock> comparator, Algorithm algorithm) {
+            switch (algorithm) {
+                case RADIX:
+                    if (!radixSort(arr, comparator))
+                        throw new IllegalArgumentException("No primitive key for comparator " + comparator.getClass().getName());
+                    break;
+                case PARALLEL_MERGE:
+                    parallelMergeSort(arr, comparator);
+                    break;
+                default:
+                    if (!radixSort(arr, comparator)) parallelMergeSort(arr, comparator);
+            }
+        }
+
+        /**
+         * Performs a stable merge sort, sorting the halves in parallel on the common fork-join pool.
+         * The largest element by the comparator comes first.
+         * @param arr The array to sort
+         * @param comparator The comparator to use for sorting
+         */
+        public static void parallelMergeSort(Stock[] arr, Comparator<Stock> comparator) {
+            if (arr.length < 2) return;
+            Stock[] buffer = new Stock[arr.length];
+            java.util.concurrent.ForkJoinPool.commonPool().invoke(new MergeTask(arr, buffer, 0, arr.length, comparator.reversed()));
+        }
+
+        /*
+         * Class: MergeTask
+         * Description: This class is used to merge sort one range of an array as a fork-join task,
+         *              smallest first by its comparator. Ranges below the threshold are sorted sequentially.
+         * Author: Demetrius Chatterjee
+         * Github ID: DemetriusChatterjee
+         * Version: 1.0
+         */
+        private static class MergeTask extends java.util.concurrent.RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            private final Stock[] arr;
+            private final Stock[] buffer;
+            private final int from;
+            private final int to;
+            private final Comparator<Stock> comparator;
+
+            MergeTask(Stock[] arr, Stock[] buffer, int from, int to, Comparator<Stock> comparator) {
+                this.arr = arr;
+                this.buffer = buffer;
+                this.from = from;
+                this.to = to;
+                this.comparator = comparator;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from <= SEQUENTIAL_THRESHOLD) {
+                    java.util.Arrays.sort(arr, from, to, comparator);
+                    return;
+                }
+                int mid = (from + to) >>> 1;
+                invokeAll(new MergeTask(arr, buffer, from, mid, comparator),
+                        new MergeTask(arr, buffer, mid, to, comparator));
+                if (comparator.compare(arr[mid - 1], arr[mid]) <= 0) return;
+
+                System.arraycopy(arr, from, buffer, from, to - from);
+                int i = from, j = mid, k = from;
+                while (i < mid && j < to) {
+                    // Take from the right run only when strictly smaller, which keeps ties in order
+                    if (comparator.compare(buffer[j], buffer[i]) < 0) arr[k++] = buffer[j++];
+                    else arr[k++] = buffer[i++];
+                }
+                while (i < mid) arr[k++] = buffer[i++];
+                while (j < to) arr[k++] = buffer[j++];
+            }
+        }
+
+        /**
+         * Performs a stable LSD radix sort on the primitive key of a comparator, one byte per pass.
+         * The largest element by the comparator comes first. Passes where every key has the same byte
+         * are skipped, so int keys take at most 4 passes.
+         * @param arr The array to sort
+         * @param comparator The comparator to use for sorting
+         * @return true if the array was sorted, false if the comparator has no primitive key
+         */
+        public static boolean radixSort(Stock[] arr, Comparator<Stock> comparator) {
+            int n = arr.length;
+            long[] keys = new long[n];
+            // Both comparators are descending, so their largest element has the smallest field value
+            if (comparator instanceof VolumeComparator) {
+                for (int i = 0; i < n; i++) keys[i] = sortableKey(arr[i].volume);
+            } else if (comparator instanceof OpenPriceComparator) {
+                for (int i = 0; i < n; i++) keys[i] = sortableKey(arr[i].open);
+            } else {
+                return false;
+            }
+            radixSort(arr, keys);
+            return true;
+        }
+
+        /**
+         * Sorts an array of stocks by unsigned 64-bit keys, stably.
+         * @param arr The array to sort
+         * @param keys The key of each stock, compared as unsigned values; reordered along with the array
+         */
+        public static void radixSort(Stock[] arr, long[] keys) {
+            int n = arr.length;
+            if (n < 2) return;
+            Stock[] stocks = arr, stocksOut = new Stock[n];
+            long[] keysIn = keys, keysOut = new long[n];
+            int[] counts = new int[256];
+
+            for (int shift = 0; shift < 64; shift += 8) {
+                java.util.Arrays.fill(counts, 0);
+                for (int i = 0; i < n; i++) counts[(int) (keysIn[i] >>> shift) & 0xFF]++;
+                if (counts[(int) (keysIn[0] >>> shift) & 0xFF] == n) continue;
+
+                for (int b = 0, total = 0; b < 256; b++) {
+                    int c = counts[b];
+                    counts[b] = total;
+                    total += c;
+                }
+                for (int i = 0; i < n; i++) {
+                    int pos = counts[(int) (keysIn[i] >>> shift) & 0xFF]++;
+                    keysOut[pos] = keysIn[i];
+                    stocksOut[pos] = stocks[i];
+                }
+                Stock[] stocksSwap = stocks; stocks = stocksOut; stocksOut = stocksSwap;
+                long[] keysSwap = keysIn; keysIn = keysOut; keysOut = keysSwap;
+            }
+
+            if (stocks != arr) {
+                System.arraycopy(stocks, 0, arr, 0, n);
+                System.arraycopy(keysIn, 0, keys, 0, n);
+            }
+        }
+
+        /**
+         * Maps an int to a key whose unsigned order matches Integer.compare.
+         * @param value The value
+         * @return The key
+         */
+        public static long sortableKey(int value) {
+            return (value ^ 0x80000000) & 0xFFFFFFFFL;
+        }
+
+        /**
+         * Maps a double to a key whose unsigned order matches Double.compare: negative values have
+         * all their bits flipped, positive values only the sign bit.
+         * @param value The value
+         * @return The key
+         */
+        public static long sortableKey(double value) {
+            long bits = Double.doubleToLongBits(value);
+            return bits < 0 ? ~bits : bits ^ Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Gets all stocks for a specific date from the date index.
+     * @param date The date to search for
+     * @return List of stocks on the given date, ordered by symbol
+     */
+    public List<Stock> getStocksForDate(Date date) {
+        long startTime = metrics != null ? metrics.start(Metrics.Operation.STOCKS_FOR_DATE) : 0;
+        List<Stock> stocksForDate = dateIndex.get(toEpochDay(date));
+        List<Stock> stocks = stocksForDate != null ? new ArrayList<>(stocksForDate) : new ArrayList<>();
+        if (metrics != null) metrics.record(Metrics.Operation.STOCKS_FOR_DATE, startTime);
+        return stocks;
+    }
+
+    /**
+     * Calculates the Simple Moving Average (SMA) for a stock.
+     * @param symbol The stock symbol
+     * @param date The end date for calculation
+     * @param period The number of days to calculate SMA for
+     * @return The calculated SMA value
+     */
+    public double calculateSMA(String symbol, Date date, int period) {
+        long startTime = metrics != null ? metrics.start(Metrics.Operation.CALCULATE_SMA) : 0;
+        try {
+            if (indicators != null && indicators.isTracked(IndicatorEngine.Indicator.SMA, period))
+                return indicators.valueAt(symbol, IndicatorEngine.Indicator.SMA, period, date);
+            if (queryCache != null) {
+                QueryCache.Key key = new QueryCache.Key(QueryCache.Query.SMA, symbol, toEpochDay(date), period);
+                Object value = queryCache.get(key);
+                if (value == null) queryCache.put(key, value = computeSMA(symbol, date, period));
+                return (Double) value;
+            }
+            return computeSMA(symbol, date, period);
+        } finally {
+            if (metrics != null) metrics.record(Metrics.Operation.CALCULATE_SMA, startTime);
+        }
+    }
+
+    /**
+     * Calculates the Simple Moving Average (SMA) for a stock by summing its last closes.
+     * @param symbol The stock symbol
+     * @param date The end date for calculation
+     * @param period The number of days to calculate SMA for
+     * @return The calculated SMA value
+     */
+    private double computeSMA(String symbol, Date date, int period) {
+        List<Stock> symbolStocks = lastK(symbol, date, period);
+        
+        if (symbolStocks.size() < period) return 0;
+        
+        double sum = 0;
+        for (int i = symbolStocks.size() - 1; i >= 0; i--) {
+            sum += symbolStocks.get(i).close;
+        }
+        return sum / period;
+    }
+
+    /**
+     * Gets the average volume for a stock over a date range.
+     * @param symbol The stock symbol
+     * @param startDate The start date
+     * @param endDate The end date
+     * @return The average volume
+     */
+    public double getAverageVolume(String symbol, Date startDate, Date endDate) {
+        long startTime = metrics != null ? metrics.start(Metrics.Operation.AVERAGE_VOLUME) : 0;
+        try {
+            if (queryCache != null) {
+                QueryCache.Key key = new QueryCache.Key(QueryCache.Query.AVERAGE_VOLUME, symbol,
+                        startDate != null ? toEpochDay(startDate) : Integer.MIN_VALUE, endDate != null ? toEpochDay(endDate) : Integer.MAX_VALUE);
+                Object value = queryCache.get(key);
+                if (value == null) queryCache.put(key, value = rangeStats(symbol, startDate, endDate).averageVolume());
+                return (Double) value;
+            }
+            return rangeStats(symbol, startDate, endDate).averageVolume();
+        } finally {
+            if (metrics != null) metrics.record(Metrics.Operation.AVERAGE_VOLUME, startTime);
+        }
+    }
+
+    /**
+     * Gets the price trend for a stock.
+     * @param symbol The stock symbol
+     * @param date The date to search for
+     * @return The price trend
+     */
+    @Override
+    public String getPriceTrend(String symbol, Date date) {
+        long startTime = metrics != null ? metrics.start(Metrics.Operation.PRICE_TREND) : 0;
+        try {
+            if (queryCache != null) {
+                QueryCache.Key key = new QueryCache.Key(QueryCache.Query.TREND, symbol, toEpochDay(date), 0);
+                Object value = queryCache.get(key);
+                if (value == null) queryCache.put(key, value = StockStore.super.getPriceTrend(symbol, date));
+                return (String) value;
+            }
+            return StockStore.super.getPriceTrend(symbol, date);
+        } finally {
+            if (metrics != null) metrics.record(Metrics.Operation.PRICE_TREND, startTime);
+        }
+    }
+
+    /**
+     * Gets the summary statistics for a stock symbol.
+     * @param symbol The stock symbol
+     * @return The statistics, with a count of 0 if the symbol is unknown
+     */
+    public StockStats getStockStats(String symbol) {
+        long startTime = metrics != null ? metrics.start(Metrics.Operation.STOCK_STATS) : 0;
+        StockStats stats = rangeStats(symbol, null, null);
+        if (metrics != null) metrics.record(Metrics.Operation.STOCK_STATS, startTime);
+        return stats;
+    }
+
+    /*
+     * Class: ColumnarStore
+     * Description: This class is used to store the stock data column by column. Each symbol keeps
+     *              its bars sorted by date in parallel primitive arrays, which takes a fraction of the
+     *              heap of a Node + Stock + Date per bar and lets the analytics scan memory sequentially.
+     *              Bars are stored at day granularity and the price of a Stock is its close.
+     * Author: Demetrius Chatterjee
+     * Github ID: DemetriusChatterjee
+     * Version: 1.0
+     */
+    public static class ColumnarStore implements StockStore {
+        private final Map<String, Series> series = new TreeMap<>();
+        private long size;
+
+        /*
+         * Class: Series
+         * Description: This class is used to store the bars of one symbol in date order.
+         * Author: Demetrius Chatterjee
+         * Github ID: DemetriusChatterjee
+         * Version: 1.0
+         */
+        private static class Series {
+            final String symbol;
+            int size;
+            int[] days = new int[16];
+            double[] open = new double[16];
+            double[] high = new double[16];
+            double[] low = new double[16];
+            double[] close = new double[16];
+            double[] adjClose = new double[16];
+            long[] volume = new long[16];
+
+            Series(String symbol) {
+                this.symbol = symbol;
+            }
+
+            /**
+             * Finds the position of a day with a binary search.
+             * @param day The epoch day
+             * @return The index of the day, or -(insertion point) - 1 if it is not present
+             */
+            int indexOf(int day) {
+                return java.util.Arrays.binarySearch(days, 0, size, day);
+            }
+
+            /**
+             * Gets the number of bars on or before a day.
+             * @param day The epoch day
+             * @return The index just past the last bar on or before the day
+             */
+            int upperBound(int day) {
+                int i = indexOf(day);
+                return i >= 0 ? i + 1 : -i - 1;
+            }
+
+            /**
+             * Gets the number of bars before a day.
+             * @param day The epoch day
+             * @return The index of the first bar on or after the day
+             */
+            int lowerBound(int day) {
+                int i = indexOf(day);
+                return i >= 0 ? i : -i - 1;
+            }
+
+            /**
+             * Inserts a bar at a position, shifting later bars right.
+             * @param i The position
+             * @param day The epoch day
+             * @param stock The bar
+             */
+            void insertAt(int i, int day, Stock stock) {
+                if (size == days.length) resize(size * 2);
+                int moved = size - i;
+                if (moved > 0) {
+                    System.arraycopy(days, i, days, i + 1, moved);
+                    System.arraycopy(open, i, open, i + 1, moved);
+                    System.arraycopy(high, i, high, i + 1, moved);
+                    System.arraycopy(low, i, low, i + 1, moved);
+                    System.arraycopy(close, i, close, i + 1, moved);
+                    System.arraycopy(adjClose, i, adjClose, i + 1, moved);
+                    System.arraycopy(volume, i, volume, i + 1, moved);
+                }
+                days[i] = day;
+                open[i] = stock.open;
+                high[i] = stock.high;
+                low[i] = stock.low;
+                close[i] = stock.close;
+                adjClose[i] = stock.adjClose;
+                volume[i] = stock.volume;
+                size++;
+            }
+
+            /**
+             * Resizes every column.
+             * @param capacity The new capacity
+             */
+            void resize(int capacity) {
+                days = java.util.Arrays.copyOf(days, capacity);
+                open = java.util.Arrays.copyOf(open, capacity);
+                high = java.util.Arrays.copyOf(high, capacity);
+                low = java.util.Arrays.copyOf(low, capacity);
+                close = java.util.Arrays.copyOf(close, capacity);
+                adjClose = java.util.Arrays.copyOf(adjClose, capacity);
+                volume = java.util.Arrays.copyOf(volume, capacity);
+            }
+
+            /**
+             * Creates a Stock for a bar.
+             * @param i The index of the bar
+             * @return The Stock object
+             */
+            Stock toStock(int i) {
+                return new Stock(symbol, close[i], toDate(days[i]), open[i], high[i], low[i], close[i], adjClose[i], (int) volume[i]);
+            }
+        }
+
+        /**
+         * Creates a columnar store from the contents of a tree.
+         * @param analyser The analyser holding the tree
+         * @return The columnar store
+         */
+        public static ColumnarStore from(StockAnalyser analyser) {
+            ColumnarStore store = new ColumnarStore();
+            for (Stock stock : analyser.getAllStocks()) store.insert(stock);
+            store.trimToSize();
+            return store;
+        }
+
+        /**
+         * Inserts a stock. Like the tree, a bar for an existing symbol and date is ignored.
+         * @param stock The stock to insert
+         */
+        public void insert(Stock stock) {
+            Series s = series.computeIfAbsent(stock.name, Series::new);
+            int day = toEpochDay(stock.date);
+            if (s.size == 0 || day > s.days[s.size - 1]) {
+                s.insertAt(s.size, day, stock);
+            } else {
+                int i = s.indexOf(day);
+                if (i >= 0) return;
+                s.insertAt(-i - 1, day, stock);
+            }
+            size++;
+        }
+
+        /**
+         * Shrinks every column to its number of bars.
+         */
+        public void trimToSize() {
+            for (Series s : series.values()) if (s.days.length != s.size) s.resize(Math.max(1, s.size));
+        }
+
+        /**
+         * Gets the number of bars in the store.
+         * @return The number of bars
+         */
+        public long size() {
+            return size;
+        }
+
+        /**
+         * Estimates the heap used by the columns, excluding the symbol map.
+         * @return The estimated size in bytes
+         */
+        public long estimatedBytes() {
+            long bytes = 0;
+            for (Series s : series.values()) bytes += 7 * 16 + (long) s.days.length * (4 + 5 * 8 + 8);
+            return bytes;
+        }
+
+        @Override
+        public Stock search(String symbol, Date date) {
+            Series s = series.get(symbol);
+            if (s == null) return null;
+            int i = s.indexOf(toEpochDay(date));
+            return i >= 0 ? s.toStock(i) : null;
+        }
+
+        @Override
+        public List<Stock> getAllStocks() {
+            List<Stock> stocks = new ArrayList<>();
+            for (Series s : series.values())
+                for (int i = 0; i < s.size; i++) stocks.add(s.toStock(i));
+            return stocks;
+        }
+
+        @Override
+        public void forEachStock(Consumer<Stock> action) {
+            for (Series s : series.values())
+                for (int i = 0; i < s.size; i++) action.accept(s.toStock(i));
+        }
+
+        @Override
+        public List<Stock> getStocksForDate(Date date) {
+            int day = toEpochDay(date);
+            List<Stock> stocks = new ArrayList<>();
+            for (Series s : series.values()) {
+                int i = s.indexOf(day);
+                if (i >= 0) stocks.add(s.toStock(i));
+            }
+            return stocks;
+        }
+
+        @Override
+        public double calculateSMA(String symbol, Date date, int period) {
+            Series s = series.get(symbol);
+            if (s == null) return 0;
+            int end = s.upperBound(toEpochDay(date));
+            if (end < period) return 0;
+
+            double sum = 0;
+            for (int i = end - 1; i >= end - period; i--) sum += s.close[i];
+            return sum / period;
+        }
+
+        @Override
+        public double getAverageVolume(String symbol, Date startDate, Date endDate) {
+            Series s = series.get(symbol);
+            if (s == null) return 0;
+            int from = s.lowerBound(toEpochDay(startDate));
+            int to = s.upperBound(toEpochDay(endDate));
+
+            long totalVolume = 0;
+            for (int i = from; i < to; i++) totalVolume += s.volume[i];
+            return to > from ? totalVolume / (double) (to - from) : 0;
+        }
+
+        @Override
+        public StockStats getStockStats(String symbol) {
+            StockStats stats = new StockStats();
+            Series s = series.get(symbol);
+            if (s == null) return stats;
+            for (int i = 0; i < s.size; i++) stats.add(s.open[i], s.high[i], s.low[i], s.volume[i]);
+            return stats;
+        }
+    }
+
+    /*
+     * Class: CompressedStore
+     * Description: This class is used to store each symbol's bars in compressed blocks of up to 128
+     *              bars in date order. Within a block the dates are delta-of-delta encoded and the
+     *              volumes are bit-packed relative to the block's minimum. A price column whose
+     *              values are all decimals with at most 6 places, as parsed from a CSV, is stored as
+     *              the changes of the scaled integers, packed the same way. Any other price column is
+     *              XOR encoded against the previous value as in Facebook's Gorilla, which is lossless
+     *              for every double but keeps most mantissa bits of a decimal price. Each column is
+     *              decoded on its own, so a scan decodes only the columns it reads. New bars collect
+     *              in an uncompressed tail until it fills a block. A bar older than the tail is
+     *              inserted by decoding and re-encoding its block.
+     *              Like ColumnarStore, bars are stored at day granularity and the price of a Stock is
+     *              its close.
+     * Author: Demetrius Chatterjee
+     * Github ID: DemetriusChatterjee
+     * Version: 1.0
+     */
+    public static class CompressedStore implements StockStore {
+        private static final int BLOCK_SIZE = 128;
+        private final Map<String, Series> series = new TreeMap<>();
+        private long size;
+
+        /*
+         * Class: Bars
+         * Description: This class is used to hold bars uncompressed, as the tail of a series or as a
+         *              decoded block.
+         * Author: Demetrius Chatterjee
+         * Github ID: DemetriusChatterjee
+         * Version: 1.0
+         */
+        private static class Bars {
+            int size;
+            int[] days;
+            double[] open;
+            double[] high;
+            double[] low;
+            double[] close;
+            double[] adjClose;
+            long[] volume;
+
+            Bars(int capacity) {
+                days = new int[capacity];
+                open = new double[capacity];
+                high = new double[capacity];
+                low = new double[capacity];
+                close = new double[capacity];
+                adjClose = new double[capacity];
+                volume = new long[capacity];
+            }
+
+            /**
+             * Inserts a bar at a position, shifting later bars right and growing the arrays if full.
+             * @param i The position
+             * @param day The epoch day
+             * @param stock The bar
+             */
+            void insertAt(int i, int day, Stock stock) {
+                if (size == days.length) {
+                    int capacity = Math.max(16, size * 2);
+                    days = java.util.Arrays.copyOf(days, capacity);
+                    open = java.util.Arrays.copyOf(open, capacity);
+                    high = java.util.Arrays.copyOf(high, capacity);
+                    low = java.util.Arrays.copyOf(low, capacity);
+                    close = java.util.Arrays.copyOf(close, capacity);
+                    adjClose = java.util.Arrays.copyOf(adjClose, capacity);
+                    volume = java.util.Arrays.copyOf(volume, capacity);
+                }
+                int moved = size - i;
+                if (moved > 0) {
+                    System.arraycopy(days, i, days, i + 1, moved);
+                    System.arraycopy(open, i, open, i + 1, moved);
+                    System.arraycopy(high, i, high, i + 1, moved);
+                    System.arraycopy(low, i, low, i + 1, moved);
+                    System.arraycopy(close, i, close, i + 1, moved);
+                    System.arraycopy(adjClose, i, adjClose, i + 1, moved);
+                    System.arraycopy(volume, i, volume, i + 1, moved);
+                }
+                days[i] = day;
+                open[i] = stock.open;
+                high[i] = stock.high;
+                low[i] = stock.low;
+                close[i] = stock.close;
+                adjClose[i] = stock.adjClose;
+                volume[i] = stock.volume;
+                size++;
+            }
+
+            /**
+             * Creates a Stock for a bar.
+             * @param symbol The stock symbol
+             * @param i The index of the bar
+             * @return The Stock object
+             */
+            Stock toStock(String symbol, int i) {
+                return new Stock(symbol, close[i], toDate(days[i]), open[i], high[i], low[i], close[i], adjClose[i], (int) volume[i]);
+            }
+        }
+
+        /*
+         * Class: BitWriter
+         * Description: This class is used to append bits to a growing array of longs, most
+         *              significant bit first.
+         * Author: Demetrius Chatterjee
+         * Github ID: DemetriusChatterjee
+         * Version: 1.0
+         */
+        private static class BitWriter {
+            long[] words = new long[64];
+            int position;
+
+            /**
+             * Appends the low bits of a value.
+             * @param value The value
+             * @param bits The number of bits to write, from 1 to 64
+             */
+            void write(long value, int bits) {
+                if (((position + bits + 63) >>> 6) > words.length) words = java.util.Arrays.copyOf(words, words.length * 2);
+                if (bits < 64) value &= (1L << bits) - 1;
+                int word = position >>> 6;
+                int offset = position & 63;
+                int free = 64 - offset;
+                if (bits <= free) {
+                    words[word] |= value << (free - bits);
+                } else {
+                    words[word] |= value >>> (bits - free);
+                    words[word + 1] |= value << (64 - (bits - free));
+                }
+                position += bits;
+            }
+
+            /**
+             * Appends the difference between a delta and the previous delta, using 1 bit when they
+             * are equal and a prefix that selects a 7, 9, 12 or 32 bit field otherwise.
+             * @param dod The delta of delta
+             */
+            void writeDeltaOfDelta(long dod) {
+                if (dod == 0) {
+                    write(0, 1);
+                } else if (dod >= -63 && dod <= 64) {
+                    write(0b10, 2);
+                    write(dod + 63, 7);
+                } else if (dod >= -255 && dod <= 256) {
+                    write(0b110, 3);
+                    write(dod + 255, 9);
+                } else if (dod >= -2047 && dod <= 2048) {
+                    write(0b1110, 4);
+                    write(dod + 2047, 12);
+                } else {
+                    write(0b1111, 4);
+                    write(dod, 32);
+                }
+            }
+
+            /**
+             * Appends a column of integers packed relative to their minimum: the number of bits
+             * needed for the largest difference from the minimum, the minimum itself, then each
+             * difference in that many bits. Unlike varints, no value is decoded with a branch on
+             * its length.
+             * @param values The integers
+             * @param from The index of the first integer
+             * @param to The index just past the last integer
+             */
+            void writePacked(long[] values, int from, int to) {
+                long min = to > from ? Long.MAX_VALUE : 0, max = to > from ? Long.MIN_VALUE : 0;
+                for (int i = from; i < to; i++) {
+                    min = Math.min(min, values[i]);
+                    max = Math.max(max, values[i]);
+                }
+                int width = 64 - Long.numberOfLeadingZeros(max - min);
+                write(width, 7);
+                write(min, 64);
+                if (width > 0) for (int i = from; i < to; i++) write(values[i] - min, width);
+            }
+
+            /**
+             * Gets the written bits.
+             * @return The words holding the bits, trimmed to the last used word
+             */
+            long[] toArray() {
+                return java.util.Arrays.copyOf(words, (position + 63) >>> 6);
+            }
+        }
+
+        /*
+         * Class: XorEncoder
+         * Description: This class is used to encode a column of doubles. A value equal to its
+         *              prediction takes 1 bit. Otherwise the XOR of the two is written as its
+         *              meaningful bits, reusing the previous leading and trailing zero counts when
+         *              the bits fit inside them.
+         * Author: Demetrius Chatterjee
+         * Github ID: DemetriusChatterjee
+         * Version: 1.0
+         */
+        private static class XorEncoder {
+            private final BitWriter out;
+            private int leading = -1;
+            private int trailing;
+
+            XorEncoder(BitWriter out) {
+                this.out = out;
+            }
+
+            /**
+             * Encodes a value against its prediction, usually the previous value of the column.
+             * @param value The value
+             * @param predicted The predicted value
+             */
+            void encode(double value, double predicted) {
+                long xor = Double.doubleToRawLongBits(value) ^ Double.doubleToRawLongBits(predicted);
+                if (xor == 0) {
+                    out.write(0, 1);
+                    return;
+                }
+                int lead = Math.min(31, Long.numberOfLeadingZeros(xor));
+                int trail = Long.numberOfTrailingZeros(xor);
+                if (leading >= 0 && lead >= leading && trail >= trailing) {
+                    out.write(0b10, 2);
+                    out.write(xor >>> trailing, 64 - leading - trailing);
+                } else {
+                    int length = 64 - lead - trail;
+                    out.write(0b11, 2);
+                    out.write(lead, 5);
+                    out.write(length - 1, 6);
+                    out.write(xor >>> trail, length);
+                    leading = lead;
+                    trailing = trail;
+                }
+            }
+        }
+
+        /*
+         * Class: BitReader
+         * Description: This class is used to read back the bits written by a BitWriter.
+         * Author: Demetrius Chatterjee
+         * Github ID: DemetriusChatterjee
+         * Version: 1.0
+         */
+        private static class BitReader {
+            private final long[] words;
+            private int position;
+
+            BitReader(long[] words, int position) {
+                this.words = words;
+                this.position = position;
+            }
+
+            /**
+             * Reads bits as an unsigned value.
+             * @param bits The number of bits to read, from 1 to 64
+             * @return The value
+             */
+            long read(int bits) {
+                int word = position >>> 6;
+                int offset = position & 63;
+                long value = words[word] << offset;
+                if (offset + bits > 64) value |= words[word + 1] >>> (64 - offset);
+                position += bits;
+                return value >>> (64 - bits);
+            }
+
+            /**
+             * Reads the next integer of a column written by writePacked.
+             * @param width The number of bits per integer, read from the start of the column
+             * @param min The minimum, read from the start of the column
+             * @return The integer
+             */
+            long readPacked(int width, long min) {
+                return width == 0 ? min : min + read(width);
+            }
+
+            /**
+             * Reads a delta of delta written by writeDeltaOfDelta.
+             * @return The delta of delta
+             */
+            long readDeltaOfDelta() {
+                if (read(1) == 0) return 0;
+                if (read(1) == 0) return read(7) - 63;
+                if (read(1) == 0) return read(9) - 255;
+                if (read(1) == 0) return read(12) - 2047;
+                return (int) read(32);
+            }
+
+            /**
+             * Reads a column of doubles written by XorEncoder.
+             * @param out The array to decode into
+             * @param n The number of values
+             * @param predictions The predictions the values were encoded against, or null when each
+             *                    value was predicted by the previous one (and the first by 0)
+             */
+            void readXor(double[] out, int n, double[] predictions) {
+                int leading = 0, trailing = 0;
+                long previous = 0;
+                for (int i = 0; i < n; i++) {
+                    if (predictions != null) previous = Double.doubleToRawLongBits(predictions[i]);
+                    if (read(1) != 0) {
+                        if (read(1) != 0) {
+                            leading = (int) read(5);
+                            trailing = 64 - leading - ((int) read(6) + 1);
+                        }
+                        previous ^= read(64 - leading - trailing) << trailing;
+                    }
+                    out[i] = Double.longBitsToDouble(previous);
+                }
+            }
+        }
+
+        /*
+         * Class: Block
+         * Description: This class is used to hold up to a few hundred bars of one symbol compressed.
+         *              The columns are stored one after another in the same bit stream, and each
+         *              column's start is kept so it can be decoded on its own.
+         * Author: Demetrius Chatterjee
+         * Github ID: DemetriusChatterjee
+         * Version: 1.0
+         */
+        private static class Block {
+            static final int DAYS = 0, OPEN = 1, HIGH = 2, LOW = 3, CLOSE = 4, ADJ_CLOSE = 5, VOLUME = 6;
+            static final int MAX_DECIMALS = 6, XOR_ENCODED = 7;
+
+            final int count;
+            final int firstDay;
+            final int lastDay;
+            final long[] bits;
+            final int[] columnStarts;
+            final byte[] decimals;
+
+            /**
+             * Compresses a range of bars.
+             * @param bars The bars
+             * @param from The index of the first bar
+             * @param to The index just past the last bar
+             */
+            Block(Bars bars, int from, int to) {
+                count = to - from;
+                firstDay = bars.days[from];
+                lastDay = bars.days[to - 1];
+                columnStarts = new int[7];
+                decimals = new byte[7];
+                BitWriter out = new BitWriter();
+
+                long delta = 1;
+                for (int i = from + 1; i < to; i++) {
+                    long next = (long) bars.days[i] - bars.days[i - 1];
+                    out.writeDeltaOfDelta(next - delta);
+                    delta = next;
+                }
+                double[][] columns = { bars.open, bars.high, bars.low, bars.close };
+                long[] deltas = new long[count];
+                for (int c = 0; c < columns.length; c++) {
+                    columnStarts[OPEN + c] = out.position;
+                    decimals[OPEN + c] = (byte) decimalPlaces(columns[c], from, to);
+                    if (decimals[OPEN + c] == XOR_ENCODED) {
+                        XorEncoder encoder = new XorEncoder(out);
+                        double previous = 0;
+                        for (int i = from; i < to; i++) {
+                            encoder.encode(columns[c][i], previous);
+                            previous = columns[c][i];
+                        }
+                    } else {
+                        // The first scaled price in full, then the changes from one bar to the next
+                        double scale = POW10[decimals[OPEN + c]];
+                        long previous = Math.round(columns[c][from] * scale);
+                        out.write(previous, 64);
+                        for (int i = from + 1; i < to; i++) {
+                            long scaled = Math.round(columns[c][i] * scale);
+                            deltas[i - from - 1] = scaled - previous;
+                            previous = scaled;
+                        }
+                        out.writePacked(deltas, 0, count - 1);
+                    }
+                }
+                // The adjusted close is predicted by the close of the same bar, which it usually equals
+                columnStarts[ADJ_CLOSE] = out.position;
+                XorEncoder adjusted = new XorEncoder(out);
+                for (int i = from; i < to; i++) adjusted.encode(bars.adjClose[i], bars.close[i]);
+                columnStarts[VOLUME] = out.position;
+                out.writePacked(bars.volume, from, to);
+                bits = out.toArray();
+            }
+
+            /**
+             * Finds the fewest decimal places that give back every value of a column exactly when
+             * its scaled integer is divided by the power of ten, as the CSV parser computes it.
+             * @param values The column
+             * @param from The index of the first value
+             * @param to The index just past the last value
+             * @return The number of decimal places, or XOR_ENCODED if no number up to MAX_DECIMALS works
+             */
+            private static int decimalPlaces(double[] values, int from, int to) {
+                for (int decimals = 0; decimals <= MAX_DECIMALS; decimals++) {
+                    boolean exact = true;
+                    for (int i = from; i < to && exact; i++) {
+                        double scaled = values[i] * POW10[decimals];
+                        exact = Math.abs(scaled) < 1e15 && Double.doubleToRawLongBits(Math.round(scaled) / POW10[decimals])
+                                == Double.doubleToRawLongBits(values[i]);
+                    }
+                    if (exact) return decimals;
+                }
+                return XOR_ENCODED;
+            }
+
+            /**
+             * Decodes the dates.
+             * @param out The array to decode into, with room for count days
+             */
+            void decodeDays(int[] out) {
+                BitReader in = new BitReader(bits, 0);
+                int day = firstDay;
+                long delta = 1;
+                out[0] = day;
+                for (int i = 1; i < count; i++) {
+                    delta += in.readDeltaOfDelta();
+                    out[i] = day += (int) delta;
+                }
+            }
+
+            /**
+             * Decodes the first values of one of the price columns.
+             * @param column OPEN, HIGH, LOW or CLOSE
+             * @param out The array to decode into
+             * @param n The number of values to decode
+             */
+            void decodePrices(int column, double[] out, int n) {
+                BitReader in = new BitReader(bits, columnStarts[column]);
+                if (decimals[column] == XOR_ENCODED) {
+                    in.readXor(out, n, null);
+                } else {
+                    double divisor = POW10[decimals[column]];
+                    long scaled = in.read(64);
+                    int width = (int) in.read(7);
+                    long min = in.read(64);
+                    if (n > 0) out[0] = scaled / divisor;
+                    for (int i = 1; i < n; i++) {
+                        scaled += in.readPacked(width, min);
+                        out[i] = scaled / divisor;
+                    }
+                }
+            }
+
+            /**
+             * Decodes the first adjusted closes.
+             * @param close The decoded closes of the block
+             * @param out The array to decode into
+             * @param n The number of values to decode
+             */
+            void decodeAdjustedCloses(double[] close, double[] out, int n) {
+                new BitReader(bits, columnStarts[ADJ_CLOSE]).readXor(out, n, close);
+            }
+
+            /**
+             * Decodes the first volumes.
+             * @param out The array to decode into
+             * @param n The number of values to decode
+             */
+            void decodeVolumes(long[] out, int n) {
+                BitReader in = new BitReader(bits, columnStarts[VOLUME]);
+                int width = (int) in.read(7);
+                long min = in.read(64);
+                for (int i = 0; i < n; i++) out[i] = in.readPacked(width, min);
+            }
+
+            /**
+             * Decodes every column of the first bars.
+             * @param n The number of bars to decode
+             * @return The decoded bars
+             */
+            Bars decode(int n) {
+                Bars bars = new Bars(count);
+                decodeDays(bars.days);
+                decodePrices(OPEN, bars.open, n);
+                decodePrices(HIGH, bars.high, n);
+                decodePrices(LOW, bars.low, n);
+                decodePrices(CLOSE, bars.close, n);
+                decodeAdjustedCloses(bars.close, bars.adjClose, n);
+                decodeVolumes(bars.volume, n);
+                bars.size = n;
+                return bars;
+            }
+
+            /**
+             * Estimates the heap used by the block.
+             * @return The estimated size in bytes
+             */
+            long estimatedBytes() {
+                return 32 + 16 + 8L * bits.length + 16 + 4 * 7 + 16 + 7;
+            }
+        }
+
+        /*
+         * Class: Series
+         * Description: This class is used to store the bars of one symbol as compressed blocks
+         *              followed by an uncompressed tail, in date order.
+         * Author: Demetrius Chatterjee
+         * Github ID: DemetriusChatterjee
+         * Version: 1.0
+         */
+        private static class Series {
+            final String symbol;
+            Block[] blocks = new Block[4];
+            int blockCount;
+            Bars tail = new Bars(16);
+
+            Series(String symbol) {
+                this.symbol = symbol;
+            }
+
+            /**
+             * Finds the block that holds a day, if it is not in the tail.
+             * @param day The epoch day
+             * @return The index of the last block starting on or before the day, or -1 if there is none
+             */
+            int blockOf(int day) {
+                int lo = 0, hi = blockCount - 1;
+                while (lo <= hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (blocks[mid].firstDay <= day) lo = mid + 1;
+                    else hi = mid - 1;
+                }
+                return hi;
+            }
+
+            /**
+             * Inserts a bar. A bar for an existing date is ignored.
+             * @param day The epoch day
+             * @param stock The bar
+             * @return true if the bar was inserted
+             */
+            boolean insert(int day, Stock stock) {
+                if (blockCount == 0 || day > blocks[blockCount - 1].lastDay) {
+                    int i = java.util.Arrays.binarySearch(tail.days, 0, tail.size, day);
+                    if (i >= 0) return false;
+                    tail.insertAt(-i - 1, day, stock);
+                    if (tail.size == BLOCK_SIZE) {
+                        append(new Block(tail, 0, tail.size));
+                        tail = new Bars(16);
+                    }
+                    return true;
+                }
+
+                int b = Math.max(0, blockOf(day));
+                Bars bars = blocks[b].decode(blocks[b].count);
+                int i = java.util.Arrays.binarySearch(bars.days, 0, bars.size, day);
+                if (i >= 0) return false;
+                bars.insertAt(-i - 1, day, stock);
+                if (bars.size < 2 * BLOCK_SIZE) {
+                    blocks[b] = new Block(bars, 0, bars.size);
+                } else {
+                    append(null);
+                    System.arraycopy(blocks, b + 1, blocks, b + 2, blockCount - b - 2);
+                    blocks[b] = new Block(bars, 0, BLOCK_SIZE);
+                    blocks[b + 1] = new Block(bars, BLOCK_SIZE, bars.size);
+                }
+                return true;
+            }
+
+            /**
+             * Adds a block after the last one.
+             * @param block The block, or null to make room for one
+             */
+            private void append(Block block) {
+                if (blockCount == blocks.length) blocks = java.util.Arrays.copyOf(blocks, blockCount * 2);
+                blocks[blockCount++] = block;
+            }
+
+            /**
+             * Checks whether a day belongs in the tail rather than in a block.
+             * @param day The epoch day
+             * @return true if the day is on or after the first bar of the tail, or there are no blocks
+             */
+            boolean inTail(int day) {
+                return tail.size > 0 && day >= tail.days[0] || blockCount == 0;
+            }
+
+            /**
+             * Compresses the bars in the tail into a block of their own.
+             */
+            void sealTail() {
+                if (tail.size > 0) append(new Block(tail, 0, tail.size));
+                tail = new Bars(0);
+            }
+        }
+
+        /**
+         * Creates a compressed store from the contents of a tree.
+         * @param analyser The analyser holding the tree
+         * @return The compressed store
+         */
+        public static CompressedStore from(StockAnalyser analyser) {
+            CompressedStore store = new CompressedStore();
+            analyser.forEachStock(store::insert);
+            store.trimToSize();
+            return store;
+        }
+
+        /**
+         * Inserts a stock. Like the tree, a bar for an existing symbol and date is ignored.
+         * @param stock The stock to insert
+         */
+        public void insert(Stock stock) {
+            if (series.computeIfAbsent(stock.name, Series::new).insert(toEpochDay(stock.date), stock)) size++;
+        }
+
+        /**
+         * Compresses the bars waiting in each uncompressed tail and shrinks the block arrays, so the
+         * store holds only blocks until more bars are inserted.
+         */
+        public void trimToSize() {
+            for (Series s : series.values()) {
+                s.sealTail();
+                s.blocks = java.util.Arrays.copyOf(s.blocks, Math.max(1, s.blockCount));
+            }
+        }
+
+        /**
+         * Gets the number of bars in the store.
+         * @return The number of bars
+         */
+        public long size() {
+            return size;
+        }
+
+        /**
+         * Estimates the heap used by the blocks and tails, excluding the symbol map.
+         * @return The estimated size in bytes
+         */
+        public long estimatedBytes() {
+            long bytes = 0;
+            for (Series s : series.values()) {
+                bytes += 16 + 16 + 4L * s.blocks.length + 7 * 16 + (long) s.tail.days.length * (4 + 5 * 8 + 8);
+                for (int b = 0; b < s.blockCount; b++) bytes += s.blocks[b].estimatedBytes();
+            }
+            return bytes;
+        }
+
+        @Override
+        public Stock search(String symbol, Date date) {
+            Series s = series.get(symbol);
+            if (s == null) return null;
+            int day = toEpochDay(date);
+            if (s.inTail(day)) {
+                int i = java.util.Arrays.binarySearch(s.tail.days, 0, s.tail.size, day);
+                return i >= 0 ? s.tail.toStock(symbol, i) : null;
+            }
+            int b = s.blockOf(day);
+            if (b < 0) return null;
+            Block block = s.blocks[b];
+            int[] days = new int[block.count];
+            block.decodeDays(days);
+            int i = java.util.Arrays.binarySearch(days, day);
+            return i >= 0 ? block.decode(i + 1).toStock(symbol, i) : null;
+        }
+
+        @Override
+        public List<Stock> getAllStocks() {
+            List<Stock> stocks = new ArrayList<>();
+            forEachStock(stocks::add);
+            return stocks;
+        }
+
+        @Override
+        public void forEachStock(Consumer<Stock> action) {
+            for (Series s : series.values()) {
+                for (int b = 0; b < s.blockCount; b++) {
+                    Bars bars = s.blocks[b].decode(s.blocks[b].count);
+                    for (int i = 0; i < bars.size; i++) action.accept(bars.toStock(s.symbol, i));
+                }
+                for (int i = 0; i < s.tail.size; i++) action.accept(s.tail.toStock(s.symbol, i));
+            }
+        }
+
+        @Override
+        public List<Stock> getStocksForDate(Date date) {
+            List<Stock> stocks = new ArrayList<>();
+            for (String symbol : series.keySet()) {
+                Stock stock = search(symbol, date);
+                if (stock != null) stocks.add(stock);
+            }
+            return stocks;
+        }
+
+        @Override
+        public double calculateSMA(String symbol, Date date, int period) {
+            Series s = series.get(symbol);
+            if (s == null || period <= 0) return 0;
+            int day = toEpochDay(date);
+
+            // Walk back from the block holding the date, decoding only the days and closes
+            int b = s.inTail(day) ? s.blockCount : s.blockOf(day);
+            int[] days = new int[2 * BLOCK_SIZE];
+            double[] close = new double[2 * BLOCK_SIZE];
+            double sum = 0;
+            int remaining = period;
+            for (boolean first = true; b >= 0 && remaining > 0; b--, first = false) {
+                int end;
+                double[] closes;
+                if (b == s.blockCount) {
+                    closes = s.tail.close;
+                    end = first ? upperBound(s.tail.days, s.tail.size, day) : s.tail.size;
+                } else {
+                    Block block = s.blocks[b];
+                    closes = close;
+                    if (first) {
+                        block.decodeDays(days);
+                        end = upperBound(days, block.count, day);
+                    } else {
+                        end = block.count;
+                    }
+                    block.decodePrices(Block.CLOSE, close, block.count);
+                }
+                for (int i = end - 1; i >= 0 && remaining > 0; i--, remaining--) sum += closes[i];
+            }
+            return remaining > 0 ? 0 : sum / period;
+        }
+
+        @Override
+        public double getAverageVolume(String symbol, Date startDate, Date endDate) {
+            Series s = series.get(symbol);
+            if (s == null) return 0;
+            int from = toEpochDay(startDate);
+            int to = toEpochDay(endDate);
+
+            long totalVolume = 0;
+            int count = 0;
+            int[] days = new int[2 * BLOCK_SIZE];
+            long[] volume = new long[2 * BLOCK_SIZE];
+            for (int b = Math.max(0, s.blockOf(from)); b < s.blockCount && s.blocks[b].firstDay <= to; b++) {
+                Block block = s.blocks[b];
+                if (block.lastDay < from) continue;
+                block.decodeVolumes(volume, block.count);
+                if (block.firstDay >= from && block.lastDay <= to) {
+                    for (int i = 0; i < block.count; i++) totalVolume += volume[i];
+                    count += block.count;
+                } else {
+                    block.decodeDays(days);
+                    for (int i = 0; i < block.count; i++) {
+                        if (days[i] >= from && days[i] <= to) {
+                            totalVolume += volume[i];
+                            count++;
+                        }
+                    }
+                }
+            }
+            for (int i = 0; i < s.tail.size; i++) {
+                if (s.tail.days[i] >= from && s.tail.days[i] <= to) {
+                    totalVolume += s.tail.volume[i];
+                    count++;
+                }
+            }
+            return count > 0 ? totalVolume / (double) count : 0;
+        }
+
+        @Override
+        public StockStats getStockStats(String symbol) {
+            StockStats stats = new StockStats();
+            Series s = series.get(symbol);
+            if (s == null) return stats;
+            double[] open = new double[2 * BLOCK_SIZE];
+            double[] high = new double[2 * BLOCK_SIZE];
+            double[] low = new double[2 * BLOCK_SIZE];
+            long[] volume = new long[2 * BLOCK_SIZE];
+            for (int b = 0; b < s.blockCount; b++) {
+                Block block = s.blocks[b];
+                block.decodePrices(Block.OPEN, open, block.count);
+                block.decodePrices(Block.HIGH, high, block.count);
+                block.decodePrices(Block.LOW, low, block.count);
+                block.decodeVolumes(volume, block.count);
+                for (int i = 0; i < block.count; i++) stats.add(open[i], high[i], low[i], volume[i]);
+            }
+            Bars tail = s.tail;
+            for (int i = 0; i < tail.size; i++) stats.add(tail.open[i], tail.high[i], tail.low[i], tail.volume[i]);
+            return stats;
+        }
+
+        /**
+         * Gets the number of days on or before a day in a sorted array.
+         * @param days The sorted days
+         * @param n The number of days in use
+         * @param day The epoch day
+         * @return The index just past the last day on or before the day
+         */
+        private static int upperBound(int[] days, int n, int day) {
+            int i = java.util.Arrays.binarySearch(days, 0, n, day);
+            return i >= 0 ? i + 1 : -i - 1;
+        }
+    }
+
+    /*
+     * Class: IndicatorEngine
+     * Description: This class is used to keep technical indicators up to date as bars arrive.
+     *              Each symbol holds its closes in date order and one rolling state per tracked
+     *              (indicator, period), so a bar that extends the series updates every indicator in
+     *              O(1), or O(period) for SMA and BOLLINGER, and its value is stored for later date
+     *              lookups. SMA windows are summed newest to oldest like calculateSMA, so the stored
+     *              values are exactly the ones a scan would return. A bar older than the latest
+     *              one is inserted in place and that symbol's indicators are recomputed.
+     *              Like calculateSMA, a value is 0 until there are enough bars for the period.
+     * Author: Demetrius Chatterjee
+     * Github ID: DemetriusChatterjee
+     * Version: 1.0
+     */
+    public static class IndicatorEngine {
+        /**
+         * The supported indicators. BOLLINGER stores the SMA as its value and the standard deviation
+         * of the closes alongside it.
+         */
+        public enum Indicator { SMA, EMA, RSI, BOLLINGER }
+
+        private final List<Indicator> trackedIndicators = new ArrayList<>();
+        private final List<Integer> trackedPeriods = new ArrayList<>();
+        private final Map<String, SymbolSeries> symbols = new HashMap<>();
+
+        /*
+         * Class: SymbolSeries
+         * Description: This class is used to hold the closes and indicator series of one symbol.
+         * Author: Demetrius Chatterjee
+         * Github ID: DemetriusChatterjee
+         * Version: 1.0
+         */
+        private static class SymbolSeries {
+            int size;
+            int[] days = new int[16];
+            double[] closes = new double[16];
+            List<Series> series = new ArrayList<>();
+
+            /**
+             * Finds the number of bars on or before a day.
+             * @param day The epoch day
+             * @return The index just past the last bar on or before the day
+             */
+            int upperBound(int day) {
+                int i = java.util.Arrays.binarySearch(days, 0, size, day);
+                return i >= 0 ? i + 1 : -i - 1;
+            }
+        }
+
+        /*
+         * Class: Series
+         * Description: This class is used to hold the values and rolling state of one indicator.
+         * Author: Demetrius Chatterjee
+         * Github ID: DemetriusChatterjee
+         * Version: 1.0
+         */
+        private static class Series {
+            final Indicator indicator;
+            final int period;
+            double[] values = new double[16];
+            double[] deviations;
+            double sum;
+            double ema;
+            double avgGain;
+            double avgLoss;
+
+            Series(Indicator indicator, int period) {
+                this.indicator = indicator;
+                this.period = period;
+                if (indicator == Indicator.BOLLINGER) deviations = new double[16];
+            }
+
+            /**
+             * Clears the rolling state before recomputing from the first bar.
+             */
+            void reset() {
+                sum = ema = avgGain = avgLoss = 0;
+            }
+
+            /**
+             * Computes the value at bar i from the rolling state and bars i - period .. i.
+             * @param c The closes of the symbol
+             * @param i The index of the new bar
+             */
+            void push(double[] c, int i) {
+                if (values.length <= i) {
+                    values = java.util.Arrays.copyOf(values, c.length);
+                    if (deviations != null) deviations = java.util.Arrays.copyOf(deviations, c.length);
+                }
+                double value = 0;
+                switch (indicator) {
+                    case SMA:
+                    case BOLLINGER:
+                        if (deviations != null) deviations[i] = 0;
+                        if (i + 1 < period) break;
+                        // A rolling sum drifts from a fresh one, so sum the window newest to oldest like calculateSMA
+                        double windowSum = 0, windowSquares = 0;
+                        for (int j = i; j > i - period; j--) {
+                            windowSum += c[j];
+                            windowSquares += c[j] * c[j];
+                        }
+                        value = windowSum / period;
+                        if (deviations != null) deviations[i] = Math.sqrt(Math.max(0, windowSquares / period - value * value));
+                        break;
+                    case EMA:
+                        if (i + 1 < period) {
+                            sum += c[i];
+                        } else if (i + 1 == period) {
+                            ema = (sum + c[i]) / period;
+                            value = ema;
+                        } else {
+                            ema += 2.0 / (period + 1) * (c[i] - ema);
+                            value = ema;
+                        }
+                        break;
+                    case RSI:
+                        if (i == 0) break;
+                        double change = c[i] - c[i - 1];
+                        double gain = Math.max(change, 0);
+                        double loss = Math.max(-change, 0);
+                        if (i <= period) {
+                            avgGain += gain / period;
+                            avgLoss += loss / period;
+                            if (i < period) break;
+                        } else {
+                            avgGain = (avgGain * (period - 1) + gain) / period;
+                            avgLoss = (avgLoss * (period - 1) + loss) / period;
+                        }
+                        value = avgLoss == 0 ? 100 : 100 - 100 / (1 + avgGain / avgLoss);
+                        break;
+                }
+                values[i] = value;
+            }
+        }
+
+        /**
+         * Starts tracking an indicator for every symbol, computing its history for the bars seen so far.
+         * @param indicator The indicator
+         * @param period The number of bars in its window
+         */
+        public void track(Indicator indicator, int period) {
+            if (isTracked(indicator, period)) return;
+            trackedIndicators.add(indicator);
+            trackedPeriods.add(period);
+            for (SymbolSeries s : symbols.values()) {
+                Series series = new Series(indicator, period);
+                s.series.add(series);
+                for (int i = 0; i < s.size; i++) series.push(s.closes, i);
+            }
+        }
+
+        /**
+         * Checks whether an indicator is tracked.
+         * @param indicator The indicator
+         * @param period The number of bars in its window
+         * @return true if it is tracked, false otherwise
+         */
+        public boolean isTracked(Indicator indicator, int period) {
+            for (int i = 0; i < trackedIndicators.size(); i++)
+                if (trackedIndicators.get(i) == indicator && trackedPeriods.get(i) == period) return true;
+            return false;
+        }
+
+        /**
+         * Adds a new bar and updates every tracked indicator of its symbol.
+         * @param stock The new bar
+         */
+        public void onBar(Stock stock) {
+            SymbolSeries s = symbols.get(stock.name);
+            if (s == null) {
+                s = new SymbolSeries();
+                for (int i = 0; i < trackedIndicators.size(); i++)
+                    s.series.add(new Series(trackedIndicators.get(i), trackedPeriods.get(i)));
+                symbols.put(stock.name, s);
+            }
+            int day = toEpochDay(stock.date);
+            if (s.size == s.days.length) {
+                s.days = java.util.Arrays.copyOf(s.days, s.size * 2);
+                s.closes = java.util.Arrays.copyOf(s.closes, s.size * 2);
+            }
+
+            if (s.size == 0 || day > s.days[s.size - 1]) {
+                s.days[s.size] = day;
+                s.closes[s.size] = stock.close;
+                for (Series series : s.series) series.push(s.closes, s.size);
+                s.size++;
+                return;
+            }
+
+            int i = s.upperBound(day);
+            if (i > 0 && s.days[i - 1] == day) return;
+            System.arraycopy(s.days, i, s.days, i + 1, s.size - i);
+            System.arraycopy(s.closes, i, s.closes, i + 1, s.size - i);
+            s.days[i] = day;
+            s.closes[i] = stock.close;
+            s.size++;
+            for (Series series : s.series) {
+                series.reset();
+                for (int j = 0; j < s.size; j++) series.push(s.closes, j);
+            }
+        }
+
+        /**
+         * Removes a bar and recomputes the indicators of its symbol.
+         * @param stock The bar to remove
+         */
+        public void onBarRemoved(Stock stock) {
+            SymbolSeries s = symbols.get(stock.name);
+            if (s == null) return;
+            int i = s.upperBound(toEpochDay(stock.date)) - 1;
+            if (i < 0 || s.days[i] != toEpochDay(stock.date)) return;
+            System.arraycopy(s.days, i + 1, s.days, i, s.size - i - 1);
+            System.arraycopy(s.closes, i + 1, s.closes, i, s.size - i - 1);
+            s.size--;
+            for (Series series : s.series) {
+                series.reset();
+                for (int j = 0; j < s.size; j++) series.push(s.closes, j);
+            }
+        }
+
+        /**
+         * Finds the series of an indicator for a symbol.
+         * @param symbol The stock symbol
+         * @param indicator The indicator
+         * @param period The number of bars in its window
+         * @return The series, or null if the symbol is unknown
+         * @throws IllegalArgumentException if the indicator is not tracked
+         */
+        private Series series(String symbol, Indicator indicator, int period) {
+            if (!isTracked(indicator, period))
+                throw new IllegalArgumentException(indicator + "(" + period + ") is not tracked");
+            SymbolSeries s = symbols.get(symbol);
+            if (s == null) return null;
+            for (Series series : s.series)
+                if (series.indicator == indicator && series.period == period) return series;
+            return null;
+        }
+
+        /**
+         * Gets the value of an indicator at the latest bar of a symbol.
+         * @param symbol The stock symbol
+         * @param indicator The indicator
+         * @param period The number of bars in its window
+         * @return The value, or 0 if there are not enough bars
+         */
+        public double latest(String symbol, Indicator indicator, int period) {
+            Series series = series(symbol, indicator, period);
+            int size = series != null ? symbols.get(symbol).size : 0;
+            return size > 0 ? series.values[size - 1] : 0;
+        }
+
+        /**
+         * Gets the value of an indicator at the last bar of a symbol on or before a date.
+         * @param symbol The stock symbol
+         * @param indicator The indicator
+         * @param period The number of bars in its window
+         * @param date The date
+         * @return The value, or 0 if there are not enough bars
+         */
+        public double valueAt(String symbol, Indicator indicator, int period, Date date) {
+            Series series = series(symbol, indicator, period);
+            if (series == null) return 0;
+            int i = symbols.get(symbol).upperBound(toEpochDay(date));
+            return i > 0 ? series.values[i - 1] : 0;
+        }
+
+        /**
+         * Gets the Bollinger bands of a symbol on or before a date.
+         * @param symbol The stock symbol
+         * @param period The number of bars in the window
+         * @param width The number of standard deviations between the middle and outer bands
+         * @param date The date
+         * @return The lower, middle and upper bands, or null if there are not enough bars
+         */
+        public double[] bollingerAt(String symbol, int period, double width, Date date) {
+            Series series = series(symbol, Indicator.BOLLINGER, period);
+            if (series == null) return null;
+            int i = symbols.get(symbol).upperBound(toEpochDay(date));
+            if (i < period) return null;
+            double middle = series.values[i - 1];
+            double deviation = series.deviations[i - 1];
+            return new double[] { middle - width * deviation, middle, middle + width * deviation };
+        }
+
+        /**
+         * Gets the SMA-crossover trend of a symbol on or before a date, like getPriceTrend.
+         * @param symbol The stock symbol
+         * @param date The date
+         * @return The price trend
+         */
+        public String trend(String symbol, Date date) {
+            double shortSMA = valueAt(symbol, Indicator.SMA, 5, date);
+            double longSMA = valueAt(symbol, Indicator.SMA, 20, date);
+
+            if (shortSMA == 0 || longSMA == 0) return "Insufficient data";
+            return shortSMA > longSMA ? "Upward Trend" : "Downward Trend";
+        }
+    }
+
+    /*
+     * Class: QueryCache
+     * Description: This class is used to remember the results of repeated analytics queries. Results
+     *              are kept in an access-ordered LinkedHashMap, so once it holds capacity entries the
+     *              least recently used one is evicted. Each symbol also keeps the set of its cached
+     *              keys, so a new bar only drops the entries of its own symbol. The cache is
+     *              synchronized because readers of a ConcurrentStore share it; inserts already run
+     *              alone under the write lock, so a result can never be computed across an insert.
+     * Author: Demetrius Chatterjee
+     * Github ID: DemetriusChatterjee
+     * Version: 1.0
+     */
+    public static class QueryCache {
+        /**
+         * The cached query types.
+         */
+        public enum Query { SMA, TREND, AVERAGE_VOLUME }
+
+        private final int capacity;
+        private final java.util.LinkedHashMap<Key, Object> entries;
+        private final Map<String, java.util.Set<Key>> bySymbol = new HashMap<>();
+        private long hits;
+        private long misses;
+        private long evictions;
+        private long invalidations;
+
+        /*
+         * Class: Key
+         * Description: This class is used to identify a query by its type, symbol and arguments.
+         *              Dates are stored as epoch days, which is the granularity the queries use.
+         * Author: Demetrius Chatterjee
+         * Github ID: DemetriusChatterjee
+         * Version: 1.0
+         */
+        static final class Key {
+            final Query query;
+            final String symbol;
+            final int first;
+            final int second;
+
+            Key(Query query, String symbol, int first, int second) {
+                this.query = query;
+                this.symbol = symbol;
+                this.first = first;
+                this.second = second;
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (!(o instanceof Key)) return false;
+                Key other = (Key) o;
+                return query == other.query && first == other.first && second == other.second && symbol.equals(other.symbol);
+            }
+
+            @Override
+            public int hashCode() {
+                return ((query.hashCode() * 31 + symbol.hashCode()) * 31 + first) * 31 + second;
+            }
+        }
+
+        public QueryCache(int capacity) {
+            if (capacity <= 0) throw new IllegalArgumentException("Cache capacity must be positive: " + capacity);
+            this.capacity = capacity;
+            this.entries = new java.util.LinkedHashMap<Key, Object>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+                    if (size() <= QueryCache.this.capacity) return false;
+                    evictions++;
+                    forget(eldest.getKey());
+                    return true;
+                }
+            };
+        }
+
+        /**
+         * Looks up a cached result and marks it as recently used.
+         * @param key The query
+         * @return The result, or null if it is not cached
+         */
+        synchronized Object get(Key key) {
+            Object value = entries.get(key);
+            if (value != null) hits++;
+            else misses++;
+            return value;
+        }
+
+        /**
+         * Caches a result, evicting the least recently used entry if the cache is full.
+         * @param key The query
+         * @param value The result
+         */
+        synchronized void put(Key key, Object value) {
+            if (entries.put(key, value) == null) bySymbol.computeIfAbsent(key.symbol, symbol -> new java.util.HashSet<>()).add(key);
+        }
+
+        /**
+         * Removes a key from the index of its symbol.
+         * @param key The evicted key
+         */
+        private void forget(Key key) {
+            java.util.Set<Key> keys = bySymbol.get(key.symbol);
+            keys.remove(key);
+            if (keys.isEmpty()) bySymbol.remove(key.symbol);
+        }
+
+        /**
+         * Drops every cached result of a symbol.
+         * @param symbol The stock symbol
+         */
+        public synchronized void invalidate(String symbol) {
+            java.util.Set<Key> keys = bySymbol.remove(symbol);
+            if (keys == null) return;
+            for (Key key : keys) entries.remove(key);
+            invalidations += keys.size();
+        }
+
+        /**
+         * Drops every cached result.
+         */
+        public synchronized void clear() {
+            invalidations += entries.size();
+            entries.clear();
+            bySymbol.clear();
+        }
+
+        /**
+         * Gets the number of lookups that found a cached result.
+         * @return The number of hits
+         */
+        public synchronized long hits() {
+            return hits;
+        }
+
+        /**
+         * Gets the number of lookups that did not find a cached result.
+         * @return The number of misses
+         */
+        public synchronized long misses() {
+            return misses;
+        }
+
+        /**
+         * Gets the number of entries dropped to make room for new ones.
+         * @return The number of evictions
+         */
+        public synchronized long evictions() {
+            return evictions;
+        }
+
+        /**
+         * Gets the number of entries dropped because their symbol changed.
+         * @return The number of invalidated entries
+         */
+        public synchronized long invalidations() {
+            return invalidations;
+        }
+
+        /**
+         * Gets the number of cached results.
+         * @return The number of entries
+         */
+        public synchronized int size() {
+            return entries.size();
+        }
+
+        @Override
+        public synchronized String toString() {
+            long lookups = hits + misses;
+            return String.format("%d/%d entries, %d hits, %d misses (%.1f%% hit rate), %d evictions, %d invalidations",
+                    entries.size(), capacity, hits, misses, lookups > 0 ? hits * 100.0 / lookups : 0, evictions, invalidations);
+        }
+    }
+
+    /**
+     * Computes SMAs and the trend label for every symbol on every date and writes them to a CSV file.
+     * The stocks are streamed with forEachStock and cut into symbols, each symbol's sliding windows
+     * are computed on a fork-join pool, and finished symbols are written in symbol order while later
+     * ones are still being read. Only the symbols in flight are held in memory, unless the store
+     * builds its forEachStock on getAllStocks. The trend compares the first two periods like
+     * getPriceTrend.
+     * @param store The store holding the stocks
+     * @param filename The path of the output CSV file
+     * @param periods The SMA periods, e.g. 5, 20, 50 and 200
+     * @return The number of rows written
+     * @throws RuntimeException if the file cannot be written
+     */
+    public static long exportIndicators(StockStore store, String filename, int... periods) {
+        long startTime = System.nanoTime();
+        int threads = Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        IndicatorWriter writer;
+        try (java.io.OutputStream out = new java.io.BufferedOutputStream(new java.io.FileOutputStream(filename), 1 << 16)) {
+            StringBuilder header = new StringBuilder("date,name,close");
+            for (int period : periods) header.append(",sma").append(period);
+            out.write(header.append(",trend\n").toString().getBytes(StandardCharsets.UTF_8));
+
+            writer = new IndicatorWriter(out, pool, threads * 4, periods);
+            store.forEachStock(writer);
+            writer.finish();
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to export indicators: " + e.getMessage());
+        } finally {
+            pool.shutdown();
+        }
+
+        long endTime = System.nanoTime();
+        System.out.printf("Exported %d rows for %d symbols on %d threads in %.3f milliseconds, %.0f rows/sec%n",
+                writer.rows, writer.symbols, threads, (endTime - startTime) / 1_000_000.0,
+                writer.rows * 1_000_000_000.0 / Math.max(1, endTime - startTime));
+        return writer.rows;
+    }
+
+    /*
+     * Class: IndicatorWriter
+     * Description: This class is used to collect the stocks of one symbol at a time from forEachStock,
+     *              hand each finished symbol to the pool and write the results in order. A bounded
+     *              number of symbols is kept in flight, so memory does not grow with the dataset.
+     * Author: Demetrius Chatterjee
+     * Github ID: DemetriusChatterjee
+     * Version: 1.0
+     */
+    private static class IndicatorWriter implements Consumer<Stock> {
+        private final java.io.OutputStream out;
+        private final ForkJoinPool pool;
+        private final int maxPending;
+        private final int[] periods;
+        private final java.util.ArrayDeque<Future<byte[]>> pending = new java.util.ArrayDeque<>();
+        private List<Stock> symbol = new ArrayList<>();
+        long rows;
+        long symbols;
+
+        IndicatorWriter(java.io.OutputStream out, ForkJoinPool pool, int maxPending, int[] periods) {
+            this.out = out;
+            this.pool = pool;
+            this.maxPending = maxPending;
+            this.periods = periods;
+        }
+
+        @Override
+        public void accept(Stock stock) {
+            if (!symbol.isEmpty() && !symbol.get(0).name.equals(stock.name)) submit();
+            symbol.add(stock);
+        }
+
+        /**
+         * Submits the symbol that has been collected and writes finished symbols until there is room
+         * for another one.
+         */
+        private void submit() {
+            List<Stock> stocks = symbol;
+            symbol = new ArrayList<>();
+            pending.add(pool.submit(() -> indicatorRows(stocks, 0, stocks.size(), periods)));
+            rows += stocks.size();
+            symbols++;
+            while (pending.size() >= maxPending) writeNext();
+        }
+
+        /**
+         * Submits the last symbol and writes every symbol still in flight.
+         */
+        void finish() {
+            if (!symbol.isEmpty()) submit();
+            while (!pending.isEmpty()) writeNext();
+        }
+
+        /**
+         * Waits for the oldest symbol in flight and writes its rows.
+         * @throws RuntimeException if the rows cannot be computed or written
+         */
+        private void writeNext() {
+            try {
+                out.write(pending.poll().get());
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e.getMessage());
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Formats the indicator rows of one symbol. Each window is summed newest to oldest like
+     * calculateSMA, so the values and trend labels match per-row calculateSMA and getPriceTrend calls.
+     * @param stocks The stocks in symbol and date order
+     * @param from The index of the symbol's first stock
+     * @param to The index just past the symbol's last stock
+     * @param periods The SMA periods
+     * @return The CSV rows
+     */
+    private static byte[] indicatorRows(List<Stock> stocks, int from, int to, int[] periods) {
+        StringBuilder rows = new StringBuilder((to - from) * (48 + 20 * periods.length));
+        double[] smas = new double[periods.length];
+        Date lastDate = null;
+        int day = 0;
+
+        for (int i = from; i < to; i++) {
+            Stock stock = stocks.get(i);
+            for (int p = 0; p < periods.length; p++) {
+                smas[p] = 0;
+                if (i - from + 1 < periods[p]) continue;
+                double sum = 0;
+                for (int j = i; j > i - periods[p]; j--) sum += stocks.get(j).close;
+                smas[p] = sum / periods[p];
+            }
+            if (stock.date != lastDate) {
+                lastDate = stock.date;
+                day = toEpochDay(stock.date);
+            }
+
+            appendDate(rows, day).append(',').append(stock.name).append(',').append(stock.close);
+            for (double sma : smas) rows.append(',').append(sma);
+            rows.append(',');
+            if (periods.length < 2 || smas[0] == 0 || smas[1] == 0) rows.append("Insufficient data");
+            else rows.append(smas[0] > smas[1] ? "Upward Trend" : "Downward Trend");
+            rows.append('\n');
+        }
+        return rows.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Appends an epoch day in yyyy-MM-dd format.
+     * @param sb The builder to append to
+     * @param epochDay The number of days since 1970-01-01
+     * @return The builder
+     */
+    static StringBuilder appendDate(StringBuilder sb, int epochDay) {
+        java.time.LocalDate date = java.time.LocalDate.ofEpochDay(epochDay);
+        sb.append(date.getYear()).append('-');
+        if (date.getMonthValue() < 10) sb.append('0');
+        sb.append(date.getMonthValue()).append('-');
+        if (date.getDayOfMonth() < 10) sb.append('0');
+        return sb.append(date.getDayOfMonth());
+    }
+
+    /*
+     * Class: SnapshotStore
+     * Description: This class is used to save the loaded stocks to a compact binary snapshot and to
+     *              answer queries straight from the memory-mapped file, so a restart needs neither a
+     *              CSV parse nor N tree inserts. The layout is a 64-byte header, fixed-width records
+     *              sorted by symbol and date, then the symbol dictionary with each symbol's first
+     *              record and record count. A CRC32 covers everything after the header, and the
+     *              header records the size and modification time of the source CSV so a stale
+     *              snapshot can be detected. A snapshot is written to a temporary file and moved into
+     *              place, so a crash while saving leaves the previous snapshot intact.
+     * Author: Demetrius Chatterjee
+     * Github ID: DemetriusChatterjee
+     * Version: 1.0
+     */
+    public static class SnapshotStore implements StockStore {
+        private static final int MAGIC = 0x53544B53; // "STKS"
+        private static final int VERSION = 1;
+        private static final int HEADER_SIZE = 64;
+        // symbol id, epoch day, open, high, low, close, adjClose, volume
+        private static final int RECORD_SIZE = 4 + 4 + 5 * 8 + 8;
+        private static final int RECORDS_PER_SEGMENT = (1 << 30) / RECORD_SIZE;
+
+        private final MappedByteBuffer[] segments;
+        private final String[] symbols;
+        private final int[] firstRecord;
+        private final int[] recordCount;
+        private final Map<String, Integer> symbolIds = new HashMap<>();
+        private final long sourceSize;
+        private final long sourceModified;
+
+        private SnapshotStore(MappedByteBuffer[] segments, String[] symbols, int[] firstRecord, int[] recordCount,
+                              long sourceSize, long sourceModified) {
+            this.segments = segments;
+            this.symbols = symbols;
+            this.firstRecord = firstRecord;
+            this.recordCount = recordCount;
+            this.sourceSize = sourceSize;
+            this.sourceModified = sourceModified;
+            for (int i = 0; i < symbols.length; i++) symbolIds.put(symbols[i], i);
+        }
+
+        /**
+         * Writes every stock of a store to a snapshot file. The snapshot is written to a temporary
+         * file and moved over the old one, so readers of the old file are not disturbed.
+         * @param store The store to save
+         * @param filename The path of the snapshot file
+         * @param sourceCsv The CSV the store was loaded from, or null if there is none
+         * @throws RuntimeException if the file cannot be written
+         */
+        public static void save(StockStore store, String filename, String sourceCsv) {
+            long startTime = System.nanoTime();
+            java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+            List<String> names = new ArrayList<>();
+            List<Integer> firsts = new ArrayList<>();
+            long[] records = new long[1];
+            java.nio.file.Path target = Paths.get(filename).toAbsolutePath();
+            java.nio.file.Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                channel.position(HEADER_SIZE);
+                ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 4096);
+                Date[] lastDate = new Date[1];
+                int[] lastDay = new int[1];
+
+                store.forEachStock(stock -> {
+                    if (names.isEmpty() || !names.get(names.size() - 1).equals(stock.name)) {
+                        names.add(stock.name);
+                        firsts.add((int) records[0]);
+                    }
+                    if (stock.date != lastDate[0]) {
+                        lastDate[0] = stock.date;
+                        lastDay[0] = toEpochDay(stock.date);
+                    }
+                    if (!buffer.hasRemaining()) flush(channel, buffer, crc);
+                    buffer.putInt(names.size() - 1).putInt(lastDay[0]).putDouble(stock.open).putDouble(stock.high)
+                            .putDouble(stock.low).putDouble(stock.close).putDouble(stock.adjClose).putLong(stock.volume);
+                    records[0]++;
+                });
+                flush(channel, buffer, crc);
+
+                long dictionaryOffset = channel.position();
+                java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+                java.io.DataOutputStream dictionary = new java.io.DataOutputStream(bytes);
+                for (int i = 0; i < names.size(); i++) {
+                    long end = i + 1 < names.size() ? firsts.get(i + 1) : records[0];
+                    dictionary.writeUTF(names.get(i));
+                    dictionary.writeInt(firsts.get(i));
+                    dictionary.writeInt((int) (end - firsts.get(i)));
+                }
+                flush(channel, ByteBuffer.wrap(bytes.toByteArray()).position(bytes.size()), crc);
+
+                java.io.File source = sourceCsv != null ? new java.io.File(sourceCsv) : null;
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION)
+                        .putLong(source != null ? source.length() : -1).putLong(source != null ? source.lastModified() : -1)
+                        .putLong(records[0]).putInt(names.size()).putLong(dictionaryOffset).putLong(crc.getValue());
+                header.clear();
+                channel.write(header, 0);
+                channel.force(true);
+            } catch (IOException | RuntimeException e) {
+                try {
+                    java.nio.file.Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                    // The write already failed; report that error
+                }
+                throw new RuntimeException("Failed to write snapshot: " + e.getMessage());
+            }
+            try {
+                java.nio.file.Files.move(temp, target, java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+                        java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to write snapshot: " + e.getMessage());
+            }
+            System.out.printf("Saved snapshot of %d records and %d symbols in %.3f milliseconds%n",
+                    records[0], names.size(), (System.nanoTime() - startTime) / 1_000_000.0);
+        }
+
+        /**
+         * Writes the filled part of a buffer to a channel and adds it to a checksum.
+         * @param channel The channel to write to
+         * @param buffer The buffer, positioned after its last byte
+         * @param crc The checksum
+         * @throws java.io.UncheckedIOException if the write fails
+         */
+        private static void flush(FileChannel channel, ByteBuffer buffer, java.util.zip.CRC32 crc) {
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            try {
+                while (buffer.hasRemaining()) channel.write(buffer);
+            } catch (IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            }
+            buffer.clear();
+        }
+
+        /**
+         * Opens a snapshot file and verifies its checksum.
+         * @param filename The path of the snapshot file
+         * @return The snapshot store
+         * @throws RuntimeException if the file cannot be read or is corrupt
+         */
+        public static SnapshotStore open(String filename) {
+            return open(filename, true);
+        }
+
+        /**
+         * Opens a snapshot file by memory-mapping its records.
+         * @param filename The path of the snapshot file
+         * @param verify Whether to check the CRC32 of the file, which reads it once
+         * @return The snapshot store
+         * @throws RuntimeException if the file cannot be read, is truncated or is corrupt
+         */
+        public static SnapshotStore open(String filename, boolean verify) {
+            try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                channel.read(header, 0);
+                header.flip();
+                if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC)
+                    throw new IOException("not a snapshot file");
+                int version = header.getInt();
+                if (version != VERSION) throw new IOException("unsupported snapshot version " + version);
+                long sourceSize = header.getLong();
+                long sourceModified = header.getLong();
+                long records = header.getLong();
+                int symbolCount = header.getInt();
+                long dictionaryOffset = header.getLong();
+                long checksum = header.getLong();
+                if (records < 0 || records > Integer.MAX_VALUE || symbolCount < 0 || dictionaryOffset != HEADER_SIZE + records * RECORD_SIZE)
+                    throw new IOException("corrupt header");
+                if (channel.size() < dictionaryOffset)
+                    throw new IOException("truncated file of " + channel.size() + " bytes, expected more than " + dictionaryOffset);
+
+                MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((records + RECORDS_PER_SEGMENT - 1) / RECORDS_PER_SEGMENT)];
+                for (int i = 0; i < segments.length; i++) {
+                    long first = (long) i * RECORDS_PER_SEGMENT;
+                    long count = Math.min(RECORDS_PER_SEGMENT, records - first);
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + first * RECORD_SIZE, count * RECORD_SIZE);
+                }
+                MappedByteBuffer dictionaryBuffer = channel.map(FileChannel.MapMode.READ_ONLY, dictionaryOffset, channel.size() - dictionaryOffset);
+
+                if (verify) {
+                    java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+                    for (MappedByteBuffer segment : segments) crc.update(segment.duplicate());
+                    crc.update(dictionaryBuffer.duplicate());
+                    if (crc.getValue() != checksum) throw new IOException("checksum mismatch");
+                }
+
+                String[] symbols = new String[symbolCount];
+                int[] firstRecord = new int[symbolCount];
+                int[] recordCount = new int[symbolCount];
+                byte[] bytes = new byte[dictionaryBuffer.remaining()];
+                dictionaryBuffer.get(bytes);
+                java.io.DataInputStream dictionary = new java.io.DataInputStream(new java.io.ByteArrayInputStream(bytes));
+                try {
+                    for (int i = 0; i < symbolCount; i++) {
+                        symbols[i] = dictionary.readUTF();
+                        firstRecord[i] = dictionary.readInt();
+                        recordCount[i] = dictionary.readInt();
+                        if (firstRecord[i] < 0 || recordCount[i] < 0 || (long) firstRecord[i] + recordCount[i] > records)
+                            throw new IOException("corrupt symbol dictionary");
+                    }
+                } catch (java.io.EOFException e) {
+                    throw new IOException("truncated symbol dictionary");
+                }
+                return new SnapshotStore(segments, symbols, firstRecord, recordCount, sourceSize, sourceModified);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to open snapshot: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Checks whether the snapshot was taken from a different version of a CSV file.
+         * @param sourceCsv The path to the CSV file
+         * @return true if the file's size or modification time differs from when the snapshot was saved
+         */
+        public boolean isStale(String sourceCsv) {
+            java.io.File source = new java.io.File(sourceCsv);
+            return source.length() != sourceSize || source.lastModified() != sourceModified;
+        }
+
+        /**
+         * Gets the byte offset of a record within its segment.
+         * @param record The record number
+         * @return The offset in bytes
+         */
+        private int offset(int record) {
+            return (record % RECORDS_PER_SEGMENT) * RECORD_SIZE;
+        }
+
+        /**
+         * Gets the mapped segment holding a record.
+         * @param record The record number
+         * @return The segment
+         */
+        private ByteBuffer segment(int record) {
+            return segments[record / RECORDS_PER_SEGMENT];
+        }
+
+        /**
+         * Reads the epoch day of a record.
+         * @param record The record number
+         * @return The epoch day
+         */
+        private int day(int record) {
+            return segment(record).getInt(offset(record) + 4);
+        }
+
+        /**
+         * Reads the opening price of a record.
+         * @param record The record number
+         * @return The opening price
+         */
+        private double open(int record) {
+            return segment(record).getDouble(offset(record) + 8);
+        }
+
+        /**
+         * Reads the high price of a record.
+         * @param record The record number
+         * @return The high price
+         */
+        private double high(int record) {
+            return segment(record).getDouble(offset(record) + 16);
+        }
+
+        /**
+         * Reads the low price of a record.
+         * @param record The record number
+         * @return The low price
+         */
+        private double low(int record) {
+            return segment(record).getDouble(offset(record) + 24);
+        }
+
+        /**
+         * Reads the closing price of a record.
+         * @param record The record number
+         * @return The closing price
+         */
+        private double close(int record) {
+            return segment(record).getDouble(offset(record) + 32);
+        }
+
+        /**
+         * Reads the volume of a record.
+         * @param record The record number
+         * @return The volume
+         */
+        private long volume(int record) {
+            return segment(record).getLong(offset(record) + 48);
+        }
+
+        /**
+         * Creates a Stock for a record.
+         * @param record The record number
+         * @return The Stock object
+         */
+        private Stock toStock(int record) {
+            ByteBuffer b = segment(record);
+            int o = offset(record);
+            return new Stock(symbols[b.getInt(o)], b.getDouble(o + 32), toDate(b.getInt(o + 4)), b.getDouble(o + 8),
+                    b.getDouble(o + 16), b.getDouble(o + 24), b.getDouble(o + 32), b.getDouble(o + 40), (int) b.getLong(o + 48));
+        }
+
+        /**
+         * Finds the first record of a symbol that is after a day.
+         * @param id The symbol id
+         * @param day The epoch day
+         * @return The record number just past the last record on or before the day
+         */
+        private int upperBound(int id, int day) {
+            int lo = firstRecord[id], hi = firstRecord[id] + recordCount[id];
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (day(mid) <= day) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        /**
+         * Finds the first record of a symbol that is on or after a day.
+         * @param id The symbol id
+         * @param day The epoch day
+         * @return The record number of the first record on or after the day
+         */
+        private int lowerBound(int id, int day) {
+            int lo = firstRecord[id], hi = firstRecord[id] + recordCount[id];
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (day(mid) < day) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        /**
+         * Gets the number of records in the snapshot.
+         * @return The number of records
+         */
+        public long size() {
+            long size = 0;
+            for (int count : recordCount) size += count;
+            return size;
+        }
+
+        @Override
+        public Stock search(String symbol, Date date) {
+            Integer id = symbolIds.get(symbol);
+            if (id == null) return null;
+            int day = toEpochDay(date);
+            int i = upperBound(id, day) - 1;
+            return i >= firstRecord[id] && day(i) == day ? toStock(i) : null;
+        }
+
+        @Override
+        public List<Stock> getAllStocks() {
+            List<Stock> stocks = new ArrayList<>();
+            forEachStock(stocks::add);
+            return stocks;
+        }
+
+        @Override
+        public void forEachStock(Consumer<Stock> action) {
+            for (int id = 0; id < symbols.length; id++)
+                for (int i = firstRecord[id]; i < firstRecord[id] + recordCount[id]; i++) action.accept(toStock(i));
+        }
+
+        @Override
+        public List<Stock> getStocksForDate(Date date) {
+            int day = toEpochDay(date);
+            List<Stock> stocks = new ArrayList<>();
+            for (int id = 0; id < symbols.length; id++) {
+                int i = upperBound(id, day) - 1;
+                if (i >= firstRecord[id] && day(i) == day) stocks.add(toStock(i));
+            }
+            return stocks;
+        }
+
+        @Override
+        public double calculateSMA(String symbol, Date date, int period) {
+            Integer id = symbolIds.get(symbol);
+            if (id == null) return 0;
+            int end = upperBound(id, toEpochDay(date));
+            if (end - firstRecord[id] < period) return 0;
+
+            double sum = 0;
+            for (int i = end - 1; i >= end - period; i--) sum += close(i);
+            return sum / period;
+        }
+
+        @Override
+        public double getAverageVolume(String symbol, Date startDate, Date endDate) {
+            Integer id = symbolIds.get(symbol);
+            if (id == null) return 0;
+            int from = lowerBound(id, toEpochDay(startDate));
+            int to = upperBound(id, toEpochDay(endDate));
+
+            long totalVolume = 0;
+            for (int i = from; i < to; i++) totalVolume += volume(i);
+            return to > from ? totalVolume / (double) (to - from) : 0;
+        }
+
+        @Override
+        public StockStats getStockStats(String symbol) {
+            StockStats stats = new StockStats();
+            Integer id = symbolIds.get(symbol);
+            if (id == null) return stats;
+            for (int i = firstRecord[id]; i < firstRecord[id] + recordCount[id]; i++)
+                stats.add(open(i), high(i), low(i), volume(i));
+            return stats;
+        }
+    }
+
+    /*
+     * Class: OffHeapStore
+     * Description: This class is used to keep the bars outside the Java heap, so the garbage
+     *              collector never has to trace them. Each bar is a fixed 64-byte slot in a direct
+     *              ByteBuffer slab holding the record and its left-leaning red-black tree links:
+     *                  0 symbol code, 4 epoch day, 8 open, 16 high, 24 low, 32 close, 40 adjClose,
+     *                  48 volume, 52 left slot, 56 right slot, 60 color
+     *              Records store the symbol's stable code; the tree orders them by the dictionary's
+     *              order-preserving id, so a renumbering never touches the slabs. The heap only holds
+     *              the symbol dictionary and the slab references, whatever the number of bars; Stock
+     *              objects are created only for the results of a query. Direct memory is limited by
+     *              -XX:MaxDirectMemorySize, which defaults to the maximum heap size.
+     * Author: Demetrius Chatterjee
+     * Github ID: DemetriusChatterjee
+     * Version: 1.0
+     */
+    public static class OffHeapStore implements StockStore {
+        private static final int SLOT_SIZE = 64;
+        private static final int SLOTS_PER_SLAB_SHIFT = 20;
+        private static final int SLOTS_PER_SLAB = 1 << SLOTS_PER_SLAB_SHIFT;
+        private static final int NIL = -1;
+
+        private ByteBuffer[] slabs = new ByteBuffer[0];
+        private final SymbolDictionary symbols = new SymbolDictionary();
+        private int root = NIL;
+        private int size;
+
+        /**
+         * Creates an off-heap store holding every stock of another store.
+         * @param store The store to copy
+         * @return The off-heap store
+         */
+        public static OffHeapStore from(StockStore store) {
+            OffHeapStore offHeap = new OffHeapStore();
+            store.forEachStock(offHeap::insert);
+            return offHeap;
+        }
+
+        /**
+         * Inserts a stock, ignoring it if a stock with the same symbol and date is already stored.
+         * Only its symbol, date, prices and volume are kept; the price of a stored Stock is its close.
+         * @param stock The stock to insert
+         */
+        public void insert(Stock stock) {
+            SymbolDictionary.Symbol symbol = symbols.get(stock.name);
+            if (symbol == null) symbol = symbols.add(stock.name);
+            int day = toEpochDay(stock.date);
+            root = insert(root, packKey(symbol.id, day), stock, symbol.code, day);
+            setColor(root, BLACK);
+        }
+
+        /**
+         * Inserts a record into a subtree.
+         * @param h The root slot of the subtree
+         * @param key The packed key of the record
+         * @param stock The stock to store
+         * @param code The symbol code
+         * @param day The epoch day
+         * @return The new root slot of the subtree
+         */
+        private int insert(int h, long key, Stock stock, int code, int day) {
+            if (h == NIL) return allocate(stock, code, day);
+
+            long k = key(h);
+            if (key < k) setLeft(h, insert(left(h), key, stock, code, day));
+            else if (key > k) setRight(h, insert(right(h), key, stock, code, day));
+
+            if (isRed(right(h)) && !isRed(left(h))) h = rotateLeft(h);
+            if (isRed(left(h)) && isRed(left(left(h)))) h = rotateRight(h);
+            if (isRed(left(h)) && isRed(right(h))) flipColors(h);
+            return h;
+        }
+
+        /**
+         * Writes a new record into the next free slot, adding a slab when the last one is full.
+         * @param stock The stock to store
+         * @param code The symbol code
+         * @param day The epoch day
+         * @return The slot of the record
+         */
+        private int allocate(Stock stock, int code, int day) {
+            int n = size;
+            if (n >>> SLOTS_PER_SLAB_SHIFT == slabs.length) {
+                slabs = java.util.Arrays.copyOf(slabs, slabs.length + 1);
+                slabs[slabs.length - 1] = ByteBuffer.allocateDirect(SLOTS_PER_SLAB * SLOT_SIZE);
+            }
+            ByteBuffer b = slab(n);
+            int o = offset(n);
+            b.putInt(o, code).putInt(o + 4, day).putDouble(o + 8, stock.open).putDouble(o + 16, stock.high)
+                    .putDouble(o + 24, stock.low).putDouble(o + 32, stock.close).putDouble(o + 40, stock.adjClose)
+                    .putInt(o + 48, stock.volume).putInt(o + 52, NIL).putInt(o + 56, NIL).put(o + 60, (byte) 1);
+            size++;
+            return n;
+        }
+
+        private ByteBuffer slab(int n) {
+            return slabs[n >>> SLOTS_PER_SLAB_SHIFT];
+        }
+
+        private static int offset(int n) {
+            return (n & (SLOTS_PER_SLAB - 1)) * SLOT_SIZE;
+        }
+
+        private int code(int n) {
+            return slab(n).getInt(offset(n));
+        }
+
+        private int day(int n) {
+            return slab(n).getInt(offset(n) + 4);
+        }
+
+        private int left(int n) {
+            return slab(n).getInt(offset(n) + 52);
+        }
+
+        private int right(int n) {
+            return slab(n).getInt(offset(n) + 56);
+        }
+
+        private void setLeft(int n, int child) {
+            slab(n).putInt(offset(n) + 52, child);
+        }
+
+        private void setRight(int n, int child) {
+            slab(n).putInt(offset(n) + 56, child);
+        }
+
+        private boolean isRed(int n) {
+            return n != NIL && slab(n).get(offset(n) + 60) == 1;
+        }
+
+        private void setColor(int n, boolean color) {
+            slab(n).put(offset(n) + 60, (byte) (color == RED ? 1 : 0));
+        }
+
+        /**
+         * Gets the packed key of a record from its symbol's current id and its day.
+         * @param n The slot
+         * @return The packed key
+         */
+        private long key(int n) {
+            ByteBuffer b = slab(n);
+            int o = offset(n);
+            return packKey(symbols.byCode(b.getInt(o)).id, b.getInt(o + 4));
+        }
+
+        /**
+         * Performs a left rotation on the given slot.
+         * @param h The slot to rotate
+         * @return The new root slot after rotation
+         */
+        private int rotateLeft(int h) {
+            int x = right(h);
+            setRight(h, left(x));
+            setLeft(x, h);
+            setColor(x, isRed(h));
+            setColor(h, RED);
+            return x;
+        }
+
+        /**
+         * Performs a right rotation on the given slot.
+         * @param h The slot to rotate
+         * @return The new root slot after rotation
+         */
+        private int rotateRight(int h) {
+            int x = left(h);
+            setLeft(h, right(x));
+            setRight(x, h);
+            setColor(x, isRed(h));
+            setColor(h, RED);
+            return x;
+        }
+
+        /**
+         * Flips the colors of a slot and its two children.
+         * @param h The parent slot
+         */
+        private void flipColors(int h) {
+            setColor(h, RED);
+            setColor(left(h), BLACK);
+            setColor(right(h), BLACK);
+        }
+
+        /**
+         * Creates a Stock for a record.
+         * @param n The slot
+         * @return The Stock object
+         */
+        private Stock toStock(int n) {
+            ByteBuffer b = slab(n);
+            int o = offset(n);
+            return new Stock(symbols.byCode(b.getInt(o)).name, b.getDouble(o + 32), toDate(b.getInt(o + 4)), b.getDouble(o + 8),
+                    b.getDouble(o + 16), b.getDouble(o + 24), b.getDouble(o + 32), b.getDouble(o + 40), b.getInt(o + 48));
+        }
+
+        /**
+         * Gets the number of records in the store.
+         * @return The number of records
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Gets the number of bytes of direct memory allocated for the records.
+         * @return The number of bytes
+         */
+        public long offHeapBytes() {
+            return (long) slabs.length * SLOTS_PER_SLAB * SLOT_SIZE;
+        }
+
+        /**
+         * Finds the slot of a record by its packed key.
+         * @param key The packed key
+         * @return The slot, or NIL if there is no such record
+         */
+        private int find(long key) {
+            int x = root;
+            while (x != NIL) {
+                long k = key(x);
+                if (key < k) x = left(x);
+                else if (key > k) x = right(x);
+                else return x;
+            }
+            return NIL;
+        }
+
+        @Override
+        public Stock search(String symbol, Date date) {
+            SymbolDictionary.Symbol entry = symbols.get(symbol);
+            if (entry == null) return null;
+            int n = find(packKey(entry.id, toEpochDay(date)));
+            return n != NIL ? toStock(n) : null;
+        }
+
+        @Override
+        public List<Stock> getAllStocks() {
+            List<Stock> stocks = new ArrayList<>(size);
+            forEachStock(stocks::add);
+            return stocks;
+        }
+
+        @Override
+        public void forEachStock(Consumer<Stock> action) {
+            forEachSlot(root, Long.MIN_VALUE, Long.MAX_VALUE, n -> action.accept(toStock(n)));
+        }
+
+        /**
+         * Passes the slots between two keys to an action with an inorder traversal of the matching slots.
+         * @param x The root slot of the subtree
+         * @param lo The lowest key to include
+         * @param hi The highest key to include
+         * @param action The action to run for each slot
+         */
+        private void forEachSlot(int x, long lo, long hi, java.util.function.IntConsumer action) {
+            if (x == NIL) return;
+            long k = key(x);
+            if (lo < k) forEachSlot(left(x), lo, hi, action);
+            if (lo <= k && hi >= k) action.accept(x);
+            if (hi > k) forEachSlot(right(x), lo, hi, action);
+        }
+
+        /**
+         * Adds up to k slots between two keys to an array with a reverse inorder traversal.
+         * @param x The root slot of the subtree
+         * @param lo The lowest key to include
+         * @param hi The highest key to include
+         * @param slots The array to fill, newest first
+         * @param found The number of slots already in the array
+         * @return The number of slots in the array
+         */
+        private int lastK(int x, long lo, long hi, int[] slots, int found) {
+            if (x == NIL || found >= slots.length) return found;
+            long k = key(x);
+            if (hi > k) found = lastK(right(x), lo, hi, slots, found);
+            if (found < slots.length && lo <= k && hi >= k) slots[found++] = x;
+            if (lo < k) found = lastK(left(x), lo, hi, slots, found);
+            return found;
+        }
+
+        @Override
+        public List<Stock> getStocksForDate(Date date) {
+            int day = toEpochDay(date);
+            List<Stock> stocks = new ArrayList<>();
+            for (SymbolDictionary.Symbol symbol : symbols.ordered()) {
+                int n = find(packKey(symbol.id, day));
+                if (n != NIL) stocks.add(toStock(n));
+            }
+            return stocks;
+        }
+
+        @Override
+        public double calculateSMA(String symbol, Date date, int period) {
+            SymbolDictionary.Symbol entry = symbols.get(symbol);
+            // No symbol can have more bars than the store, so this also bounds the slots array
+            if (entry == null || period <= 0 || period > size) return 0;
+            int[] slots = new int[period];
+            int found = lastK(root, packKey(entry.id, Integer.MIN_VALUE), packKey(entry.id, toEpochDay(date)), slots, 0);
+            if (found < period) return 0;
+
+            double sum = 0;
+            for (int i = 0; i < period; i++) sum += slab(slots[i]).getDouble(offset(slots[i]) + 32);
+            return sum / period;
+        }
+
+        /**
+         * Gets the statistics of a symbol's records within a date range with a range scan.
+         * @param symbol The stock symbol
+         * @param fromDay The first epoch day to include
+         * @param toDay The last epoch day to include
+         * @return The statistics
+         */
+        private StockStats rangeStats(String symbol, int fromDay, int toDay) {
+            StockStats stats = new StockStats();
+            SymbolDictionary.Symbol entry = symbols.get(symbol);
+            if (entry == null) return stats;
+            forEachSlot(root, packKey(entry.id, fromDay), packKey(entry.id, toDay), n -> {
+                ByteBuffer b = slab(n);
+                int o = offset(n);
+                stats.add(b.getDouble(o + 8), b.getDouble(o + 16), b.getDouble(o + 24), b.getInt(o + 48));
+            });
+            return stats;
+        }
+
+        @Override
+        public double getAverageVolume(String symbol, Date startDate, Date endDate) {
+            return rangeStats(symbol, toEpochDay(startDate), toEpochDay(endDate)).averageVolume();
+        }
+
+        @Override
+        public StockStats getStockStats(String symbol) {
+            return rangeStats(symbol, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        }
+    }
+
+    /*
+     * Interface: OrderedIndex
+     * Description: This interface is used to plug different ordered indexes of stocks by
+     *              (symbol, date) under a store. LlrbIndex adapts the red-black tree of StockAnalyser
+     *              and BPlusTreeIndex is an array-backed B+-tree.
+     * Author: Demetrius Chatterjee
+     * Github ID: DemetriusChatterjee
+     * Version: 1.0
+     */
+    public interface OrderedIndex {
+        /**
+         * Inserts a stock, ignoring it if a stock with the same symbol and date is already indexed.
+         * @param stock The stock to insert
+         */
+        void insert(Stock stock);
+
+        /**
+         * Inserts many stocks at once. The stocks may come in any order; input that is already
+         * sorted by symbol and date is the fastest. As with insert, a stock whose symbol and date
+         * are already indexed, or appear earlier in the list, is ignored.
+         * @param stocks The stocks to insert
+         */
+        void bulkLoad(List<Stock> stocks);
+
+        /**
+         * Finds a stock by symbol and date.
+         * @param symbol The stock symbol
+         * @param date The date
+         * @return The stock, or null if it is not indexed
+         */
+        Stock get(String symbol, Date date);
+
+        /**
+         * Passes the stocks of a symbol within a date range to an action, in date order.
+         * @param symbol The stock symbol
+         * @param fromDate The first date to include, or null for no lower bound
+         * @param toDate The last date to include, or null for no upper bound
+         * @param action The action to run for each stock
+         */
+        void range(String symbol, Date fromDate, Date toDate, Consumer<Stock> action);
+
+        /**
+         * Gets the last k stocks of a symbol on or before a date.
+         * @param symbol The stock symbol
+         * @param date The last date to include
+         * @param k The maximum number of stocks to return
+         * @return List of up to k stocks, oldest first
+         */
+        List<Stock> lastK(String symbol, Date date, int k);
+
+        /**
+         * Passes every stock to an action in symbol and date order.
+         * @param action The action to run for each stock
+         */
+        void forEach(Consumer<Stock> action);
+
+        /**
+         * Gets the number of indexed stocks.
+         * @return The number of stocks
+         */
+        int size();
+    }
+
+    /*
+     * Class: LlrbIndex
+     * Description: This class is used to expose the red-black tree of a StockAnalyser as an OrderedIndex.
+     * Author: Demetrius Chatterjee
+     * Github ID: DemetriusChatterjee
+     * Version: 1.0
+     */
+    public static class LlrbIndex implements OrderedIndex {
+        private final StockAnalyser analyser;
+
+        public LlrbIndex(StockAnalyser analyser) {
+            this.analyser = analyser;
+        }
+
+        @Override
+        public void insert(Stock stock) {
+            analyser.insert(stock);
+        }
+
+        @Override
+        public void bulkLoad(List<Stock> stocks) {
+            analyser.bulkLoad(stocks);
+        }
+
+        @Override
+        public Stock get(String symbol, Date date) {
+            return analyser.search(symbol, date);
+        }
+
+        @Override
+        public void range(String symbol, Date fromDate, Date toDate, Consumer<Stock> action) {
+            analyser.forEachInRange(symbol, fromDate, toDate, action);
+        }
+
+        @Override
+        public List<Stock> lastK(String symbol, Date date, int k) {
+            return analyser.lastK(symbol, date, k);
+        }
+
+        @Override
+        public void forEach(Consumer<Stock> action) {
+            analyser.forEachStock(action);
+        }
+
+        @Override
+        public int size() {
+            return analyser.size();
+        }
+    }
+
+    /*
+     * Class: BPlusTreeIndex
+     * Description: This class is used to index stocks in a B+-tree with up to 64 entries per page.
+     *              Keys are the packed (symbol id, epoch day) longs of StockAnalyser, kept in a
+     *              primitive array per page, so a lookup binary-searches a few contiguous arrays
+     *              instead of chasing a pointer per comparison. The stocks live only in the leaves,
+     *              which are linked in both directions, so a range scan reads consecutive array slots
+     *              and moves to the next leaf without going back up the tree.
+     * Author: Demetrius Chatterjee
+     * Github ID: DemetriusChatterjee
+     * Version: 1.0
+     */
+    public static class BPlusTreeIndex implements OrderedIndex {
+        private static final int CAPACITY = 64;
+        private final SymbolDictionary symbols = new SymbolDictionary();
+        private Page root = new Leaf();
+        private Leaf first = (Leaf) root;
+        private int size;
+        private long splitKey;
+
+        /*
+         * Class: Page
+         * Description: This class is used to store the sorted keys of one B+-tree page.
+         * Author: Demetrius Chatterjee
+         * Github ID: DemetriusChatterjee
+         * Version: 1.0
+         */
+        private abstract static class Page {
+            final long[] keys = new long[CAPACITY];
+            int size;
+        }
+
+        /*
+         * Class: Leaf
+         * Description: This class is used to store up to CAPACITY stocks with their keys.
+         * Author: Demetrius Chatterjee
+         * Github ID: DemetriusChatterjee
+         * Version: 1.0
+         */
+        private static final class Leaf extends Page {
+            final Stock[] stocks = new Stock[CAPACITY];
+            Leaf prev, next;
+        }
+
+        /*
+         * Class: Branch
+         * Description: This class is used to route a key to one of up to CAPACITY children.
+         *              keys[i - 1] is the smallest key under children[i]; keys[0..size - 1) are used.
+         * Author: Demetrius Chatterjee
+         * Github ID: DemetriusChatterjee
+         * Version: 1.0
+         */
+        private static final class Branch extends Page {
+            final Page[] children = new Page[CAPACITY];
+        }
+
+        /**
+         * Gets the position of the first key greater than a key.
+         * @param keys The sorted keys
+         * @param n The number of keys in use
+         * @param key The key
+         * @return The number of keys less than or equal to the key
+         */
+        private static int upperBound(long[] keys, int n, long key) {
+            int lo = 0, hi = n;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keys[mid] <= key) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        /**
+         * Gets the position of the first key not less than a key.
+         * @param keys The sorted keys
+         * @param n The number of keys in use
+         * @param key The key
+         * @return The number of keys less than the key
+         */
+        private static int lowerBound(long[] keys, int n, long key) {
+            int lo = 0, hi = n;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keys[mid] < key) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        /**
+         * Finds the leaf whose key range holds a key.
+         * @param key The key
+         * @return The leaf
+         */
+        private Leaf leafFor(long key) {
+            Page page = root;
+            while (page instanceof Branch) {
+                Branch branch = (Branch) page;
+                page = branch.children[upperBound(branch.keys, branch.size - 1, key)];
+            }
+            return (Leaf) page;
+        }
+
+        /**
+         * Gets the key of a stock that is about to be inserted, adding its symbol to the dictionary
+         * and re-keying the tree if the dictionary had to renumber.
+         * @param stock The stock
+         * @return The packed key
+         */
+        private long keyOf(Stock stock) {
+            SymbolDictionary.Symbol symbol = symbols.get(stock.name);
+            if (symbol == null) {
+                int generation = symbols.generation();
+                symbol = symbols.add(stock.name);
+                if (symbols.generation() != generation) rekey(root);
+            }
+            return packKey(symbol.id, toEpochDay(stock.date));
+        }
+
+        /**
+         * Rewrites the symbol half of every key after the dictionary renumbered its ids.
+         * @param page The root of the subtree
+         * @return The smallest key in the subtree
+         */
+        private long rekey(Page page) {
+            if (page instanceof Leaf) {
+                Leaf leaf = (Leaf) page;
+                for (int i = 0; i < leaf.size; i++)
+                    leaf.keys[i] = (long) symbols.get(leaf.stocks[i].name).id << 32 | leaf.keys[i] & 0xFFFFFFFFL;
+                return leaf.keys[0];
+            }
+            Branch branch = (Branch) page;
+            long min = rekey(branch.children[0]);
+            for (int i = 1; i < branch.size; i++) branch.keys[i - 1] = rekey(branch.children[i]);
+            return min;
+        }
+
+        @Override
+        public void insert(Stock stock) {
+            Page sibling = insert(root, keyOf(stock), stock);
+            if (sibling != null) {
+                Branch branch = new Branch();
+                branch.children[0] = root;
+                branch.children[1] = sibling;
+                branch.keys[0] = splitKey;
+                branch.size = 2;
+                root = branch;
+            }
+        }
+
+        /**
+         * Inserts a stock into a subtree.
+         * @param page The root of the subtree
+         * @param key The packed key of the stock
+         * @param stock The stock
+         * @return The new right sibling if the page was split, with its smallest key in splitKey, or null
+         */
+        private Page insert(Page page, long key, Stock stock) {
+            if (page instanceof Leaf) return insert((Leaf) page, key, stock);
+
+            Branch branch = (Branch) page;
+            int i = upperBound(branch.keys, branch.size - 1, key);
+            Page child = insert(branch.children[i], key, stock);
+            if (child == null) return null;
+
+            if (branch.size < CAPACITY) {
+                System.arraycopy(branch.children, i + 1, branch.children, i + 2, branch.size - i - 1);
+                System.arraycopy(branch.keys, i, branch.keys, i + 1, branch.size - 1 - i);
+                branch.children[i + 1] = child;
+                branch.keys[i] = splitKey;
+                branch.size++;
+                return null;
+            }
+
+            // Split a full branch: lay out all CAPACITY + 1 children, keep the lower half and push up the middle key
+            Page[] children = new Page[CAPACITY + 1];
+            long[] keys = new long[CAPACITY];
+            System.arraycopy(branch.children, 0, children, 0, i + 1);
+            children[i + 1] = child;
+            System.arraycopy(branch.children, i + 1, children, i + 2, CAPACITY - i - 1);
+            System.arraycopy(branch.keys, 0, keys, 0, i);
+            keys[i] = splitKey;
+            System.arraycopy(branch.keys, i, keys, i + 1, CAPACITY - 1 - i);
+
+            int half = (CAPACITY + 1) / 2;
+            Branch right = new Branch();
+            System.arraycopy(children, 0, branch.children, 0, half);
+            System.arraycopy(keys, 0, branch.keys, 0, half - 1);
+            java.util.Arrays.fill(branch.children, half, CAPACITY, null);
+            branch.size = half;
+            right.size = CAPACITY + 1 - half;
+            System.arraycopy(children, half, right.children, 0, right.size);
+            System.arraycopy(keys, half, right.keys, 0, right.size - 1);
+            splitKey = keys[half - 1];
+            return right;
+        }
+
+        /**
+         * Inserts a stock into a leaf, splitting it if it is full. A leaf that is appended to at the
+         * end of the index keeps all its entries, so sorted inserts fill the leaves completely.
+         * @param leaf The leaf
+         * @param key The packed key of the stock
+         * @param stock The stock
+         * @return The new right sibling if the leaf was split, or null
+         */
+        private Page insert(Leaf leaf, long key, Stock stock) {
+            int i = lowerBound(leaf.keys, leaf.size, key);
+            if (i < leaf.size && leaf.keys[i] == key) return null;
+            size++;
+            if (leaf.size < CAPACITY) {
+                insertAt(leaf, i, key, stock);
+                return null;
+            }
+
+            Leaf right = new Leaf();
+            int keep = i == CAPACITY && leaf.next == null ? CAPACITY : CAPACITY / 2;
+            right.size = CAPACITY - keep;
+            System.arraycopy(leaf.keys, keep, right.keys, 0, right.size);
+            System.arraycopy(leaf.stocks, keep, right.stocks, 0, right.size);
+            java.util.Arrays.fill(leaf.stocks, keep, CAPACITY, null);
+            leaf.size = keep;
+            if (i <= keep && keep < CAPACITY) insertAt(leaf, i, key, stock);
+            else insertAt(right, i - keep, key, stock);
+
+            right.next = leaf.next;
+            right.prev = leaf;
+            if (leaf.next != null) leaf.next.prev = right;
+            leaf.next = right;
+            splitKey = right.keys[0];
+            return right;
+        }
+
+        /**
+         * Inserts an entry into a leaf that has room for it.
+         * @param leaf The leaf
+         * @param i The position of the entry
+         * @param key The packed key
+         * @param stock The stock
+         */
+        private static void insertAt(Leaf leaf, int i, long key, Stock stock) {
+            System.arraycopy(leaf.keys, i, leaf.keys, i + 1, leaf.size - i);
+            System.arraycopy(leaf.stocks, i, leaf.stocks, i + 1, leaf.size - i);
+            leaf.keys[i] = key;
+            leaf.stocks[i] = stock;
+            leaf.size++;
+        }
+
+        /**
+         * Builds the index bottom-up in O(N) after sorting the stocks if they are not already in
+         * symbol and date order: the leaves are filled completely and linked, then each level of
+         * branches is built over the one below. Falls back to inserting one by one if the index is
+         * not empty. Of stocks with the same symbol and date, the first is kept.
+         * @param stocks The stocks to insert
+         */
+        @Override
+        public void bulkLoad(List<Stock> stocks) {
+            if (size > 0) {
+                for (Stock stock : stocks) insert(stock);
+                return;
+            }
+
+            // Intern every symbol first so a renumbering cannot stale the keys computed below
+            for (Stock stock : stocks) if (symbols.get(stock.name) == null) symbols.add(stock.name);
+
+            // Sort (stably, so the first of two equal keys stays first) before touching any page
+            long[] keys = new long[stocks.size()];
+            Stock[] sorted = stocks.toArray(new Stock[0]);
+            boolean inOrder = true;
+            for (int i = 0; i < sorted.length; i++) {
+                keys[i] = packKey(symbols.get(sorted[i].name).id, toEpochDay(sorted[i].date));
+                if (i > 0 && keys[i] < keys[i - 1]) inOrder = false;
+            }
+            if (!inOrder) {
+                Integer[] order = new Integer[sorted.length];
+                for (int i = 0; i < order.length; i++) order[i] = i;
+                java.util.Arrays.sort(order, Comparator.comparingLong(i -> keys[i]));
+                Stock[] byKey = new Stock[sorted.length];
+                long[] sortedKeys = new long[keys.length];
+                for (int i = 0; i < order.length; i++) {
+                    byKey[i] = sorted[order[i]];
+                    sortedKeys[i] = keys[order[i]];
+                }
+                sorted = byKey;
+                System.arraycopy(sortedKeys, 0, keys, 0, keys.length);
+            }
+
+            List<Page> level = new ArrayList<>();
+            List<Long> minKeys = new ArrayList<>();
+            Leaf leaf = first;
+            level.add(leaf);
+            minKeys.add(Long.MIN_VALUE);
+            long last = Long.MIN_VALUE;
+            for (int s = 0; s < sorted.length; s++) {
+                Stock stock = sorted[s];
+                long key = keys[s];
+                if (size > 0 && key == last) continue;
+                if (leaf.size == CAPACITY) {
+                    Leaf next = new Leaf();
+                    next.prev = leaf;
+                    leaf.next = next;
+                    leaf = next;
+                    level.add(leaf);
+                    minKeys.add(key);
+                }
+                leaf.keys[leaf.size] = key;
+                leaf.stocks[leaf.size++] = stock;
+                last = key;
+                size++;
+            }
+
+            while (level.size() > 1) {
+                List<Page> parents = new ArrayList<>();
+                List<Long> parentMinKeys = new ArrayList<>();
+                for (int from = 0; from < level.size(); from += CAPACITY) {
+                    Branch branch = new Branch();
+                    int to = Math.min(level.size(), from + CAPACITY);
+                    // Do not leave a last branch with a single child
+                    if (level.size() - to == 1) to--;
+                    for (int i = from; i < to; i++) {
+                        branch.children[i - from] = level.get(i);
+                        if (i > from) branch.keys[i - from - 1] = minKeys.get(i);
+                    }
+                    branch.size = to - from;
+                    parents.add(branch);
+                    parentMinKeys.add(minKeys.get(from));
+                    from = to - CAPACITY;
+                }
+                level = parents;
+                minKeys = parentMinKeys;
+            }
+            root = level.get(0);
+        }
+
+        @Override
+        public Stock get(String symbol, Date date) {
+            SymbolDictionary.Symbol entry = symbols.get(symbol);
+            if (entry == null) return null;
+            long key = packKey(entry.id, toEpochDay(date));
+            Leaf leaf = leafFor(key);
+            int i = lowerBound(leaf.keys, leaf.size, key);
+            return i < leaf.size && leaf.keys[i] == key ? leaf.stocks[i] : null;
+        }
+
+        @Override
+        public void range(String symbol, Date fromDate, Date toDate, Consumer<Stock> action) {
+            SymbolDictionary.Symbol entry = symbols.get(symbol);
+            if (entry == null) return;
+            long lo = boundKey(entry, fromDate, Integer.MIN_VALUE);
+            long hi = boundKey(entry, toDate, Integer.MAX_VALUE);
+            Leaf leaf = leafFor(lo);
+            for (int i = lowerBound(leaf.keys, leaf.size, lo); leaf != null; leaf = leaf.next, i = 0) {
+                for (; i < leaf.size; i++) {
+                    if (leaf.keys[i] > hi) return;
+                    action.accept(leaf.stocks[i]);
+                }
+            }
+        }
+
+        @Override
+        public List<Stock> lastK(String symbol, Date date, int k) {
+            List<Stock> stocks = new ArrayList<>();
+            SymbolDictionary.Symbol entry = symbols.get(symbol);
+            if (entry == null) return stocks;
+            long lo = packKey(entry.id, Integer.MIN_VALUE);
+            long hi = boundKey(entry, date, Integer.MAX_VALUE);
+            Leaf leaf = leafFor(hi);
+            for (int i = upperBound(leaf.keys, leaf.size, hi) - 1; leaf != null && stocks.size() < k; leaf = leaf.prev,
+                    i = leaf != null ? leaf.size - 1 : 0) {
+                for (; i >= 0 && stocks.size() < k; i--) {
+                    if (leaf.keys[i] < lo) {
+                        java.util.Collections.reverse(stocks);
+                        return stocks;
+                    }
+                    stocks.add(leaf.stocks[i]);
+                }
+            }
+            java.util.Collections.reverse(stocks);
+            return stocks;
+        }
+
+        @Override
+        public void forEach(Consumer<Stock> action) {
+            for (Leaf leaf = first; leaf != null; leaf = leaf.next)
+                for (int i = 0; i < leaf.size; i++) action.accept(leaf.stocks[i]);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Gets the height of the tree.
+         * @return The number of levels, 1 for a single leaf
+         */
+        public int height() {
+            int height = 1;
+            for (Page page = root; page instanceof Branch; page = ((Branch) page).children[0]) height++;
+            return height;
+        }
+    }
+
+    /*
+     * Class: IndexedStore
+     * Description: This class is used to answer the StockStore queries from any OrderedIndex.
+     *              Range queries scan the index, so unlike the tree there are no subtree aggregates.
+     * Author: Demetrius Chatterjee
+     * Github ID: DemetriusChatterjee
+     * Version: 1.0
+     */
+    public static class IndexedStore implements StockStore {
+        private final OrderedIndex index;
+        private final java.util.TreeSet<String> symbols = new java.util.TreeSet<>();
+
+        public IndexedStore(OrderedIndex index) {
+            this.index = index;
+        }
+
+        /**
+         * Inserts a new stock.
+         * @param stock The stock to insert
+         */
+        public void insert(Stock stock) {
+            index.insert(stock);
+            symbols.add(stock.name);
+        }
+
+        /**
+         * Inserts stocks that are sorted by symbol and date.
+         * @param stocks The stocks in symbol and date order
+         */
+        public void bulkLoad(List<Stock> stocks) {
+            index.bulkLoad(stocks);
+            for (Stock stock : stocks) symbols.add(stock.name);
+        }
+
+        /**
+         * Gets the index behind this store.
+         * @return The index
+         */
+        public OrderedIndex index() {
+            return index;
+        }
+
+        @Override
+        public Stock search(String symbol, Date date) {
+            return index.get(symbol, date);
+        }
+
+        @Override
+        public List<Stock> getAllStocks() {
+            List<Stock> stocks = new ArrayList<>(index.size());
+            index.forEach(stocks::add);
+            return stocks;
+        }
+
+        @Override
+        public void forEachStock(Consumer<Stock> action) {
+            index.forEach(action);
+        }
+
+        @Override
+        public List<Stock> getStocksForDate(Date date) {
+            List<Stock> stocks = new ArrayList<>();
+            for (String symbol : symbols) {
+                Stock stock = index.get(symbol, date);
+                if (stock != null) stocks.add(stock);
+            }
+            return stocks;
+        }
+
+        @Override
+        public double calculateSMA(String symbol, Date date, int period) {
+            List<Stock> symbolStocks = index.lastK(symbol, date, period);
+            if (symbolStocks.size() < period) return 0;
+
+            double sum = 0;
+            for (int i = symbolStocks.size() - 1; i >= 0; i--) sum += symbolStocks.get(i).close;
+            return sum / period;
+        }
+
+        @Override
+        public double getAverageVolume(String symbol, Date startDate, Date endDate) {
+            StockStats stats = new StockStats();
+            index.range(symbol, startDate, endDate, stock -> stats.add(stock.open, stock.high, stock.low, stock.volume));
+            return stats.averageVolume();
+        }
+
+        @Override
+        public StockStats getStockStats(String symbol) {
+            StockStats stats = new StockStats();
+            index.range(symbol, null, null, stock -> stats.add(stock.open, stock.high, stock.low, stock.volume));
+            return stats;
+        }
+    }
+
+    /*
+     * Class: ConcurrentStore
+     * Description: This class is used to share one tree between a writer appending new bars and
+     *              many readers running queries. Queries take the read lock and run in parallel with
+     *              each other; an insert takes the write lock only for its O(log N) descent, so
+     *              readers wait at most one insert. The date index and indicator engine are updated
+     *              inside the same write, so every read sees them in step with the tree.
+     * Author: Demetrius Chatterjee
+     * Github ID: DemetriusChatterjee
+     * Version: 1.0
+     */
+    public static class ConcurrentStore implements StockStore {
+        private final StockAnalyser analyser;
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        public ConcurrentStore(StockAnalyser analyser) {
+            this.analyser = analyser;
+        }
+
+        /**
+         * Inserts a new stock.
+         * @param stock The stock to insert
+         */
+        public void insert(Stock stock) {
+            lock.writeLock().lock();
+            try {
+                analyser.insert(stock);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Inserts a batch of stocks under one write lock.
+         * @param stocks The stocks to insert
+         */
+        public void insertAll(List<Stock> stocks) {
+            lock.writeLock().lock();
+            try {
+                for (Stock stock : stocks) analyser.insert(stock);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Bulk loads a batch of stocks under one write lock.
+         * @param stocks The stocks to insert
+         */
+        public void bulkLoad(List<Stock> stocks) {
+            lock.writeLock().lock();
+            try {
+                analyser.bulkLoad(stocks);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Inserts a stock, replacing the stock with the same symbol and date if there is one.
+         * @param stock The stock to insert
+         * @return The stock that was replaced, or null if the stock was new
+         */
+        public Stock upsert(Stock stock) {
+            lock.writeLock().lock();
+            try {
+                return analyser.upsert(stock);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Deletes the stock of a symbol on a date.
+         * @param symbol The stock symbol
+         * @param date The date
+         * @return The deleted stock, or null if there is no stock for the symbol and date
+         */
+        public Stock delete(String symbol, Date date) {
+            lock.writeLock().lock();
+            try {
+                return analyser.delete(symbol, date);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Runs a compound query against the tree under one read lock, so every part of it sees the
+         * same version of the data.
+         * @param query The query
+         * @return The result of the query
+         */
+        public <T> T read(java.util.function.Function<StockAnalyser, T> query) {
+            lock.readLock().lock();
+            try {
+                return query.apply(analyser);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Gets the number of stocks in the tree.
+         * @return The number of stocks
+         */
+        public int size() {
+            return read(StockAnalyser::size);
+        }
+
+        @Override
+        public List<Stock> topK(int k, Comparator<Stock> comparator) {
+            return read(a -> a.topK(k, comparator));
+        }
+
+        @Override
+        public List<Stock> topKParallel(int k, Comparator<Stock> comparator) {
+            return read(a -> a.topKParallel(k, comparator));
+        }
+
+        @Override
+        public Stock search(String symbol, Date date) {
+            return read(a -> a.search(symbol, date));
+        }
+
+        @Override
+        public List<Stock> getAllStocks() {
+            return read(StockAnalyser::getAllStocks);
+        }
+
+        @Override
+        public void forEachStock(Consumer<Stock> action) {
+            read(a -> {
+                a.forEachStock(action);
+                return null;
+            });
+        }
+
+        @Override
+        public List<Stock> getStocksForDate(Date date) {
+            return read(a -> a.getStocksForDate(date));
+        }
+
+        @Override
+        public double calculateSMA(String symbol, Date date, int period) {
+            return read(a -> a.calculateSMA(symbol, date, period));
+        }
+
+        @Override
+        public String getPriceTrend(String symbol, Date date) {
+            return read(a -> a.getPriceTrend(symbol, date));
+        }
+
+        @Override
+        public double getAverageVolume(String symbol, Date startDate, Date endDate) {
+            return read(a -> a.getAverageVolume(symbol, startDate, endDate));
+        }
+
+        @Override
+        public StockStats getStockStats(String symbol) {
+            return read(a -> a.getStockStats(symbol));
+        }
+    }
+
+    /*
+     * Class: ShardedStore
+     * Description: This class is used to split the stocks by symbol across independent trees, so
+     *              inserts into different shards do not contend and each shard can be loaded by its
+     *              own core. Every shard is a ConcurrentStore, so queries keep running while another
+     *              shard is written. A symbol's bars all live in one shard, chosen by hashing the
+     *              symbol, so point queries go to that shard alone; getStocksForDate, topKForDate and
+     *              topK ask every shard in parallel and merge the answers into the same order a
+     *              single tree would give.
+     * Author: Demetrius Chatterjee
+     * Github ID: DemetriusChatterjee
+     * Version: 1.0
+     */
+    public static class ShardedStore implements StockStore {
+        private static final Comparator<Stock> SYMBOL_ORDER = Comparator.comparing(stock -> stock.name);
+        private static final Comparator<Stock> SYMBOL_DATE_ORDER = SYMBOL_ORDER.thenComparing(stock -> stock.date);
+        private final StockAnalyser[] trees;
+        private final ConcurrentStore[] shards;
+
+        /**
+         * Creates a store with one shard per available core.
+         */
+        public ShardedStore() {
+            this(Runtime.getRuntime().availableProcessors());
+        }
+
+        /**
+         * Creates a store with a given number of shards.
+         * @param shards The number of shards
+         * @throws IllegalArgumentException if shards is not positive
+         */
+        public ShardedStore(int shards) {
+            if (shards <= 0) throw new IllegalArgumentException("Shard count must be positive: " + shards);
+            this.trees = new StockAnalyser[shards];
+            this.shards = new ConcurrentStore[shards];
+            for (int i = 0; i < shards; i++) {
+                trees[i] = new StockAnalyser();
+                this.shards[i] = new ConcurrentStore(trees[i]);
+            }
+        }
+
+        /**
+         * Gets the shard that holds a symbol.
+         * @param symbol The stock symbol
+         * @return The shard index
+         */
+        int shardOf(String symbol) {
+            int h = symbol.hashCode();
+            return Math.floorMod(h ^ h >>> 16, shards.length);
+        }
+
+        /**
+         * Gets the number of shards.
+         * @return The number of shards
+         */
+        public int shardCount() {
+            return shards.length;
+        }
+
+        /**
+         * Gets the number of stocks in each shard.
+         * @return The shard sizes
+         */
+        public int[] shardSizes() {
+            int[] sizes = new int[shards.length];
+            for (int i = 0; i < sizes.length; i++) sizes[i] = shards[i].size();
+            return sizes;
+        }
+
+        /**
+         * Gets the number of stocks in the store.
+         * @return The number of stocks
+         */
+        public int size() {
+            int size = 0;
+            for (ConcurrentStore shard : shards) size += shard.size();
+            return size;
+        }
+
+        /**
+         * Inserts a new stock into its shard.
+         * @param stock The stock to insert
+         */
+        public void insert(Stock stock) {
+            shards[shardOf(stock.name)].insert(stock);
+        }
+
+        /**
+         * Inserts a stock into its shard, replacing the stock with the same symbol and date if there is one.
+         * @param stock The stock to insert
+         * @return The stock that was replaced, or null if the stock was new
+         */
+        public Stock upsert(Stock stock) {
+            return shards[shardOf(stock.name)].upsert(stock);
+        }
+
+        /**
+         * Deletes the stock of a symbol on a date.
+         * @param symbol The stock symbol
+         * @param date The date
+         * @return The deleted stock, or null if there is no stock for the symbol and date
+         */
+        public Stock delete(String symbol, Date date) {
+            return shards[shardOf(symbol)].delete(symbol, date);
+        }
+
+        /**
+         * Loads a CSV file, or every .csv file in a directory, using all available cores.
+         * @param path The CSV file or directory
+         * @return The ingest statistics
+         * @throws RuntimeException if there's an error reading the files
+         */
+        public IngestStats load(String path) {
+            return load(path, Runtime.getRuntime().availableProcessors());
+        }
+
+        /**
+         * Loads a CSV file, or every .csv file in a directory. Files are parsed in parallel, each
+         * splitting its rows into one list per shard, and then every shard bulk loads its lists on
+         * its own thread. No lock is shared between shards, so both phases scale with the threads.
+         * A file gets several parser threads when there are fewer files than threads.
+         * @param path The CSV file or directory
+         * @param threads The number of threads
+         * @return The ingest statistics
+         * @throws RuntimeException if there's an error reading the files
+         */
+        public IngestStats load(String path, int threads) {
+            long startTime = System.nanoTime();
+            java.io.File root = new java.io.File(path);
+            java.io.File[] files = root.isDirectory() ? root.listFiles((dir, name) -> name.endsWith(".csv")) : new java.io.File[] { root };
+            if (files == null) throw new RuntimeException("Failed to read CSV: cannot list " + path);
+            java.util.Arrays.sort(files);
+
+            IngestStats stats = new IngestStats();
+            stats.threads = Math.max(1, threads);
+            int fileThreads = Math.max(1, stats.threads / Math.max(1, files.length));
+            ExecutorService pool = Executors.newFixedThreadPool(stats.threads);
+            try {
+                List<Future<List<List<Stock>>>> parsed = new ArrayList<>();
+                List<IngestStats> fileStats = java.util.Collections.synchronizedList(new ArrayList<>());
+                for (java.io.File file : files) {
+                    parsed.add(pool.submit(() -> {
+                        List<List<Stock>> buckets = new ArrayList<>();
+                        for (int i = 0; i < shards.length; i++) buckets.add(new ArrayList<>());
+                        fileStats.add(trees[0].ingest(file.getPath(), fileThreads, stock -> buckets.get(shardOf(stock.name)).add(stock)));
+                        return buckets;
+                    }));
+                }
+
+                // Wait for every file before loading, so each shard sees its rows in file order
+                List<List<List<Stock>>> results = new ArrayList<>();
+                for (Future<List<List<Stock>>> future : parsed) results.add(future.get());
+                List<Future<?>> loads = new ArrayList<>();
+                for (int i = 0; i < shards.length; i++) {
+                    int shard = i;
+                    loads.add(pool.submit(() -> {
+                        List<Stock> stocks = new ArrayList<>();
+                        for (List<List<Stock>> buckets : results) stocks.addAll(buckets.get(shard));
+                        shards[shard].bulkLoad(stocks);
+                    }));
+                }
+                for (Future<?> load : loads) load.get();
+
+                for (IngestStats file : fileStats) {
+                    stats.rows += file.rows;
+                    stats.rejected += file.rejected;
+                    stats.fallbacks += file.fallbacks;
+                    stats.mismatches += file.mismatches;
+                    stats.chunks += file.chunks;
+                    stats.parseNanos += file.parseNanos;
+                }
+                stats.parseNanos /= Math.max(1, Math.min(files.length, stats.threads));
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Failed to read CSV: " + e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Failed to read CSV: interrupted");
+            } finally {
+                pool.shutdown();
+            }
+            stats.totalNanos = System.nanoTime() - startTime;
+            return stats;
+        }
+
+        /**
+         * Runs a query on every shard in parallel.
+         * @param query The query to run against one shard
+         * @return The answers, one per shard
+         */
+        private <T> List<T> fanOut(java.util.function.Function<ConcurrentStore, T> query) {
+            return java.util.Arrays.stream(shards).parallel().map(query).collect(java.util.stream.Collectors.toList());
+        }
+
+        /**
+         * Selects the first k stocks in comparator order, ties in symbol and date order like a single tree.
+         * Each shard selects its own k and the candidates are merged.
+         * @param k The number of stocks to select
+         * @param comparator The comparator to rank by
+         * @return Up to k stocks in comparator order
+         */
+        @Override
+        public List<Stock> topK(int k, Comparator<Stock> comparator) {
+            return merge(fanOut(shard -> shard.topK(k, comparator)), k, comparator, SYMBOL_DATE_ORDER);
+        }
+
+        @Override
+        public List<Stock> topKParallel(int k, Comparator<Stock> comparator) {
+            return topK(k, comparator);
+        }
+
+        @Override
+        public List<Stock> topKForDate(Date date, int k, Comparator<Stock> comparator) {
+            return merge(fanOut(shard -> shard.topKForDate(date, k, comparator)), k, comparator, SYMBOL_ORDER);
+        }
+
+        /**
+         * Merges the top k candidates of every shard. A stock in the overall top k is in its own
+         * shard's top k, so putting the candidates back in the order a single tree would scan them
+         * and selecting again gives the same stocks and the same tie order.
+         * @param candidates The top k of each shard
+         * @param k The number of stocks to select
+         * @param comparator The comparator to rank by
+         * @param scanOrder The order in which a single tree would visit the stocks
+         * @return Up to k stocks in comparator order
+         */
+        private static List<Stock> merge(List<List<Stock>> candidates, int k, Comparator<Stock> comparator, Comparator<Stock> scanOrder) {
+            List<Stock> all = new ArrayList<>();
+            for (List<Stock> shard : candidates) all.addAll(shard);
+            all.sort(scanOrder);
+            return StockAnalyser.topK(all, k, comparator);
+        }
+
+        @Override
+        public Stock search(String symbol, Date date) {
+            return shards[shardOf(symbol)].search(symbol, date);
+        }
+
+        @Override
+        public List<Stock> getAllStocks() {
+            List<Stock> stocks = new ArrayList<>(size());
+            for (List<Stock> shard : fanOut(ConcurrentStore::getAllStocks)) stocks.addAll(shard);
+            // Each shard is already in symbol and date order, and the sort is stable, so merging by symbol is enough
+            stocks.sort(SYMBOL_ORDER);
+            return stocks;
+        }
+
+        @Override
+        public List<Stock> getStocksForDate(Date date) {
+            List<Stock> stocks = new ArrayList<>();
+            for (List<Stock> shard : fanOut(shard -> shard.getStocksForDate(date))) stocks.addAll(shard);
+            stocks.sort(SYMBOL_ORDER);
+            return stocks;
+        }
+
+        @Override
+        public double calculateSMA(String symbol, Date date, int period) {
+            return shards[shardOf(symbol)].calculateSMA(symbol, date, period);
+        }
+
+        @Override
+        public String getPriceTrend(String symbol, Date date) {
+            return shards[shardOf(symbol)].getPriceTrend(symbol, date);
+        }
+
+        @Override
+        public double getAverageVolume(String symbol, Date startDate, Date endDate) {
+            return shards[shardOf(symbol)].getAverageVolume(symbol, startDate, endDate);
+        }
+
+        @Override
+        public StockStats getStockStats(String symbol) {
+            return shards[shardOf(symbol)].getStockStats(symbol);
+        }
+    }
+
+    /*
+     * Class: CsvFollower
+     * Description: This class is used to keep a ConcurrentStore up to date with a CSV file that is
+     *              still being appended to. Each poll reads the bytes after the committed offset, parses
+     *              the complete lines, inserts them under one write lock and only then moves the offset
+     *              past them, so a partial trailing line waits for its newline and a failed poll is
+     *              retried from the same place. Malformed rows are counted and skipped, so one bad row
+     *              cannot hold the offset back. A file that shrinks or is replaced is read again from
+     *              the start; rows already in the tree are ignored by insert. The lag histogram records,
+     *              for every poll that found rows, the time from the file's last modification to the
+     *              rows being queryable.
+     * Author: Demetrius Chatterjee
+     * Github ID: DemetriusChatterjee
+     * Version: 1.0
+     */
+    public static class CsvFollower implements AutoCloseable {
+        private static final long MAX_READ = 4 << 20;
+        private final ConcurrentStore store;
+        private final java.nio.file.Path path;
+        private final long pollMillis;
+        private final LatencyHistogram lag = new LatencyHistogram();
+        private final java.util.concurrent.atomic.AtomicLong rows = new java.util.concurrent.atomic.AtomicLong();
+        private final java.util.concurrent.atomic.AtomicLong rejected = new java.util.concurrent.atomic.AtomicLong();
+        private volatile long committedOffset;
+        private volatile Object fileKey;
+        private volatile int truncations;
+        private volatile String lastError;
+        private java.util.concurrent.ScheduledExecutorService scheduler;
+
+        /**
+         * Creates a follower that reads a file from the start.
+         * @param store The store to insert into
+         * @param filename The path to the CSV file
+         * @param pollMillis The time between polls in milliseconds
+         */
+        public CsvFollower(ConcurrentStore store, String filename, long pollMillis) {
+            this.store = store;
+            this.path = Paths.get(filename);
+            this.pollMillis = pollMillis;
+        }
+
+        /**
+         * Inserts every complete line appended since the last poll, skipping malformed rows.
+         * @return The number of rows read
+         * @throws RuntimeException if the file cannot be read
+         */
+        public synchronized int poll() {
+            try {
+                java.nio.file.attribute.BasicFileAttributes attributes = java.nio.file.Files.readAttributes(path, java.nio.file.attribute.BasicFileAttributes.class);
+                Object key = attributes.fileKey();
+                if (attributes.size() < committedOffset || key != null && fileKey != null && !key.equals(fileKey)) {
+                    committedOffset = 0;
+                    truncations++;
+                }
+                fileKey = key;
+
+                int read = 0;
+                long skipped = 0;
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    long size = channel.size();
+                    while (committedOffset < size) {
+                        long from = committedOffset == 0 ? store.analyser.nextLineStart(channel, 0, size) : committedOffset;
+                        long end = lastLineEnd(channel, from, Math.min(size, from + MAX_READ));
+                        if (end == from && from + MAX_READ < size) end = lastLineEnd(channel, from, size);
+                        if (end == from) {
+                            // No complete row yet, but a complete header is committed so it is never parsed as a row
+                            if (committedOffset == 0 && from > 0 && endsLine(channel, from)) committedOffset = from;
+                            break;
+                        }
+
+                        ChunkResult result = store.analyser.parseChunk(channel, from, end, true);
+                        List<Stock> stocks = result.stocks;
+                        // Catching up on a large backlog is cheaper as one O(N + M) bulk load than M inserts
+                        if (stocks.size() > store.size() / 8) store.bulkLoad(stocks);
+                        else store.insertAll(stocks);
+                        committedOffset = end;
+                        read += stocks.size();
+                        skipped += result.rejected;
+                    }
+                }
+                if (read > 0) {
+                    rows.addAndGet(read);
+                    lag.record(java.time.Duration.between(attributes.lastModifiedTime().toInstant(), java.time.Instant.now()).toNanos());
+                }
+                rejected.addAndGet(skipped);
+                lastError = skipped > 0 ? "skipped " + skipped + " malformed rows" : null;
+                return read;
+            } catch (Exception e) {
+                lastError = e.getMessage();
+                throw new RuntimeException("Failed to follow CSV: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Finds the end of the last complete line in a byte range.
+         * @param channel The file channel
+         * @param from The start of the range
+         * @param to The end of the range
+         * @return The offset just past the last newline in the range, or from if there is none
+         * @throws IOException if the file cannot be read
+         */
+        private static long lastLineEnd(FileChannel channel, long from, long to) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+            long pos = to;
+            while (pos > from) {
+                int n = (int) Math.min(buffer.capacity(), pos - from);
+                buffer.clear().limit(n);
+                channel.read(buffer, pos - n);
+                for (int i = n - 1; i >= 0; i--)
+                    if (buffer.get(i) == '\n') return pos - n + i + 1;
+                pos -= n;
+            }
+            return from;
+        }
+
+        /**
+         * Checks whether the byte before an offset is a newline.
+         * @param channel The file channel
+         * @param offset The offset
+         * @return true if a line ends at the offset
+         * @throws IOException if the file cannot be read
+         */
+        private static boolean endsLine(FileChannel channel, long offset) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(1);
+            return channel.read(buffer, offset - 1) == 1 && buffer.get(0) == '\n';
+        }
+
+        /**
+         * Starts polling the file on a daemon thread. A failed poll is reported and retried.
+         */
+        public synchronized void start() {
+            if (scheduler != null) return;
+            scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "csv-follower");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    poll();
+                } catch (RuntimeException e) {
+                    System.err.println(e.getMessage());
+                }
+            }, pollMillis, pollMillis, java.util.concurrent.TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Stops polling.
+         */
+        @Override
+        public synchronized void close() {
+            if (scheduler != null) scheduler.shutdownNow();
+            scheduler = null;
+        }
+
+        /**
+         * Gets the offset just past the last line that has been inserted.
+         * @return The committed offset in bytes
+         */
+        public long committedOffset() {
+            return committedOffset;
+        }
+
+        /**
+         * Gets the number of rows read since the follower was created.
+         * @return The number of rows
+         */
+        public long rows() {
+            return rows.get();
+        }
+
+        /**
+         * Gets the number of malformed rows skipped since the follower was created.
+         * @return The number of rejected rows
+         */
+        public long rejected() {
+            return rejected.get();
+        }
+
+        /**
+         * Gets the number of times the file shrank or was replaced and was read again from the start.
+         * @return The number of truncations
+         */
+        public int truncations() {
+            return truncations;
+        }
+
+        /**
+         * Gets the time from the file being modified to its new rows being queryable.
+         * @return The lag histogram, in nanoseconds
+         */
+        public LatencyHistogram lag() {
+            return lag;
+        }
+
+        /**
+         * Gets the error of the last poll.
+         * @return The error message, or null if the last poll read every row
+         */
+        public String lastError() {
+            return lastError;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d rows (%d rejected), offset %d, %d truncations, lag p50=%.1fms p99=%.1fms max=%.1fms%s", path, rows(),
+                    rejected(), committedOffset, truncations, lag.percentile(50) / 1e6, lag.percentile(99) / 1e6, lag.max() / 1e6, lastError != null ? ", error: " + lastError : "");
+        }
+    }
+
+    /*
+     * Class: PersistentTree
+     * Description: This class is used to keep every version of the tree readable while new bars are
+     *              inserted. It runs the same left-leaning red-black insert as StockAnalyser, but copies
+     *              the nodes on the insert path instead of changing them, so each insert publishes a
+     *              new root that shares all unchanged subtrees with the previous one. A Snapshot holds
+     *              one root and never changes; taking one is a single volatile read, readers never
+     *              block the writer, and each version costs O(log N) new nodes. Old versions are
+     *              garbage collected once no Snapshot refers to them.
+     * Author: Demetrius Chatterjee
+     * Github ID: DemetriusChatterjee
+     * Version: 1.0
      */
-    private void quickSort(Stock[] arr, int low, int high, Comparator<Stock> comparator) {
-        if (low < high) {
-            int pi = partition(arr, low, high, comparator);
-            quickSort(arr, low, pi - 1, comparator);
-            quickSort(arr, pi + 1, high, comparator);
+    public static class PersistentTree {
+        private volatile Snapshot current = new Snapshot(0, null, 0);
+        private final Map<Long, java.lang.ref.WeakReference<Snapshot>> versions = new ConcurrentHashMap<>();
+        private final java.lang.ref.ReferenceQueue<Snapshot> released = new java.lang.ref.ReferenceQueue<>();
+        private boolean added;
+
+        /*
+         * Class: PNode
+         * Description: This class is used to store one node of a persistent tree. A node is only
+         *              changed by the insert that created it, before it is published.
+         * Author: Demetrius Chatterjee
+         * Github ID: DemetriusChatterjee
+         * Version: 1.0
+         */
+        private static class PNode {
+            final Stock stock;
+            final long version;
+            PNode left, right;
+            boolean color;
+
+            PNode(Stock stock, long version, PNode left, PNode right, boolean color) {
+                this.stock = stock;
+                this.version = version;
+                this.left = left;
+                this.right = right;
+                this.color = color;
+            }
+        }
+
+        /**
+         * Creates a persistent tree holding every stock of a store.
+         * @param store The store to copy
+         * @return The persistent tree
+         */
+        public static PersistentTree from(StockStore store) {
+            PersistentTree tree = new PersistentTree();
+            store.forEachStock(tree::insert);
+            return tree;
+        }
+
+        /**
+         * Inserts a new stock and publishes a new version. Inserts are serialized; reads are not.
+         * @param stock The stock to insert
+         * @return The snapshot of the new version
+         */
+        public synchronized Snapshot insert(Stock stock) {
+            Snapshot previous = current;
+            long version = previous.version + 1;
+            added = false;
+            PNode root = insert(previous.root, stock, version);
+            if (!added) return previous;
+            root = writable(root, version);
+            root.color = BLACK;
+
+            Snapshot snapshot = new Snapshot(version, root, previous.size + 1);
+            versions.put(version, new java.lang.ref.WeakReference<>(snapshot, released));
+            current = snapshot;
+            expungeReleased();
+            return snapshot;
+        }
+
+        /**
+         * Drops the version entries of snapshots that have been garbage collected.
+         */
+        private void expungeReleased() {
+            java.lang.ref.Reference<? extends Snapshot> ref;
+            while ((ref = released.poll()) != null) versions.values().remove(ref);
+        }
+
+        /**
+         * Gets a node that the current insert may change, copying it if an older version owns it.
+         * @param h The node
+         * @param version The version being built
+         * @return The node itself if it belongs to this version, otherwise a copy
+         */
+        private PNode writable(PNode h, long version) {
+            return h.version == version ? h : new PNode(h.stock, version, h.left, h.right, h.color);
+        }
+
+        /**
+         * Inserts a stock into a subtree by copying the nodes on its path.
+         * @param h The root node of the subtree
+         * @param stock The stock to insert
+         * @param version The version being built
+         * @return The new root node of the subtree
+         */
+        private PNode insert(PNode h, Stock stock, long version) {
+            if (h == null) {
+                added = true;
+                return new PNode(stock, version, null, null, RED);
+            }
+
+            int cmp = compare(stock.name, stock.date, h.stock);
+            if (cmp == 0) return h;
+            h = writable(h, version);
+            if (cmp < 0) h.left = insert(h.left, stock, version);
+            else h.right = insert(h.right, stock, version);
+
+            if (isRed(h.right) && !isRed(h.left)) h = rotateLeft(h, version);
+            if (isRed(h.left) && isRed(h.left.left)) h = rotateRight(h, version);
+            if (isRed(h.left) && isRed(h.right)) flipColors(h, version);
+            return h;
+        }
+
+        private static boolean isRed(PNode x) {
+            return x != null && x.color == RED;
+        }
+
+        /**
+         * Performs a left rotation, copying the right child if an older version owns it.
+         * @param h The node to rotate, owned by this version
+         * @param version The version being built
+         * @return The new root node after rotation
+         */
+        private PNode rotateLeft(PNode h, long version) {
+            PNode x = writable(h.right, version);
+            h.right = x.left;
+            x.left = h;
+            x.color = h.color;
+            h.color = RED;
+            return x;
+        }
+
+        /**
+         * Performs a right rotation, copying the left child if an older version owns it.
+         * @param h The node to rotate, owned by this version
+         * @param version The version being built
+         * @return The new root node after rotation
+         */
+        private PNode rotateRight(PNode h, long version) {
+            PNode x = writable(h.left, version);
+            h.left = x.right;
+            x.right = h;
+            x.color = h.color;
+            h.color = RED;
+            return x;
+        }
+
+        /**
+         * Flips the colors of a node and its two children, copying the children if needed.
+         * @param h The parent node, owned by this version
+         * @param version The version being built
+         */
+        private void flipColors(PNode h, long version) {
+            h.left = writable(h.left, version);
+            h.right = writable(h.right, version);
+            h.color = RED;
+            h.left.color = BLACK;
+            h.right.color = BLACK;
+        }
+
+        /**
+         * Compares a (symbol, date) key with the key of a stock.
+         * @param symbol The stock symbol
+         * @param date The date
+         * @param stock The stock to compare to
+         * @return The comparison result
+         */
+        private static int compare(String symbol, Date date, Stock stock) {
+            int cmp = symbol.compareTo(stock.name);
+            return cmp != 0 ? cmp : date.compareTo(stock.date);
+        }
+
+        /**
+         * Gets the latest version.
+         * @return The snapshot of the latest version
+         */
+        public Snapshot snapshot() {
+            return current;
+        }
+
+        /**
+         * Gets an earlier version, if some reader still holds its snapshot.
+         * @param version The version number
+         * @return The snapshot, or null if it has been released
+         */
+        public Snapshot asOf(long version) {
+            Snapshot snapshot = current;
+            if (snapshot.version == version) return snapshot;
+            java.lang.ref.WeakReference<Snapshot> ref = versions.get(version);
+            return ref != null ? ref.get() : null;
+        }
+
+        /**
+         * Checks whether a version still has an entry. The entry is dropped by a later insert once
+         * the version's snapshot has been garbage collected.
+         * @param version The version number
+         * @return true if the version has an entry, false otherwise
+         */
+        boolean hasVersionEntry(long version) {
+            return versions.containsKey(version);
+        }
+
+        /*
+         * Class: Snapshot
+         * Description: This class is used to query one immutable version of a persistent tree.
+         * Author: Demetrius Chatterjee
+         * Github ID: DemetriusChatterjee
+         * Version: 1.0
+         */
+        public static class Snapshot implements StockStore {
+            private final long version;
+            private final PNode root;
+            private final int size;
+
+            private Snapshot(long version, PNode root, int size) {
+                this.version = version;
+                this.root = root;
+                this.size = size;
+            }
+
+            /**
+             * Gets the version number of this snapshot.
+             * @return The version number, which counts the inserts that produced it
+             */
+            public long version() {
+                return version;
+            }
+
+            /**
+             * Gets the number of stocks in this version.
+             * @return The number of stocks
+             */
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public Stock search(String symbol, Date date) {
+                PNode x = root;
+                while (x != null) {
+                    int cmp = compare(symbol, date, x.stock);
+                    if (cmp < 0) x = x.left;
+                    else if (cmp > 0) x = x.right;
+                    else return x.stock;
+                }
+                return null;
+            }
+
+            /**
+             * Gets the stocks of a symbol within a date range, in date order.
+             * @param symbol The stock symbol
+             * @param fromDate The first date to include
+             * @param toDate The last date to include
+             * @return List of matching stocks
+             */
+            public List<Stock> range(String symbol, Date fromDate, Date toDate) {
+                List<Stock> stocks = new ArrayList<>();
+                range(root, symbol, fromDate, toDate, stocks);
+                return stocks;
+            }
+
+            private void range(PNode x, String symbol, Date fromDate, Date toDate, List<Stock> stocks) {
+                if (x == null) return;
+                int cmpLo = compare(symbol, fromDate, x.stock);
+                int cmpHi = compare(symbol, toDate, x.stock);
+                if (cmpLo < 0) range(x.left, symbol, fromDate, toDate, stocks);
+                if (cmpLo <= 0 && cmpHi >= 0) stocks.add(x.stock);
+                if (cmpHi > 0) range(x.right, symbol, fromDate, toDate, stocks);
+            }
+
+            @Override
+            public List<Stock> getAllStocks() {
+                List<Stock> stocks = new ArrayList<>(size);
+                forEachStock(stocks::add);
+                return stocks;
+            }
+
+            @Override
+            public void forEachStock(Consumer<Stock> action) {
+                forEachStock(root, action);
+            }
+
+            private void forEachStock(PNode x, Consumer<Stock> action) {
+                if (x == null) return;
+                forEachStock(x.left, action);
+                action.accept(x.stock);
+                forEachStock(x.right, action);
+            }
+
+            /**
+             * Gets all stocks for a specific date. Snapshots have no date index, so this visits every node.
+             * @param date The date to search for
+             * @return List of stocks on the given date
+             */
+            @Override
+            public List<Stock> getStocksForDate(Date date) {
+                int day = toEpochDay(date);
+                List<Stock> stocks = new ArrayList<>();
+                forEachStock(stock -> {
+                    if (toEpochDay(stock.date) == day) stocks.add(stock);
+                });
+                return stocks;
+            }
+
+            @Override
+            public double calculateSMA(String symbol, Date date, int period) {
+                List<Stock> symbolStocks = range(symbol, MIN_DATE, date);
+                if (symbolStocks.size() < period) return 0;
+
+                double sum = 0;
+                for (int i = symbolStocks.size() - 1; i >= symbolStocks.size() - period; i--) {
+                    sum += symbolStocks.get(i).close;
+                }
+                return sum / period;
+            }
+
+            @Override
+            public double getAverageVolume(String symbol, Date startDate, Date endDate) {
+                List<Stock> stocks = range(symbol, startDate, endDate);
+                long totalVolume = 0;
+                for (Stock stock : stocks) totalVolume += stock.volume;
+                return stocks.size() > 0 ? totalVolume / (double) stocks.size() : 0;
+            }
+
+            @Override
+            public StockStats getStockStats(String symbol) {
+                StockStats stats = new StockStats();
+                for (Stock stock : range(symbol, MIN_DATE, MAX_DATE)) stats.add(stock.open, stock.high, stock.low, stock.volume);
+                return stats;
+            }
+        }
+    }
+
+    /*
+     * Class: LatencyHistogram
+     * Description: This class is used to record latencies and report their percentiles. Values are
+     *              counted in log-linear buckets, 32 per power of two, so any percentile is within
+     *              about 3% of the true value while the histogram stays a fixed 15 KB. Recording is a
+     *              single atomic increment, so many threads can share one histogram.
+     * Author: Demetrius Chatterjee
+     * Github ID: DemetriusChatterjee
+     * Version: 1.0
+     */
+    public static class LatencyHistogram {
+        private static final int SUB_BITS = 5;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private final java.util.concurrent.atomic.AtomicLongArray counts = new java.util.concurrent.atomic.AtomicLongArray((64 - SUB_BITS) * SUB_COUNT + SUB_COUNT);
+        private final java.util.concurrent.atomic.LongAdder count = new java.util.concurrent.atomic.LongAdder();
+        private final java.util.concurrent.atomic.LongAdder total = new java.util.concurrent.atomic.LongAdder();
+        private final java.util.concurrent.atomic.AtomicLong max = new java.util.concurrent.atomic.AtomicLong();
+
+        /**
+         * Records one value.
+         * @param nanos The latency in nanoseconds; negative values are recorded as 0
+         */
+        public void record(long nanos) {
+            long value = Math.max(0, nanos);
+            counts.incrementAndGet(bucket(value));
+            count.increment();
+            total.add(value);
+            long previous;
+            while (value > (previous = max.get()) && !max.compareAndSet(previous, value)) {
+            }
+        }
+
+        /**
+         * Adds every value recorded by another histogram to this one.
+         * @param other The histogram to merge
+         */
+        public void merge(LatencyHistogram other) {
+            for (int i = 0; i < counts.length(); i++) {
+                long c = other.counts.get(i);
+                if (c != 0) counts.addAndGet(i, c);
+            }
+            count.add(other.count.sum());
+            total.add(other.total.sum());
+            long value = other.max.get(), previous;
+            while (value > (previous = max.get()) && !max.compareAndSet(previous, value)) {
+            }
+        }
+
+        /**
+         * Gets the bucket of a value: values below 32 have a bucket each, larger values share a
+         * bucket with those that have the same top 6 bits.
+         * @param value The value
+         * @return The bucket index
+         */
+        private static int bucket(long value) {
+            if (value < SUB_COUNT) return (int) value;
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return shift * SUB_COUNT + (int) (value >>> shift);
+        }
+
+        /**
+         * Gets the largest value that falls into a bucket.
+         * @param bucket The bucket index
+         * @return The upper bound of the bucket
+         */
+        private static long upperBound(int bucket) {
+            if (bucket < 2 * SUB_COUNT) return bucket;
+            int shift = bucket / SUB_COUNT - 1;
+            long top = bucket - shift * SUB_COUNT;
+            return ((top + 1) << shift) - 1;
+        }
+
+        /**
+         * Gets the number of recorded values.
+         * @return The count
+         */
+        public long count() {
+            return count.sum();
+        }
+
+        /**
+         * Gets the largest recorded value.
+         * @return The maximum, or 0 if nothing was recorded
+         */
+        public long max() {
+            return max.get();
+        }
+
+        /**
+         * Gets the mean of the recorded values.
+         * @return The mean, or 0 if nothing was recorded
+         */
+        public double mean() {
+            long n = count.sum();
+            return n > 0 ? total.sum() / (double) n : 0;
+        }
+
+        /**
+         * Gets a percentile of the recorded values.
+         * @param percentile The percentile, from 0 to 100
+         * @return The value at the percentile, or 0 if nothing was recorded
+         */
+        public long percentile(double percentile) {
+            long n = count.sum();
+            if (n == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) return Math.min(upperBound(i), max.get());
+            }
+            return max.get();
+        }
+
+        /**
+         * Returns a one-line summary in microseconds.
+         * @return The summary
+         */
+        @Override
+        public String toString() {
+            return String.format("count=%d p50=%.1fus p90=%.1fus p99=%.1fus max=%.1fus", count(),
+                    percentile(50) / 1000.0, percentile(90) / 1000.0, percentile(99) / 1000.0, max() / 1000.0);
+        }
+    }
+
+    /*
+     * Class: Metrics
+     * Description: This class is used to record how long the tree and query operations take and how
+     *              much rebalancing the tree does. Each operation has a call count and a LatencyHistogram,
+     *              rotations and color flips are counted in LongAdders, and gauges such as the tree
+     *              height are read when a report is made. Reading the clock stops the CPU from
+     *              overlapping the cache misses of consecutive tree searches, so point operations are
+     *              counted every time but only every sampleEvery-th call is timed; bulk loads, CSV
+     *              reads and sorts are always timed. A StockAnalyser only records into its Metrics
+     *              once enableMetrics has been called; until then every hook is a single null check.
+     *              Reports go to a Reporter, either on a schedule or on demand, and the same values
+     *              can be read over JMX.
+     * Author: Demetrius Chatterjee
+     * Github ID: DemetriusChatterjee
+     * Version: 1.0
+     */
+    public static class Metrics {
+        /**
+         * The timed operations, with the names they are reported under.
+         */
+        public enum Operation {
+            INSERT("insert", true), BULK_LOAD("bulkLoad", false), UPSERT("upsert", true), DELETE("delete", true),
+            SEARCH("search", true), READ_CSV("readCSV", false), CALCULATE_SMA("calculateSMA", true),
+            PRICE_TREND("getPriceTrend", true), AVERAGE_VOLUME("getAverageVolume", true), STOCK_STATS("getStockStats", true),
+            STOCKS_FOR_DATE("getStocksForDate", true), BUBBLE_SORT("bubbleSort", false), SELECTION_SORT("selectionSort", false),
+            MERGE_SORT("mergeSort", false), QUICK_SORT("quickSort", false);
+
+            final String label;
+            final boolean sampled;
+
+            Operation(String label, boolean sampled) {
+                this.label = label;
+                this.sampled = sampled;
+            }
+        }
+
+        /*
+         * Interface: Reporter
+         * Description: This interface is used to publish the current metrics somewhere.
+         * Author: Demetrius Chatterjee
+         * Github ID: DemetriusChatterjee
+         * Version: 1.0
+         */
+        public interface Reporter {
+            /**
+             * Publishes the current values of the metrics.
+             * @param metrics The metrics
+             */
+            void report(Metrics metrics);
+        }
+
+        // Returned by start for a call that is counted but not timed
+        private static final long UNTIMED = Long.MIN_VALUE;
+        private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+        private final java.util.concurrent.atomic.LongAdder[] calls = new java.util.concurrent.atomic.LongAdder[Operation.values().length];
+        private final int sampleMask;
+        // Racy on purpose: a lost increment only shifts which call gets sampled
+        private int tick;
+        final java.util.concurrent.atomic.LongAdder rotations = new java.util.concurrent.atomic.LongAdder();
+        final java.util.concurrent.atomic.LongAdder colorFlips = new java.util.concurrent.atomic.LongAdder();
+        private final Map<String, java.util.function.LongSupplier> gauges = new java.util.concurrent.ConcurrentSkipListMap<>();
+        private java.util.concurrent.ScheduledExecutorService scheduler;
+
+        public Metrics() {
+            this(16);
+        }
+
+        /**
+         * Creates metrics that time one in every sampleEvery calls of the point operations.
+         * @param sampleEvery The sampling interval, a power of two; 1 times every call
+         * @throws IllegalArgumentException if sampleEvery is not a power of two
+         */
+        public Metrics(int sampleEvery) {
+            if (sampleEvery <= 0 || Integer.bitCount(sampleEvery) != 1)
+                throw new IllegalArgumentException("Sampling interval must be a power of two: " + sampleEvery);
+            sampleMask = sampleEvery - 1;
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = new LatencyHistogram();
+                calls[i] = new java.util.concurrent.atomic.LongAdder();
+            }
+        }
+
+        /**
+         * Starts an operation, reading the clock if this call is to be timed.
+         * @param operation The operation
+         * @return The start time to pass to record
+         */
+        long start(Operation operation) {
+            return operation.sampled && (++tick & sampleMask) != 0 ? UNTIMED : System.nanoTime();
+        }
+
+        /**
+         * Counts an operation and records its latency if it was timed.
+         * @param operation The operation
+         * @param startNanos The value returned by start, or the System.nanoTime() when the operation started
+         */
+        void record(Operation operation, long startNanos) {
+            calls[operation.ordinal()].increment();
+            if (startNanos != UNTIMED) latencies[operation.ordinal()].record(System.nanoTime() - startNanos);
+        }
+
+        /**
+         * Gets the number of calls of an operation, timed or not.
+         * @param operation The operation
+         * @return The number of calls
+         */
+        public long count(Operation operation) {
+            return calls[operation.ordinal()].sum();
+        }
+
+        /**
+         * Gets the latency histogram of the timed calls of an operation.
+         * @param operation The operation
+         * @return The histogram, in nanoseconds
+         */
+        public LatencyHistogram latency(Operation operation) {
+            return latencies[operation.ordinal()];
+        }
+
+        /**
+         * Gets the number of tree rotations.
+         * @return The number of rotations
+         */
+        public long rotations() {
+            return rotations.sum();
+        }
+
+        /**
+         * Gets the number of color flips.
+         * @return The number of color flips
+         */
+        public long colorFlips() {
+            return colorFlips.sum();
+        }
+
+        /**
+         * Adds a value that is read each time the metrics are reported.
+         * @param name The name of the gauge
+         * @param value Supplies the current value
+         */
+        public void gauge(String name, java.util.function.LongSupplier value) {
+            gauges.put(name, value);
+        }
+
+        /**
+         * Reads a gauge.
+         * @param name The name of the gauge
+         * @return The current value
+         * @throws IllegalArgumentException if there is no gauge with the name
+         */
+        public long gauge(String name) {
+            java.util.function.LongSupplier value = gauges.get(name);
+            if (value == null) throw new IllegalArgumentException("Unknown gauge: " + name);
+            return value.getAsLong();
+        }
+
+        /**
+         * Formats the metrics as text, one line per operation that has run.
+         * @return The report
+         */
+        public String toText() {
+            StringBuilder sb = new StringBuilder("Metrics:\n");
+            for (Operation operation : Operation.values()) {
+                LatencyHistogram histogram = latency(operation);
+                if (count(operation) == 0) continue;
+                sb.append(String.format("  %-18s count=%d p50=%.1fus p90=%.1fus p99=%.1fus max=%.1fus%n", operation.label, count(operation),
+                        histogram.percentile(50) / 1000.0, histogram.percentile(90) / 1000.0, histogram.percentile(99) / 1000.0, histogram.max() / 1000.0));
+            }
+            sb.append("  rotations=").append(rotations()).append(" colorFlips=").append(colorFlips());
+            for (Map.Entry<String, java.util.function.LongSupplier> gauge : gauges.entrySet())
+                sb.append(' ').append(gauge.getKey()).append('=').append(gauge.getValue().getAsLong());
+            return sb.append('\n').toString();
         }
-    }
 
-    /**
-     * Partitions an array of stocks.
-     * @param arr The array to partition
-     * @param low The left index of the array
-     * @param high The right index of the array
-     * @param comparator The comparator to use for sorting
-     * @return The pivot index
-     */
-    private int partition(Stock[] arr, int low, int high, Comparator<Stock> comparator) {
-        Stock pivot = arr[high];
-        int i = (low - 1);
-        for (int j = low; j < high; j++) {
-            if (comparator.compare(arr[j], pivot) >= 0) {
-                i++;
-                Stock temp = arr[i];
-                arr[i] = arr[j];
-                arr[j] = temp;
+        /**
+         * Formats the metrics as a JSON object with latencies in nanoseconds:
+         * {"operations":{"insert":{"count","mean","p50","p90","p99","max"},...},"rotations","colorFlips","gauges":{...}}.
+         * @return The report
+         */
+        public String toJson() {
+            StringBuilder sb = new StringBuilder("{\"operations\":{");
+            boolean first = true;
+            for (Operation operation : Operation.values()) {
+                LatencyHistogram histogram = latency(operation);
+                if (count(operation) == 0) continue;
+                if (!first) sb.append(',');
+                first = false;
+                Json.string(sb, operation.label).append(":{\"count\":").append(count(operation)).append(",\"mean\":");
+                Json.number(sb, histogram.mean()).append(",\"p50\":").append(histogram.percentile(50))
+                        .append(",\"p90\":").append(histogram.percentile(90)).append(",\"p99\":").append(histogram.percentile(99))
+                        .append(",\"max\":").append(histogram.max()).append('}');
+            }
+            sb.append("},\"rotations\":").append(rotations()).append(",\"colorFlips\":").append(colorFlips()).append(",\"gauges\":{");
+            first = true;
+            for (Map.Entry<String, java.util.function.LongSupplier> gauge : gauges.entrySet()) {
+                if (!first) sb.append(',');
+                first = false;
+                Json.string(sb, gauge.getKey()).append(':').append(gauge.getValue().getAsLong());
             }
+            return sb.append("}}").toString();
         }
-        Stock temp = arr[i + 1];
-        arr[i + 1] = arr[high];
-        arr[high] = temp;
-        return i + 1;
-    }
 
-    /**
-     * Gets all stocks for a specific date.
-     * @param date The date to search for
-     * @return List of stocks on the given date
-     */
-    public List<Stock> getStocksForDate(Date date) {
-        List<Stock> allStocks = getAllStocks();
-        List<Stock> stocksForDate = new ArrayList<>();
-        
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
-        String targetDateStr = sdf.format(date);
-        
-        System.out.println("Target date: " + targetDateStr);
-        
-        for (Stock stock : allStocks) {
-            String stockDateStr = sdf.format(stock.date);
-            if (stockDateStr.equals(targetDateStr)) {
-                stocksForDate.add(stock);
+        /**
+         * Creates a reporter that prints the text report.
+         * @param out The stream to print to
+         * @return The reporter
+         */
+        public static Reporter textReporter(java.io.PrintStream out) {
+            return metrics -> out.print(metrics.toText());
+        }
+
+        /**
+         * Creates a reporter that replaces a file with the JSON report. The report is written to a
+         * temporary file first and moved into place, so a reader never sees half of it.
+         * @param filename The path of the JSON file
+         * @return The reporter
+         * @throws RuntimeException if the file cannot be written
+         */
+        public static Reporter jsonFileReporter(String filename) {
+            return metrics -> {
+                try {
+                    java.nio.file.Path target = Paths.get(filename).toAbsolutePath();
+                    java.nio.file.Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+                    java.nio.file.Files.write(temp, metrics.toJson().getBytes(StandardCharsets.UTF_8));
+                    java.nio.file.Files.move(temp, target, java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+                            java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to write metrics: " + e.getMessage());
+                }
+            };
+        }
+
+        /**
+         * Runs a reporter periodically on a daemon thread.
+         * @param reporter The reporter
+         * @param periodMillis The time between reports in milliseconds
+         * @return The scheduled reports, which can be cancelled
+         */
+        public synchronized java.util.concurrent.ScheduledFuture<?> schedule(Reporter reporter, long periodMillis) {
+            if (scheduler == null) {
+                scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+                    Thread thread = new Thread(task, "metrics-reporter");
+                    thread.setDaemon(true);
+                    return thread;
+                });
             }
+            return scheduler.scheduleAtFixedRate(() -> {
+                try {
+                    reporter.report(this);
+                } catch (RuntimeException e) {
+                    System.err.println(e.getMessage());
+                }
+            }, periodMillis, periodMillis, java.util.concurrent.TimeUnit.MILLISECONDS);
         }
-        
-        return stocksForDate;
-    }
 
-    /**
-     * Calculates the Simple Moving Average (SMA) for a stock.
-     * @param symbol The stock symbol
-     * @param date The end date for calculation
-     * @param period The number of days to calculate SMA for
-     * @return The calculated SMA value
-     */
-    public double calculateSMA(String symbol, Date date, int period) {
-        List<Stock> stocks = getAllStocks();
-        List<Stock> symbolStocks = new ArrayList<>();
-        for (Stock stock : stocks) {
-            if (stock.name.equals(symbol) && !stock.date.after(date)) {
-                symbolStocks.add(stock);
+        /**
+         * Publishes the metrics as an MBean, with one read-only attribute per value, e.g.
+         * search.p99 (in nanoseconds), rotations or height.
+         * @param name The object name, e.g. StockAnalyser:type=Metrics
+         * @throws RuntimeException if the MBean cannot be registered
+         */
+        public void registerMBean(String name) {
+            try {
+                java.lang.management.ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(this), new javax.management.ObjectName(name));
+            } catch (Exception e) {
+                throw new RuntimeException("Failed to register metrics MBean: " + e.getMessage());
             }
         }
-        
-        if (symbolStocks.size() < period) return 0;
-        
-        double sum = 0;
-        for (int i = symbolStocks.size() - 1; i >= symbolStocks.size() - period; i--) {
-            sum += symbolStocks.get(i).close;
+
+        /**
+         * Gets the names of the values exposed over JMX.
+         * @return The attribute names
+         */
+        List<String> attributeNames() {
+            List<String> names = new ArrayList<>();
+            for (Operation operation : Operation.values())
+                for (String statistic : new String[] { "count", "p50", "p90", "p99", "max" }) names.add(operation.label + "." + statistic);
+            names.add("rotations");
+            names.add("colorFlips");
+            names.addAll(gauges.keySet());
+            return names;
+        }
+
+        /**
+         * Reads a value exposed over JMX.
+         * @param name The attribute name
+         * @return The value, or null if there is no such attribute
+         */
+        Long attribute(String name) {
+            if (name.equals("rotations")) return rotations();
+            if (name.equals("colorFlips")) return colorFlips();
+            java.util.function.LongSupplier gauge = gauges.get(name);
+            if (gauge != null) return gauge.getAsLong();
+            int dot = name.lastIndexOf('.');
+            for (Operation operation : Operation.values()) {
+                if (dot < 0 || !operation.label.equals(name.substring(0, dot))) continue;
+                LatencyHistogram histogram = latency(operation);
+                switch (name.substring(dot + 1)) {
+                    case "count": return count(operation);
+                    case "p50": return histogram.percentile(50);
+                    case "p90": return histogram.percentile(90);
+                    case "p99": return histogram.percentile(99);
+                    case "max": return histogram.max();
+                    default: return null;
+                }
+            }
+            return null;
+        }
+
+        /*
+         * Class: MetricsMBean
+         * Description: This class is used to expose Metrics to JMX clients such as jconsole.
+         * Author: Demetrius Chatterjee
+         * Github ID: DemetriusChatterjee
+         * Version: 1.0
+         */
+        private static class MetricsMBean implements javax.management.DynamicMBean {
+            private final Metrics metrics;
+
+            MetricsMBean(Metrics metrics) {
+                this.metrics = metrics;
+            }
+
+            @Override
+            public Object getAttribute(String attribute) throws javax.management.AttributeNotFoundException {
+                Long value = metrics.attribute(attribute);
+                if (value == null) throw new javax.management.AttributeNotFoundException(attribute);
+                return value;
+            }
+
+            @Override
+            public void setAttribute(javax.management.Attribute attribute) throws javax.management.AttributeNotFoundException {
+                throw new javax.management.AttributeNotFoundException(attribute.getName() + " is read-only");
+            }
+
+            @Override
+            public javax.management.AttributeList getAttributes(String[] attributes) {
+                javax.management.AttributeList list = new javax.management.AttributeList();
+                for (String attribute : attributes) {
+                    Long value = metrics.attribute(attribute);
+                    if (value != null) list.add(new javax.management.Attribute(attribute, value));
+                }
+                return list;
+            }
+
+            @Override
+            public javax.management.AttributeList setAttributes(javax.management.AttributeList attributes) {
+                return new javax.management.AttributeList();
+            }
+
+            @Override
+            public Object invoke(String actionName, Object[] params, String[] signature) throws javax.management.ReflectionException {
+                throw new javax.management.ReflectionException(new NoSuchMethodException(actionName));
+            }
+
+            @Override
+            public javax.management.MBeanInfo getMBeanInfo() {
+                List<String> names = metrics.attributeNames();
+                javax.management.MBeanAttributeInfo[] attributes = new javax.management.MBeanAttributeInfo[names.size()];
+                for (int i = 0; i < attributes.length; i++)
+                    attributes[i] = new javax.management.MBeanAttributeInfo(names.get(i), "long", names.get(i), true, false, false);
+                return new javax.management.MBeanInfo(Metrics.class.getName(), "Stock analyser metrics", attributes, null, null, null);
+            }
         }
-        return sum / period;
     }
 
-    /**
-     * Gets the price trend for a stock.
-     * @param symbol The stock symbol
-     * @param date The date to search for
-     * @return The price trend
+    /*
+     * Class: Json
+     * Description: This class is used to format stocks and query results as JSON.
+     * Author: Demetrius Chatterjee
+     * Github ID: DemetriusChatterjee
+     * Version: 1.0
      */
-    public String getPriceTrend(String symbol, Date date) {
-        double shortSMA = calculateSMA(symbol, date, 5);
-        double longSMA = calculateSMA(symbol, date, 20);
-        
-        if (shortSMA == 0 || longSMA == 0) return "Insufficient data";
-        return shortSMA > longSMA ? "Upward Trend" : "Downward Trend";
+    public static class Json {
+        /**
+         * Appends a JSON string, escaping quotes, backslashes and control characters.
+         * @param sb The builder to append to
+         * @param value The string, or null
+         * @return The builder
+         */
+        public static StringBuilder string(StringBuilder sb, String value) {
+            if (value == null) return sb.append("null");
+            sb.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') sb.append('\\').append(c);
+                else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                else sb.append(c);
+            }
+            return sb.append('"');
+        }
+
+        /**
+         * Appends a JSON number; NaN and infinities, which JSON cannot express, become null.
+         * @param sb The builder to append to
+         * @param value The number
+         * @return The builder
+         */
+        public static StringBuilder number(StringBuilder sb, double value) {
+            return Double.isNaN(value) || Double.isInfinite(value) ? sb.append("null") : sb.append(value);
+        }
+
+        /**
+         * Appends a stock as a JSON object with its date as YYYY-MM-DD.
+         * @param sb The builder to append to
+         * @param stock The stock, or null
+         * @return The builder
+         */
+        public static StringBuilder stock(StringBuilder sb, Stock stock) {
+            if (stock == null) return sb.append("null");
+            string(sb.append("{\"name\":"), stock.name);
+            appendDate(sb.append(",\"date\":\""), toEpochDay(stock.date)).append('"');
+            number(sb.append(",\"open\":"), stock.open);
+            number(sb.append(",\"high\":"), stock.high);
+            number(sb.append(",\"low\":"), stock.low);
+            number(sb.append(",\"close\":"), stock.close);
+            number(sb.append(",\"adjClose\":"), stock.adjClose);
+            return sb.append(",\"volume\":").append(stock.volume).append('}');
+        }
+
+        /**
+         * Appends a list of stocks as a JSON array.
+         * @param sb The builder to append to
+         * @param stocks The stocks
+         * @return The builder
+         */
+        public static StringBuilder stocks(StringBuilder sb, List<Stock> stocks) {
+            sb.append('[');
+            for (int i = 0; i < stocks.size(); i++) {
+                if (i > 0) sb.append(',');
+                stock(sb, stocks.get(i));
+            }
+            return sb.append(']');
+        }
+
+        /**
+         * Appends summary statistics as a JSON object.
+         * @param sb The builder to append to
+         * @param stats The statistics
+         * @return The builder
+         */
+        public static StringBuilder stats(StringBuilder sb, StockStats stats) {
+            sb.append("{\"count\":").append(stats.count).append(",\"totalVolume\":").append(stats.totalVolume);
+            if (stats.count > 0) {
+                number(sb.append(",\"averageVolume\":"), stats.averageVolume());
+                number(sb.append(",\"minOpen\":"), stats.minOpen);
+                number(sb.append(",\"minLow\":"), stats.minLow);
+                number(sb.append(",\"maxHigh\":"), stats.maxHigh);
+            }
+            return sb.append('}');
+        }
     }
 
-    /**
-     * Gets the average volume for a stock over a date range.
-     * @param symbol The stock symbol
-     * @param startDate The start date
-     * @param endDate The end date
-     * @return The average volume
+    /*
+     * Class: BatchQueries
+     * Description: This class is used to run a file of queries against a store without the menu.
+     *              Each line is one query:
+     *                  search SYMBOL DATE
+     *                  sma SYMBOL DATE PERIOD
+     *                  trend SYMBOL DATE
+     *                  avgvol SYMBOL FROM TO
+     *                  stats SYMBOL
+     *                  date DATE
+     *                  topk-volume DATE [K]
+     *                  topk-open DATE [K]
+     *              Dates are YYYY-MM-DD; PERIOD and K are from 1 to 1,000,000. Blank lines and lines
+     *              starting with # are skipped. The queries
+     *              run on a worker pool and each result is written as one JSON line, in input order.
+     *              The latency of every query is recorded per query type.
+     * Author: Demetrius Chatterjee
+     * Github ID: DemetriusChatterjee
+     * Version: 1.0
      */
-    public double getAverageVolume(String symbol, Date startDate, Date endDate) {
-        List<Stock> stocks = getAllStocks();
-        long totalVolume = 0;
-        int count = 0;
-        
-        for (Stock stock : stocks) {
-            if (stock.name.equals(symbol) && 
-                !stock.date.before(startDate) && 
-                !stock.date.after(endDate)) {
-                totalVolume += stock.volume;
-                count++;
+    public static class BatchQueries {
+        static final int MAX_NUMBER = 1_000_000;
+        private final StockStore store;
+        private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+
+        /**
+         * Creates a batch runner for a store. The store must not be changed while queries run,
+         * unless it is a ConcurrentStore.
+         * @param store The store to query
+         */
+        public BatchQueries(StockStore store) {
+            this.store = store;
+        }
+
+        /**
+         * Gets the latency histograms of the queries run so far.
+         * @return The histograms, by query type
+         */
+        public Map<String, LatencyHistogram> latencies() {
+            return latencies;
+        }
+
+        /**
+         * Runs every query of an input and writes the results in input order.
+         * @param in The queries, one per line
+         * @param out The stream to write the JSON results to
+         * @param threads The number of worker threads
+         * @return The number of queries run
+         * @throws RuntimeException if the input cannot be read or a worker fails
+         */
+        public long run(java.io.BufferedReader in, java.io.OutputStream out, int threads) {
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            java.util.ArrayDeque<Future<String>> pending = new java.util.ArrayDeque<>();
+            java.io.Writer writer = new java.io.BufferedWriter(new java.io.OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+            long queries = 0;
+            try {
+                String line;
+                int lineNumber = 0;
+                // Keep a bounded number of queries in flight so a large file is streamed, not loaded
+                while ((line = in.readLine()) != null) {
+                    lineNumber++;
+                    String query = line.trim();
+                    if (query.isEmpty() || query.startsWith("#")) continue;
+                    int number = lineNumber;
+                    pending.add(pool.submit(() -> execute(number, query)));
+                    queries++;
+                    if (pending.size() >= threads * 64) writer.write(pending.poll().get());
+                }
+                while (!pending.isEmpty()) writer.write(pending.poll().get());
+                writer.flush();
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Failed to run batch: " + e.getCause().getMessage());
+            } catch (Exception e) {
+                throw new RuntimeException("Failed to run batch: " + e.getMessage());
+            } finally {
+                pool.shutdown();
+            }
+            return queries;
+        }
+
+        /**
+         * Runs one query and formats its result.
+         * @param lineNumber The line number of the query in the input
+         * @param query The query text
+         * @return The JSON line, with "ok" false and an "error" message if the query is invalid
+         */
+        String execute(int lineNumber, String query) {
+            String[] parts = query.split("\\s+");
+            String type = parts[0].toLowerCase();
+            StringBuilder sb = new StringBuilder(128);
+            sb.append("{\"line\":").append(lineNumber).append(",\"query\":");
+            Json.string(sb, type);
+            int mark = sb.length();
+            long startTime = System.nanoTime();
+            try {
+                sb.append(",\"ok\":true,\"result\":");
+                answer(type, parts, sb);
+                latencies.computeIfAbsent(type, t -> new LatencyHistogram()).record(System.nanoTime() - startTime);
+            } catch (RuntimeException e) {
+                sb.setLength(mark);
+                Json.string(sb.append(",\"ok\":false,\"error\":"), e.getMessage());
+                latencies.computeIfAbsent("error", t -> new LatencyHistogram()).record(System.nanoTime() - startTime);
+            }
+            return sb.append("}\n").toString();
+        }
+
+        /**
+         * Answers one query and appends its result.
+         * @param type The query type
+         * @param parts The query split into words, the type first
+         * @param sb The builder to append the JSON result to
+         * @throws IllegalArgumentException if the query type or its arguments are invalid
+         */
+        void answer(String type, String[] parts, StringBuilder sb) {
+            switch (type) {
+                case "search":
+                    arguments(parts, 2, 2);
+                    Json.stock(sb, store.search(parts[1], parseDate(parts[2])));
+                    break;
+                case "sma":
+                    arguments(parts, 3, 3);
+                    Json.number(sb, store.calculateSMA(parts[1], parseDate(parts[2]), parseInt(parts[3])));
+                    break;
+                case "trend":
+                    arguments(parts, 2, 2);
+                    Json.string(sb, store.getPriceTrend(parts[1], parseDate(parts[2])));
+                    break;
+                case "avgvol":
+                    arguments(parts, 3, 3);
+                    Json.number(sb, store.getAverageVolume(parts[1], parseDate(parts[2]), parseDate(parts[3])));
+                    break;
+                case "stats":
+                    arguments(parts, 1, 1);
+                    Json.stats(sb, store.getStockStats(parts[1]));
+                    break;
+                case "date":
+                    arguments(parts, 1, 1);
+                    Json.stocks(sb, store.getStocksForDate(parseDate(parts[1])));
+                    break;
+                case "topk-volume":
+                case "topk-open":
+                    arguments(parts, 1, 2);
+                    int k = parts.length > 2 ? parseInt(parts[2]) : 5;
+                    Comparator<Stock> comparator = type.equals("topk-volume") ? new VolumeComparator() : new OpenPriceComparator();
+                    Json.stocks(sb, store.topKForDate(parseDate(parts[1]), k, comparator));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown query type: " + type);
+            }
+        }
+
+        /**
+         * Checks the number of arguments of a query.
+         * @param parts The query split into words, the type first
+         * @param min The minimum number of arguments
+         * @param max The maximum number of arguments
+         * @throws IllegalArgumentException if the number is out of range
+         */
+        private static void arguments(String[] parts, int min, int max) {
+            int n = parts.length - 1;
+            if (n < min || n > max)
+                throw new IllegalArgumentException("Expected " + (min == max ? "" + min : min + " to " + max)
+                        + " arguments for " + parts[0] + ", got " + n);
+        }
+
+        /**
+         * Parses a YYYY-MM-DD date.
+         * @param text The date text
+         * @return The date at local midnight
+         * @throws IllegalArgumentException if the date is invalid
+         */
+        static Date parseDate(String text) {
+            try {
+                return toDate((int) java.time.LocalDate.parse(text).toEpochDay());
+            } catch (java.time.format.DateTimeParseException e) {
+                throw new IllegalArgumentException("Invalid date: " + text);
+            }
+        }
+
+        /**
+         * Parses a period or k argument. Capping it keeps one query from allocating enough to take
+         * down the whole batch or server.
+         * @param text The number text
+         * @return The number
+         * @throws IllegalArgumentException if the text is not an integer from 1 to MAX_NUMBER
+         */
+        static int parseInt(String text) {
+            try {
+                int value = Integer.parseInt(text);
+                if (value > 0 && value <= MAX_NUMBER) return value;
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+            throw new IllegalArgumentException("Invalid number (expected 1 to " + MAX_NUMBER + "): " + text);
+        }
+
+        /**
+         * Prints the throughput and the latency percentiles of each query type.
+         * @param out The stream to print to
+         * @param queries The number of queries run
+         * @param nanos The wall-clock time of the batch, in nanoseconds
+         * @param threads The number of worker threads
+         */
+        public void printSummary(java.io.PrintStream out, long queries, long nanos, int threads) {
+            out.printf("Batch: %d queries on %d threads in %.3f milliseconds, %.0f queries/sec%n",
+                    queries, threads, nanos / 1_000_000.0, queries * 1_000_000_000.0 / Math.max(1, nanos));
+            for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(latencies).entrySet()) {
+                out.printf("  %-12s %s%n", entry.getKey(), entry.getValue());
             }
         }
-        
-        return count > 0 ? totalVolume / (double)count : 0;
     }
 
-    /**
-     * Displays the statistics for a stock symbol.
-     * @param symbol The stock symbol to display statistics for
+    /*
+     * Class: QueryServer
+     * Description: This class is used to serve the analytics as JSON over HTTP with the JDK's built-in
+     *              server. Every endpoint takes its arguments as query parameters and answers with
+     *              {"ok":true,"result":...} or {"ok":false,"error":"..."}:
+     *                  GET /search?symbol=S&date=D            GET /stats?symbol=S
+     *                  GET /sma?symbol=S&date=D&period=N      GET /date?date=D
+     *                  GET /trend?symbol=S&date=D             GET /topk-volume?date=D[&k=N]
+     *                  GET /avgvol?symbol=S&from=D&to=D       GET /topk-open?date=D[&k=N]
+     *              Requests run on one virtual thread each when the JDK has them (21 and later) and on
+     *              a cached thread pool otherwise. Connections are kept alive between requests.
+     * Author: Demetrius Chatterjee
+     * Github ID: DemetriusChatterjee
+     * Version: 1.0
      */
-    public void displayStockStats(String symbol) {
-        List<Stock> stocks = getAllStocks();
-        double minPrice = Double.MAX_VALUE;
-        double maxPrice = Double.MIN_VALUE;
-        long totalVolume = 0;
-        int count = 0;
+    public static class QueryServer {
+        private static final Map<String, String[]> PARAMETERS = new HashMap<>();
+        static {
+            PARAMETERS.put("search", new String[] { "symbol", "date" });
+            PARAMETERS.put("sma", new String[] { "symbol", "date", "period" });
+            PARAMETERS.put("trend", new String[] { "symbol", "date" });
+            PARAMETERS.put("avgvol", new String[] { "symbol", "from", "to" });
+            PARAMETERS.put("stats", new String[] { "symbol" });
+            PARAMETERS.put("date", new String[] { "date" });
+            PARAMETERS.put("topk-volume", new String[] { "date", "k?" });
+            PARAMETERS.put("topk-open", new String[] { "date", "k?" });
+        }
+
+        private final com.sun.net.httpserver.HttpServer server;
+        private final ExecutorService executor;
+        private final BatchQueries queries;
+
+        private QueryServer(com.sun.net.httpserver.HttpServer server, ExecutorService executor, StockStore store) {
+            this.server = server;
+            this.executor = executor;
+            this.queries = new BatchQueries(store);
+        }
+
+        /**
+         * Starts a server for a store. The store must not be changed while the server runs, unless
+         * it is a ConcurrentStore.
+         * @param store The store to serve
+         * @param host The address to listen on, e.g. 127.0.0.1
+         * @param port The port to listen on, or 0 for any free port
+         * @return The running server
+         * @throws IOException if the port cannot be bound
+         */
+        public static QueryServer start(StockStore store, String host, int port) throws IOException {
+            // The JDK server closes keep-alive connections beyond 200 idle ones unless told otherwise
+            if (System.getProperty("sun.net.httpserver.maxIdleConnections") == null)
+                System.setProperty("sun.net.httpserver.maxIdleConnections", "1000000");
 
-        for (Stock stock : stocks) {
-            if (stock.name.equals(symbol)) {
-                minPrice = Math.min(minPrice, stock.open);
-                maxPrice = Math.max(maxPrice, stock.high);
-                totalVolume += stock.volume;
-                count++;
+            com.sun.net.httpserver.HttpServer server = com.sun.net.httpserver.HttpServer.create(new java.net.InetSocketAddress(host, port), 4096);
+            ExecutorService executor = newRequestExecutor();
+            QueryServer queryServer = new QueryServer(server, executor, store);
+            server.createContext("/", queryServer::handle);
+            server.setExecutor(executor);
+            server.start();
+            return queryServer;
+        }
+
+        /**
+         * Creates a virtual-thread-per-task executor if the JDK supports it, otherwise a cached pool.
+         * It is looked up by reflection so the program still compiles and runs on JDK 17.
+         * @return The executor
+         */
+        static ExecutorService newRequestExecutor() {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+                return Executors.newCachedThreadPool();
             }
         }
 
-        if (count > 0) {
-            System.out.printf("Statistics for %s: Minimum Price: $%.2f, Maximum Price: $%.2f, Average Volume: %d%n",
-                    symbol, minPrice, maxPrice, totalVolume/count);
-        } else {
-            System.out.println("No data found for symbol: " + symbol);
+        /**
+         * Gets the port the server listens on.
+         * @return The port
+         */
+        public int port() {
+            return server.getAddress().getPort();
+        }
+
+        /**
+         * Describes the kind of threads that run requests.
+         * @return "virtual threads" or "a cached thread pool"
+         */
+        public String threading() {
+            return executor.getClass().getName().contains("ThreadPerTask") ? "virtual threads" : "a cached thread pool";
+        }
+
+        /**
+         * Gets the latency histograms of the requests served so far.
+         * @return The histograms, by endpoint
+         */
+        public Map<String, LatencyHistogram> latencies() {
+            return queries.latencies();
+        }
+
+        /**
+         * Stops the server, waiting up to a second for requests in progress.
+         */
+        public void stop() {
+            server.stop(1);
+            executor.shutdown();
+        }
+
+        /**
+         * Answers one request.
+         * @param exchange The request and its response
+         * @throws IOException if the response cannot be sent
+         */
+        private void handle(com.sun.net.httpserver.HttpExchange exchange) throws IOException {
+            try {
+                exchange.getRequestBody().readAllBytes();
+                String type = exchange.getRequestURI().getPath().substring(1);
+                String[] names = PARAMETERS.get(type);
+                StringBuilder sb = new StringBuilder(256);
+                int status = 200;
+                if (!exchange.getRequestMethod().equals("GET")) {
+                    status = 405;
+                    sb.append("{\"ok\":false,\"error\":\"Only GET is supported\"}");
+                } else if (names == null) {
+                    status = 404;
+                    Json.string(sb.append("{\"ok\":false,\"error\":"), "Unknown endpoint: /" + type).append('}');
+                } else {
+                    long startTime = System.nanoTime();
+                    try {
+                        String[] parts = arguments(type, names, exchange.getRequestURI().getRawQuery());
+                        sb.append("{\"ok\":true,\"result\":");
+                        queries.answer(type, parts, sb);
+                        sb.append('}');
+                        queries.latencies().computeIfAbsent(type, t -> new LatencyHistogram()).record(System.nanoTime() - startTime);
+                    } catch (IllegalArgumentException e) {
+                        status = 400;
+                        sb.setLength(0);
+                        Json.string(sb.append("{\"ok\":false,\"error\":"), e.getMessage()).append('}');
+                    } catch (RuntimeException e) {
+                        // Any other failure still gets a response instead of a dropped connection
+                        status = 500;
+                        sb.setLength(0);
+                        Json.string(sb.append("{\"ok\":false,\"error\":"), "Failed to answer query: " + e.getMessage()).append('}');
+                    }
+                }
+
+                byte[] body = sb.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(status, body.length);
+                exchange.getResponseBody().write(body);
+            } finally {
+                exchange.close();
+            }
+        }
+
+        /**
+         * Gets the query words for an endpoint from its query parameters.
+         * @param type The endpoint name, which is also the query type
+         * @param names The parameter names in query order; optional ones end with ?
+         * @param rawQuery The URL-encoded query string, or null
+         * @return The query split into words, the type first
+         * @throws IllegalArgumentException if a required parameter is missing
+         */
+        private static String[] arguments(String type, String[] names, String rawQuery) {
+            Map<String, String> parameters = new HashMap<>();
+            if (rawQuery != null) {
+                for (String pair : rawQuery.split("&")) {
+                    int eq = pair.indexOf('=');
+                    if (eq > 0) parameters.put(java.net.URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                            java.net.URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+                }
+            }
+
+            List<String> parts = new ArrayList<>();
+            parts.add(type);
+            for (String name : names) {
+                boolean optional = name.endsWith("?");
+                String value = parameters.get(optional ? name.substring(0, name.length() - 1) : name);
+                if (value != null) parts.add(value);
+                else if (!optional) throw new IllegalArgumentException("Missing parameter: " + name);
+                else break;
+            }
+            return parts.toArray(new String[0]);
         }
     }
 
@@ -556,7 +7495,12 @@ public class StockAnalyser {
      * StockAnalyser class that implements a Red-Black Tree to store and analyze stock data.
      * This class provides functionality for storing, searching, and analyzing stock market data
      * using various sorting algorithms and analysis methods.
-     * @param args Command line arguments (not used)
+     * The benchmarks and self-tests live in StockAnalyserBench.
+     * @param args Command line arguments: the CSV file (a directory of them for --store=sharded),
+     *             optionally followed by --parallel, --parser=legacy|fast|compare,
+     *             --store=tree|columnar|compressed|offheap|bptree|sharded, --shards=n, --follow, --poll=millis, --indicators, --cache=entries,
+     *             --export-indicators=file, --snapshot=file, --batch=file|-, --batch-out=file, --serve=port and
+     *             --metrics=text|jmx|file.json with --metrics-interval=seconds
      */
     public static void main(String[] args) {
         StockAnalyser analyser = new StockAnalyser();
@@ -564,7 +7508,145 @@ public class StockAnalyser {
         
         try {
             //analyser.readCSV("stocks.csv");
-            analyser.readCSV(args[0]);
+            boolean parallel = false;
+            String storeType = "tree";
+            String exportFile = null;
+            String snapshotFile = null;
+            String batchFile = null;
+            String batchOutput = null;
+            int servePort = -1;
+            String metricsOutput = null;
+            long metricsInterval = 10;
+            int shardCount = Runtime.getRuntime().availableProcessors();
+            boolean follow = false;
+            long pollMillis = 100;
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].equals("--parallel")) parallel = true;
+                else if (args[i].startsWith("--parser=")) analyser.setParserMode(ParserMode.valueOf(args[i].substring(9).toUpperCase()));
+                else if (args[i].startsWith("--store=")) storeType = args[i].substring(8);
+                else if (args[i].equals("--indicators")) analyser.enableIndicators();
+                else if (args[i].startsWith("--cache=")) analyser.enableQueryCache(Integer.parseInt(args[i].substring(8)));
+                else if (args[i].startsWith("--export-indicators=")) exportFile = args[i].substring(20);
+                else if (args[i].startsWith("--snapshot=")) snapshotFile = args[i].substring(11);
+                else if (args[i].startsWith("--batch=")) batchFile = args[i].substring(8);
+                else if (args[i].startsWith("--batch-out=")) batchOutput = args[i].substring(12);
+                else if (args[i].startsWith("--serve=")) servePort = Integer.parseInt(args[i].substring(8));
+                else if (args[i].startsWith("--metrics=")) metricsOutput = args[i].substring(10);
+                else if (args[i].startsWith("--metrics-interval=")) metricsInterval = Long.parseLong(args[i].substring(19));
+                else if (args[i].startsWith("--shards=")) shardCount = Integer.parseInt(args[i].substring(9));
+                else if (args[i].equals("--follow")) follow = true;
+                else if (args[i].startsWith("--poll=")) pollMillis = Long.parseLong(args[i].substring(7));
+            }
+
+            // Batch results on stdout must be the only output there, so load and status messages go to stderr
+            java.io.PrintStream stdout = System.out;
+            if (batchFile != null && batchOutput == null) System.setOut(System.err);
+
+            StockStore store = analyser;
+            SnapshotStore snapshot = null;
+            if (snapshotFile != null && new java.io.File(snapshotFile).exists()) {
+                try {
+                    snapshot = SnapshotStore.open(snapshotFile);
+                    if (snapshot.isStale(args[0])) {
+                        System.out.println("Snapshot " + snapshotFile + " is stale, reloading " + args[0]);
+                        snapshot = null;
+                    }
+                } catch (RuntimeException e) {
+                    // A damaged snapshot is rebuilt from the CSV like a stale one
+                    System.out.println(e.getMessage() + ", reloading " + args[0]);
+                }
+            }
+
+            if (metricsOutput != null) {
+                // Only the tree records metrics, so any other store would report nothing
+                if (!storeType.equals("tree"))
+                    throw new IllegalArgumentException("--metrics only supports --store=tree, not --store=" + storeType);
+                if (snapshot != null)
+                    throw new IllegalArgumentException("--metrics cannot be used when loading from --snapshot");
+                Metrics metrics = analyser.enableMetrics();
+                if (metricsOutput.equals("jmx")) {
+                    metrics.registerMBean("StockAnalyser:type=Metrics");
+                } else {
+                    Metrics.Reporter reporter = metricsOutput.equals("text") ? Metrics.textReporter(System.err) : Metrics.jsonFileReporter(metricsOutput);
+                    metrics.schedule(reporter, metricsInterval * 1000);
+                    Runtime.getRuntime().addShutdownHook(new Thread(() -> reporter.report(metrics)));
+                }
+            }
+
+            if (snapshot != null) {
+                System.out.println("Loaded " + snapshot.size() + " stocks from snapshot " + snapshotFile);
+                store = snapshot;
+            } else if (storeType.equals("sharded")) {
+                ShardedStore shardedStore = new ShardedStore(shardCount);
+                IngestStats stats = shardedStore.load(args[0], parallel ? Runtime.getRuntime().availableProcessors() : 1);
+                System.out.printf("Sharded store: %d bars in %d shards %s, %s%n", shardedStore.size(), shardedStore.shardCount(),
+                        java.util.Arrays.toString(shardedStore.shardSizes()), stats);
+                store = shardedStore;
+            } else if (storeType.equals("bptree")) {
+                IndexedStore indexedStore = new IndexedStore(new BPlusTreeIndex());
+                analyser.ingest(args[0], parallel ? Runtime.getRuntime().availableProcessors() : 1, indexedStore::insert);
+                System.out.printf("B+-tree store: %d bars, height %d%n", indexedStore.index().size(), ((BPlusTreeIndex) indexedStore.index()).height());
+                store = indexedStore;
+            } else if (storeType.equals("offheap")) {
+                OffHeapStore offHeapStore = new OffHeapStore();
+                analyser.ingest(args[0], parallel ? Runtime.getRuntime().availableProcessors() : 1, offHeapStore::insert);
+                System.out.printf("Off-heap store: %d bars in %d bytes of direct memory%n", offHeapStore.size(), offHeapStore.offHeapBytes());
+                store = offHeapStore;
+            } else if (storeType.equals("compressed")) {
+                CompressedStore compressedStore = new CompressedStore();
+                analyser.ingest(args[0], parallel ? Runtime.getRuntime().availableProcessors() : 1, compressedStore::insert);
+                compressedStore.trimToSize();
+                System.out.printf("Compressed store: %d bars in %d bytes (%.1f bytes/bar)%n", compressedStore.size(),
+                        compressedStore.estimatedBytes(), compressedStore.estimatedBytes() / (double) Math.max(1, compressedStore.size()));
+                store = compressedStore;
+            } else if (storeType.equals("columnar")) {
+                ColumnarStore columnarStore = new ColumnarStore();
+                analyser.ingest(args[0], parallel ? Runtime.getRuntime().availableProcessors() : 1, columnarStore::insert);
+                columnarStore.trimToSize();
+                System.out.printf("Columnar store: %d bars in %d bytes (%.1f bytes/bar)%n", columnarStore.size(),
+                        columnarStore.estimatedBytes(), columnarStore.estimatedBytes() / (double) Math.max(1, columnarStore.size()));
+                store = columnarStore;
+            } else if (follow) {
+                ConcurrentStore concurrentStore = new ConcurrentStore(analyser);
+                CsvFollower follower = new CsvFollower(concurrentStore, args[0], pollMillis);
+                System.out.printf("Loaded %d rows, following %s every %d ms%n", follower.poll(), args[0], pollMillis);
+                follower.start();
+                store = concurrentStore;
+            } else if (parallel) {
+                analyser.readCSVParallel(args[0]);
+            } else {
+                analyser.readCSV(args[0]);
+            }
+
+            if (snapshotFile != null && snapshot == null) SnapshotStore.save(store, snapshotFile, args[0]);
+
+            if (exportFile != null) {
+                exportIndicators(store, exportFile, 5, 20, 50, 200);
+                return;
+            }
+
+            if (servePort >= 0) {
+                QueryServer server = QueryServer.start(store, "127.0.0.1", servePort);
+                System.out.println("Serving on http://127.0.0.1:" + server.port() + "/ with " + server.threading());
+                return;
+            }
+
+            if (batchFile != null) {
+                int threads = Runtime.getRuntime().availableProcessors();
+                BatchQueries batch = new BatchQueries(store);
+                java.io.OutputStream out = batchOutput != null ? new java.io.FileOutputStream(batchOutput) : stdout;
+                try (java.io.BufferedReader in = batchFile.equals("-")
+                        ? new java.io.BufferedReader(new java.io.InputStreamReader(System.in, StandardCharsets.UTF_8))
+                        : java.nio.file.Files.newBufferedReader(Paths.get(batchFile), StandardCharsets.UTF_8)) {
+                    long startTime = System.nanoTime();
+                    long queries = batch.run(in, out, threads);
+                    batch.printSummary(System.err, queries, System.nanoTime() - startTime, threads);
+                    if (store == analyser && analyser.queryCache() != null) System.err.println("Query cache: " + analyser.queryCache());
+                } finally {
+                    if (out != stdout) out.close();
+                }
+                return;
+            }
             
             while (true) {
                 System.out.println("\nMenu:");
@@ -601,7 +7683,7 @@ public class StockAnalyser {
                         
                         try {
                             Date date = new SimpleDateFormat("yyyy-MM-dd").parse(dateStr);
-                            Stock stock = analyser.search(symbol, date);
+                            Stock stock = store.search(symbol, date);
                             if (stock != null) {
                                 System.out.println("Stock found:");
                                 System.out.printf("Name: %s, Date: %s, Open: %.2f, High: %.2f, Low: %.2f, Close: %.2f, Volume: %d%n",
@@ -614,40 +7696,29 @@ public class StockAnalyser {
                         }
                         break;
                         
+                    // The sort options keep their numbers but all select with a bounded top-K heap
                     case 2:
-                        List<Stock> stocks = analyser.getAllStocks();
-                        Stock[] stockArray = stocks.toArray(new Stock[0]);
-                        analyser.bubbleSort(stockArray, new VolumeComparator());
-                        System.out.println("Top 5 high volume stocks (Bubble Sort):");
-                        for (int i = 0; i < Math.min(5, stockArray.length); i++) {
-                            System.out.printf("%s: %d%n", stockArray[i].name, stockArray[i].volume);
+                    case 5:
+                        List<Stock> topStocks = store.topK(5, new VolumeComparator());
+                        System.out.println("Top 5 high volume stocks (Top-K):");
+                        for (Stock stock : topStocks) {
+                            System.out.printf("%s: %d%n", stock.name, stock.volume);
                         }
                         break;
                         
                     case 3:
-                        stocks = analyser.getAllStocks();
-                        stockArray = stocks.toArray(new Stock[0]);
-                        analyser.selectionSort(stockArray, new VolumeComparator());
-                        System.out.println("Top 5 high volume stocks (Selection Sort):");
-                        for (int i = 0; i < Math.min(5, stockArray.length); i++) {
-                            System.out.printf("%s: %d%n", stockArray[i].name, stockArray[i].volume);
+                    case 9:
+                        topStocks = store.topKParallel(5, new VolumeComparator());
+                        System.out.println("Top 5 high volume stocks (parallel Top-K):");
+                        for (Stock stock : topStocks) {
+                            System.out.printf("%s: %d%n", stock.name, stock.volume);
                         }
                         break;
                         
                     case 4:
                         System.out.print("Enter stock symbol: ");
                         symbol = scanner.nextLine();
-                        analyser.displayStockStats(symbol);
-                        break;
-
-                    case 5:
-                        stocks = analyser.getAllStocks();
-                        stockArray = stocks.toArray(new Stock[0]);
-                        analyser.quickSort(stockArray, new VolumeComparator());
-                        System.out.println("Top 5 high volume stocks (Quick Sort):");
-                        for (int i = 0; i < Math.min(5, stockArray.length); i++) {
-                            System.out.printf("%s: %d%n", stockArray[i].name, stockArray[i].volume);
-                        }
+                        store.displayStockStats(symbol);
                         break;
 
                     case 6:
@@ -657,8 +7728,8 @@ public class StockAnalyser {
                         dateStr = scanner.nextLine();
                         try {
                             Date date = new SimpleDateFormat("yyyy-MM-dd").parse(dateStr);
-                            double sma5 = analyser.calculateSMA(symbol, date, 5);
-                            double sma20 = analyser.calculateSMA(symbol, date, 20);
+                            double sma5 = store.calculateSMA(symbol, date, 5);
+                            double sma20 = store.calculateSMA(symbol, date, 20);
                             System.out.printf("5-day SMA: %.2f%n20-day SMA: %.2f%n", sma5, sma20);
                         } catch (ParseException e) {
                             System.out.println("Error: Invalid date format");
@@ -672,7 +7743,7 @@ public class StockAnalyser {
                         dateStr = scanner.nextLine();
                         try {
                             Date date = new SimpleDateFormat("yyyy-MM-dd").parse(dateStr);
-                            System.out.println("Price Trend: " + analyser.getPriceTrend(symbol, date));
+                            System.out.println("Price Trend: " + store.getPriceTrend(symbol, date));
                         } catch (ParseException e) {
                             System.out.println("Error: Invalid date format");
                         }
@@ -688,23 +7759,13 @@ public class StockAnalyser {
                         try {
                             Date startDate = new SimpleDateFormat("yyyy-MM-dd").parse(startDateStr);
                             Date endDate = new SimpleDateFormat("yyyy-MM-dd").parse(endDateStr);
-                            double avgVolume = analyser.getAverageVolume(symbol, startDate, endDate);
+                            double avgVolume = store.getAverageVolume(symbol, startDate, endDate);
                             System.out.printf("Average Volume: %.2f%n", avgVolume);
                         } catch (ParseException e) {
                             System.out.println("Error: Invalid date format");
                         }
                         break;
 
-                    case 9:
-                        stocks = analyser.getAllStocks();
-                        stockArray = stocks.toArray(new Stock[0]);
-                        analyser.mergeSort(stockArray, new VolumeComparator());
-                        System.out.println("Top 5 high volume stocks (Merge Sort):");
-                        for (int i = 0; i < Math.min(5, stockArray.length); i++) {
-                            System.out.printf("%s: %d%n", stockArray[i].name, stockArray[i].volume);
-                        }
-                        break;
-
                     case 10:
                         System.out.print("Enter date (YYYY-MM-DD): ");
                         dateStr = scanner.nextLine();
@@ -712,20 +7773,17 @@ public class StockAnalyser {
                             SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
                             sdf.setLenient(false);
                             Date date = sdf.parse(dateStr);
+                            System.out.println("Target date: " + dateStr);
                             
-                            List<Stock> dateStocks = analyser.getStocksForDate(date);
+                            topStocks = store.topKForDate(date, 5, new VolumeComparator());
                             
-                            if (dateStocks.isEmpty()) {
+                            if (topStocks.isEmpty()) {
                                 System.out.println("No stocks found for date: " + dateStr);
                                 break;
                             }
                             
-                            // Sort by volume in descending order
-                            dateStocks.sort((s1, s2) -> Long.compare(s2.volume, s1.volume));
-                            
                             System.out.println("\nTop 5 highest volume stocks for " + dateStr + ":");
-                            for (int i = 0; i < Math.min(5, dateStocks.size()); i++) {
-                                Stock stock = dateStocks.get(i);
+                            for (Stock stock : topStocks) {
                                 System.out.printf("%s: %,d shares%n", stock.name, stock.volume);
                             }
                         } catch (ParseException e) {
@@ -738,12 +7796,10 @@ public class StockAnalyser {
                         dateStr = scanner.nextLine();
                         try {
                             Date date = new SimpleDateFormat("yyyy-MM-dd").parse(dateStr);
-                            List<Stock> dateStocks = analyser.getStocksForDate(date);
-                            Stock[] dateStockArray = dateStocks.toArray(new Stock[0]);
-                            analyser.quickSort(dateStockArray, new OpenPriceComparator());
+                            System.out.println("Target date: " + dateStr);
                             System.out.println("Top 5 highest opening price stocks for " + dateStr + ":");
-                            for (int i = 0; i < Math.min(5, dateStockArray.length); i++) {
-                                System.out.printf("%s: $%.2f%n", dateStockArray[i].name, dateStockArray[i].open);
+                            for (Stock stock : store.topKForDate(date, 5, new OpenPriceComparator())) {
+                                System.out.printf("%s: $%.2f%n", stock.name, stock.open);
                             }
                         } catch (ParseException e) {
                             System.out.println("Error: Invalid date format");
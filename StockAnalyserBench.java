@@ -0,0 +1,1042 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
+/*
+ * Class: StockAnalyserBench
+ * Description: This class is used to benchmark and self-test StockAnalyser, kept out of the
+ *              program itself. It measures the analyser's operations on deterministic synthetic
+ *              data. Each benchmark is warmed up before it is measured, results are consumed so
+ *              the JIT cannot drop the work, and no console output happens inside a measurement.
+ *              Results can be written to a CSV file and two result files compared, which is how
+ *              runs from different commits are compared.
+ * Author: Demetrius Chatterjee
+ * Github ID: DemetriusChatterjee
+ * Version: 1.0
+ */
+public class StockAnalyserBench {
+    private static volatile long sink;
+
+    private final int warmupIterations;
+    private final int iterations;
+    private final List<String> results = new ArrayList<>();
+
+    public StockAnalyserBench(int warmupIterations, int iterations) {
+        this.warmupIterations = warmupIterations;
+        this.iterations = iterations;
+    }
+
+    /*
+     * Interface: Operation
+     * Description: This interface is implemented by the code under measurement.
+     * Author: Demetrius Chatterjee
+     * Github ID: DemetriusChatterjee
+     * Version: 1.0
+     */
+    public interface Operation {
+        /**
+         * Runs the operation once.
+         * @param i The number of the call, for picking inputs
+         * @return A value that depends on the work done
+         * @throws Exception if the operation fails
+         */
+        Object run(int i) throws Exception;
+    }
+
+    /**
+     * Warms up and measures an operation, then prints and records the time per call.
+     * @param name The name of the benchmark
+     * @param opsPerIteration The number of calls timed together in one iteration
+     * @param operation The operation
+     * @return The mean time per call in nanoseconds
+     * @throws Exception if the operation fails
+     */
+    public double measure(String name, int opsPerIteration, Operation operation) throws Exception {
+        int call = 0;
+        for (int w = 0; w < warmupIterations; w++)
+            for (int i = 0; i < opsPerIteration; i++) consume(operation.run(call++));
+
+        double[] nanosPerOp = new double[iterations];
+        for (int it = 0; it < iterations; it++) {
+            long startTime = System.nanoTime();
+            for (int i = 0; i < opsPerIteration; i++) consume(operation.run(call++));
+            nanosPerOp[it] = (System.nanoTime() - startTime) / (double) opsPerIteration;
+        }
+
+        double mean = 0, min = Double.MAX_VALUE;
+        for (double v : nanosPerOp) {
+            mean += v / iterations;
+            min = Math.min(min, v);
+        }
+        double variance = 0;
+        for (double v : nanosPerOp) variance += (v - mean) * (v - mean) / Math.max(1, iterations - 1);
+        double error = Math.sqrt(variance);
+
+        System.out.printf("%-40s %15.1f ns/op  +- %12.1f  (min %.1f, %d x %d ops)%n",
+                name, mean, error, min, iterations, opsPerIteration);
+        results.add(String.format("%s,%.1f,%.1f,%.1f,%d", name, mean, error, min, iterations));
+        return mean;
+    }
+
+    /**
+     * Folds a result into a volatile field so its computation cannot be eliminated.
+     * @param value The result
+     */
+    private static void consume(Object value) {
+        sink += value == null ? 0 : value instanceof Number ? ((Number) value).longValue() + 1 : value.hashCode();
+    }
+
+    /**
+     * Writes the recorded results to a CSV file.
+     * @param filename The path of the results file
+     * @throws IOException if the file cannot be written
+     */
+    public void writeResults(String filename) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("benchmark,ns_per_op,error,min,iterations");
+        lines.addAll(results);
+        java.nio.file.Files.write(Paths.get(filename), lines, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Prints two result files side by side with the ratio of the second to the first.
+     * @param baseline The path of the baseline results
+     * @param candidate The path of the results to compare
+     * @throws IOException if a file cannot be read
+     */
+    public static void compare(String baseline, String candidate) throws IOException {
+        Map<String, Double> before = new java.util.LinkedHashMap<>();
+        List<String> lines = java.nio.file.Files.readAllLines(Paths.get(baseline));
+        for (String line : lines.subList(1, lines.size())) {
+            String[] data = line.split(",");
+            before.put(data[0], Double.parseDouble(data[1]));
+        }
+        System.out.printf("%-40s %15s %15s %8s%n", "benchmark", "baseline ns/op", "ns/op", "ratio");
+        for (String line : java.nio.file.Files.readAllLines(Paths.get(candidate))) {
+            String[] data = line.split(",");
+            if (!before.containsKey(data[0])) continue;
+            double now = Double.parseDouble(data[1]);
+            System.out.printf("%-40s %15.1f %15.1f %7.2fx%n", data[0], before.get(data[0]), now, now / before.get(data[0]));
+        }
+    }
+
+    /**
+     * Writes a deterministic synthetic CSV in the date,open,high,low,close,volume,Name layout,
+     * with one random-walk series of weekday bars per symbol, sorted by symbol and date.
+     * @param filename The path of the CSV file
+     * @param symbols The number of symbols
+     * @param days The number of trading days per symbol
+     * @param seed The random seed
+     * @throws IOException if the file cannot be written
+     */
+    public static void generate(String filename, int symbols, int days, long seed) throws IOException {
+        java.util.Random random = new java.util.Random(seed);
+        try (java.io.Writer out = new java.io.BufferedWriter(new java.io.FileWriter(filename), 1 << 16)) {
+            out.write("date,open,high,low,close,volume,Name\n");
+            StringBuilder row = new StringBuilder();
+            for (int s = 0; s < symbols; s++) {
+                String name = String.format("S%05d", s);
+                double price = 10 + random.nextDouble() * 190;
+                int day = StockAnalyser.epochDay(2013, 2, 8);
+                for (int d = 0; d < days; d++, day++) {
+                    while (Math.floorMod(day + 3, 7) >= 5) day++; // skip Saturday and Sunday
+                    double open = Math.round(price * (0.98 + random.nextDouble() * 0.04) * 100) / 100.0;
+                    double close = Math.round(price * (0.98 + random.nextDouble() * 0.04) * 10000) / 10000.0;
+                    double high = Math.round(Math.max(open, close) * 101) / 100.0;
+                    double low = Math.round(Math.min(open, close) * 99) / 100.0;
+                    row.setLength(0);
+                    StockAnalyser.appendDate(row, day).append(',').append(open).append(',').append(high).append(',')
+                            .append(low).append(',').append(close).append(',').append(1000 + random.nextInt(5_000_000))
+                            .append(',').append(name).append('\n');
+                    out.write(row.toString());
+                    price = close;
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs every benchmark on a synthetic dataset.
+     * @param symbols The number of symbols
+     * @param days The number of trading days per symbol
+     * @param resultsFile The path to write the results to, or null
+     * @throws Exception if a benchmark fails
+     */
+    public static void runAll(int symbols, int days, String resultsFile) throws Exception {
+        java.io.File csv = java.io.File.createTempFile("stocks-bench", ".csv");
+        csv.deleteOnExit();
+        generate(csv.getPath(), symbols, days, 42);
+        System.out.printf("Synthetic data: %d symbols x %d days, %d bytes%n", symbols, days, csv.length());
+
+        StockAnalyserBench bench = new StockAnalyserBench(3, 5);
+        PrintStreamSilencer silencer = new PrintStreamSilencer();
+
+        for (StockAnalyser.ParserMode mode : new StockAnalyser.ParserMode[] { StockAnalyser.ParserMode.LEGACY, StockAnalyser.ParserMode.FAST }) {
+            bench.measure("readCSV[" + mode + "]", 1, i -> {
+                StockAnalyser analyser = new StockAnalyser();
+                analyser.setParserMode(mode);
+                analyser.readCSV(csv.getPath());
+                return analyser.size();
+            });
+        }
+        bench.measure("readCSVParallel", 1, i -> silencer.quietly(() -> {
+            StockAnalyser analyser = new StockAnalyser();
+            analyser.readCSVParallel(csv.getPath());
+            return analyser.size();
+        }));
+        bench.measure("ShardedStore.load", 1, i -> {
+            StockAnalyser.ShardedStore store = new StockAnalyser.ShardedStore();
+            store.load(csv.getPath());
+            return store.size();
+        });
+
+        StockAnalyser analyser = new StockAnalyser();
+        analyser.readCSV(csv.getPath());
+        analyser.setReportSortTimes(false);
+        List<StockAnalyser.Stock> stocks = analyser.getAllStocks();
+        StockAnalyser.Stock[] shuffled = stocks.toArray(new StockAnalyser.Stock[0]);
+        java.util.Collections.shuffle(java.util.Arrays.asList(shuffled), new java.util.Random(7));
+        java.util.Random random = new java.util.Random(11);
+        int[] picks = new int[1 << 16];
+        for (int i = 0; i < picks.length; i++) picks[i] = random.nextInt(stocks.size());
+
+        bench.measure("insert[random order]", 1, i -> {
+            StockAnalyser tree = new StockAnalyser();
+            for (StockAnalyser.Stock stock : shuffled) tree.insert(stock);
+            return tree.size();
+        });
+        bench.measure("search", 10_000, i -> {
+            StockAnalyser.Stock stock = stocks.get(picks[i & (picks.length - 1)]);
+            return analyser.search(stock.name, stock.date);
+        });
+        bench.measure("getAllStocks", 1, i -> analyser.getAllStocks().size());
+        bench.measure("calculateSMA[20]", 10_000, i -> {
+            StockAnalyser.Stock stock = stocks.get(picks[i & (picks.length - 1)]);
+            return analyser.calculateSMA(stock.name, stock.date, 20);
+        });
+        bench.measure("getAverageVolume[whole symbol]", 10_000, i -> {
+            StockAnalyser.Stock stock = stocks.get(picks[i & (picks.length - 1)]);
+            return analyser.getAverageVolume(stock.name, StockAnalyser.MIN_DATE, StockAnalyser.MAX_DATE);
+        });
+        StockAnalyser cached = new StockAnalyser();
+        cached.bulkLoad(stocks);
+        cached.enableQueryCache(1 << 16);
+        bench.measure("calculateSMA[20][cached]", 10_000, i -> {
+            StockAnalyser.Stock stock = stocks.get(picks[i & (picks.length - 1)]);
+            return cached.calculateSMA(stock.name, stock.date, 20);
+        });
+        bench.measure("getAverageVolume[whole symbol][cached]", 10_000, i -> {
+            StockAnalyser.Stock stock = stocks.get(picks[i & (picks.length - 1)]);
+            return cached.getAverageVolume(stock.name, StockAnalyser.MIN_DATE, StockAnalyser.MAX_DATE);
+        });
+        bench.measure("getStocksForDate", 1_000, i ->
+                analyser.getStocksForDate(stocks.get(picks[i & (picks.length - 1)]).date).size());
+
+        StockAnalyser.Stock[] work = new StockAnalyser.Stock[shuffled.length];
+        StockAnalyser.Stock[] small = java.util.Arrays.copyOf(shuffled, Math.min(2_000, shuffled.length));
+        StockAnalyser.Stock[] smallWork = new StockAnalyser.Stock[small.length];
+        Map<String, Comparator<StockAnalyser.Stock>> comparators = new java.util.LinkedHashMap<>();
+        comparators.put("Volume", new StockAnalyser.VolumeComparator());
+        comparators.put("OpenPrice", new StockAnalyser.OpenPriceComparator());
+        for (Map.Entry<String, Comparator<StockAnalyser.Stock>> entry : comparators.entrySet()) {
+            Comparator<StockAnalyser.Stock> comparator = entry.getValue();
+            String suffix = "[" + entry.getKey() + "]";
+            bench.measure("bubbleSort" + suffix + "[n=" + small.length + "]", 1, i -> {
+                System.arraycopy(small, 0, smallWork, 0, small.length);
+                analyser.bubbleSort(smallWork, comparator);
+                return smallWork[0];
+            });
+            bench.measure("selectionSort" + suffix + "[n=" + small.length + "]", 1, i -> {
+                System.arraycopy(small, 0, smallWork, 0, small.length);
+                analyser.selectionSort(smallWork, comparator);
+                return smallWork[0];
+            });
+            bench.measure("quickSort" + suffix, 1, i -> {
+                System.arraycopy(shuffled, 0, work, 0, shuffled.length);
+                analyser.quickSort(work, comparator);
+                return work[0];
+            });
+            bench.measure("mergeSort" + suffix, 1, i -> {
+                System.arraycopy(shuffled, 0, work, 0, shuffled.length);
+                analyser.mergeSort(work, comparator);
+                return work[0];
+            });
+            bench.measure("SortEngine.parallelMergeSort" + suffix, 1, i -> {
+                System.arraycopy(shuffled, 0, work, 0, shuffled.length);
+                StockAnalyser.SortEngine.parallelMergeSort(work, comparator);
+                return work[0];
+            });
+            bench.measure("SortEngine.radixSort" + suffix, 1, i -> {
+                System.arraycopy(shuffled, 0, work, 0, shuffled.length);
+                StockAnalyser.SortEngine.radixSort(work, comparator);
+                return work[0];
+            });
+            StockAnalyser.Stock[] presorted = shuffled.clone();
+            StockAnalyser.SortEngine.sort(presorted, comparator);
+            bench.measure("quickSort[presorted]" + suffix, 1, i -> {
+                System.arraycopy(presorted, 0, work, 0, presorted.length);
+                analyser.quickSort(work, comparator);
+                return work[0];
+            });
+            bench.measure("topK[5]" + suffix, 1, i -> StockAnalyser.topK(stocks, 5, comparator).get(0));
+        }
+
+        Map<String, java.util.function.Supplier<StockAnalyser.OrderedIndex>> indexes = new java.util.LinkedHashMap<>();
+        indexes.put("LLRB", () -> new StockAnalyser.LlrbIndex(new StockAnalyser()));
+        indexes.put("B+tree", StockAnalyser.BPlusTreeIndex::new);
+        for (Map.Entry<String, java.util.function.Supplier<StockAnalyser.OrderedIndex>> entry : indexes.entrySet()) {
+            String suffix = "[" + entry.getKey() + "]";
+            bench.measure("index.bulkLoad" + suffix, 1, i -> {
+                StockAnalyser.OrderedIndex index = entry.getValue().get();
+                index.bulkLoad(stocks);
+                return index.size();
+            });
+            StockAnalyser.OrderedIndex index = entry.getValue().get();
+            index.bulkLoad(stocks);
+            bench.measure("index.get" + suffix, 10_000, i -> {
+                StockAnalyser.Stock stock = stocks.get(picks[i & (picks.length - 1)]);
+                return index.get(stock.name, stock.date);
+            });
+            bench.measure("index.range[whole symbol]" + suffix, 1_000, i -> {
+                long[] volume = new long[1];
+                index.range(stocks.get(picks[i & (picks.length - 1)]).name, null, null, stock -> volume[0] += stock.volume);
+                return volume[0];
+            });
+        }
+
+        StockAnalyser.ColumnarStore columnar = StockAnalyser.ColumnarStore.from(analyser);
+        StockAnalyser.CompressedStore compressed = StockAnalyser.CompressedStore.from(analyser);
+        String[] layouts = { "columnar", "compressed" };
+        StockStore[] layoutStores = { columnar, compressed };
+        long[] layoutBytes = { columnar.estimatedBytes(), compressed.estimatedBytes() };
+        List<String> symbolNames = stocks.stream().map(stock -> stock.name).distinct().collect(java.util.stream.Collectors.toList());
+        for (int l = 0; l < layouts.length; l++) {
+            StockStore store = layoutStores[l];
+            String suffix = "[" + layouts[l] + "]";
+            bench.measure("search" + suffix, 10_000, i -> {
+                StockAnalyser.Stock stock = stocks.get(picks[i & (picks.length - 1)]);
+                return store.search(stock.name, stock.date);
+            });
+            bench.measure("calculateSMA[20]" + suffix, 10_000, i -> {
+                StockAnalyser.Stock stock = stocks.get(picks[i & (picks.length - 1)]);
+                return store.calculateSMA(stock.name, stock.date, 20);
+            });
+            bench.measure("getAverageVolume[whole symbol]" + suffix, 10_000, i ->
+                    store.getAverageVolume(stocks.get(picks[i & (picks.length - 1)]).name, StockAnalyser.MIN_DATE, StockAnalyser.MAX_DATE));
+            double scan = bench.measure("getStockStats[every symbol]" + suffix, 1, i -> {
+                long volume = 0;
+                for (String symbol : symbolNames) volume += store.getStockStats(symbol).totalVolume;
+                return volume;
+            });
+            double decode = bench.measure("forEachStock" + suffix, 1, i -> {
+                long[] volume = new long[1];
+                store.forEachStock(stock -> volume[0] += stock.volume);
+                return volume[0];
+            });
+            System.out.printf("%s: %.1f bytes/bar, stats scan %.1f M bars/s, full decode %.1f M bars/s%n", layouts[l],
+                    layoutBytes[l] / (double) stocks.size(), stocks.size() / scan * 1e3, stocks.size() / decode * 1e3);
+        }
+
+        if (resultsFile != null) {
+            bench.writeResults(resultsFile);
+            System.out.println("Results written to " + resultsFile);
+        }
+    }
+
+    /**
+     * Measures the time from appending a row to a followed CSV file to the row being found by
+     * search. A writer appends one row at a time, in two writes so the follower also meets
+     * partial lines, and waits until the row is queryable before appending the next. A random
+     * pause before each append keeps the writer from falling into step with the polls.
+     * @param rows The number of rows to append
+     * @param pollMillis The poll interval of the follower in milliseconds
+     * @return The append-to-queryable latencies in nanoseconds
+     * @throws Exception if the file cannot be written or a row is not seen within 10 seconds
+     */
+    public static StockAnalyser.LatencyHistogram followLag(int rows, long pollMillis) throws Exception {
+        java.io.File csv = java.io.File.createTempFile("stocks-follow", ".csv");
+        csv.deleteOnExit();
+        java.nio.file.Files.write(csv.toPath(), "date,open,high,low,close,volume,Name\n".getBytes(StandardCharsets.UTF_8));
+        StockAnalyser.ConcurrentStore store = new StockAnalyser.ConcurrentStore(new StockAnalyser());
+        StockAnalyser.LatencyHistogram latencies = new StockAnalyser.LatencyHistogram();
+
+        try (StockAnalyser.CsvFollower follower = new StockAnalyser.CsvFollower(store, csv.getPath(), pollMillis);
+             java.io.FileOutputStream out = new java.io.FileOutputStream(csv, true)) {
+            follower.start();
+            StringBuilder row = new StringBuilder();
+            java.util.Random random = new java.util.Random(42);
+            int day = StockAnalyser.epochDay(2013, 2, 8);
+            for (int i = 0; i < rows; i++, day++) {
+                Thread.sleep(random.nextInt((int) Math.max(1, pollMillis)));
+                row.setLength(0);
+                StockAnalyser.appendDate(row, day).append(",10.0,11.0,9.0,10.5,").append(1000 + i).append(",LAG\n");
+                byte[] bytes = row.toString().getBytes(StandardCharsets.UTF_8);
+                out.write(bytes, 0, bytes.length / 2);
+                Thread.sleep(1);
+                out.write(bytes, bytes.length / 2, bytes.length - bytes.length / 2);
+                long appended = System.nanoTime();
+
+                Date date = StockAnalyser.toDate(day);
+                while (store.search("LAG", date) == null) {
+                    if (System.nanoTime() - appended > 10_000_000_000L) throw new IllegalStateException("Row " + i + " was not seen: " + follower);
+                    java.util.concurrent.locks.LockSupport.parkNanos(100_000);
+                }
+                latencies.record(System.nanoTime() - appended);
+            }
+            if (store.size() != rows) throw new IllegalStateException("Expected " + rows + " rows but found " + store.size());
+            System.out.printf("Follow lag over %d rows polling every %d ms: p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms%n", rows, pollMillis,
+                    latencies.percentile(50) / 1e6, latencies.percentile(90) / 1e6, latencies.percentile(99) / 1e6, latencies.max() / 1e6);
+            System.out.println("Follower: " + follower);
+        }
+        return latencies;
+    }
+
+    /**
+     * Runs reader threads against a ConcurrentStore while one writer inserts new bars, for each
+     * reader count from 1 up to the given maximum, and checks the results.
+     * Every inserted bar must be found afterwards (no lost inserts) and every compound read must
+     * be consistent: a bar is either fully present or absent, and the aggregate count of a symbol
+     * matches its range scan (no torn reads).
+     * @param maxReaders The largest number of reader threads
+     * @param millis How long each round runs, in milliseconds
+     * @return true if no round found an error, false otherwise
+     * @throws Exception if a thread fails
+     */
+    public static boolean stress(int maxReaders, long millis) throws Exception {
+        boolean ok = true;
+        for (int readers = 1; readers <= maxReaders; readers *= 2) {
+            ok &= stressRound(readers, millis);
+            if (readers < maxReaders && readers * 2 > maxReaders) readers = maxReaders / 2;
+        }
+        return ok;
+    }
+
+    /**
+     * Runs one round of the stress test.
+     * @param readers The number of reader threads
+     * @param millis How long the round runs, in milliseconds
+     * @return true if no error was found, false otherwise
+     * @throws Exception if a thread fails
+     */
+    private static boolean stressRound(int readers, long millis) throws Exception {
+        int symbols = 64;
+        StockAnalyser.ConcurrentStore store = new StockAnalyser.ConcurrentStore(new StockAnalyser());
+        java.util.concurrent.atomic.AtomicBoolean running = new java.util.concurrent.atomic.AtomicBoolean(true);
+        java.util.concurrent.atomic.AtomicLong reads = new java.util.concurrent.atomic.AtomicLong();
+        java.util.concurrent.atomic.AtomicLong errors = new java.util.concurrent.atomic.AtomicLong();
+        java.util.concurrent.atomic.AtomicInteger written = new java.util.concurrent.atomic.AtomicInteger();
+        int firstDay = StockAnalyser.epochDay(2000, 1, 3);
+
+        // Bar n is symbol n % symbols on day firstDay + n / symbols, and every price equals n
+        Thread writer = new Thread(() -> {
+            for (int n = 0; running.get(); n++) {
+                store.insert(new StockAnalyser.Stock(String.format("S%03d", n % symbols), n, StockAnalyser.toDate(firstDay + n / symbols), n, n, n, n, n, n));
+                written.set(n + 1);
+            }
+        });
+        List<Thread> threads = new ArrayList<>();
+        for (int r = 0; r < readers; r++) {
+            long seed = r;
+            threads.add(new Thread(() -> {
+                java.util.Random random = new java.util.Random(seed);
+                while (running.get()) {
+                    int n = random.nextInt(Math.max(1, written.get()));
+                    String symbol = String.format("S%03d", n % symbols);
+                    StockAnalyser.Stock stock = store.search(symbol, StockAnalyser.toDate(firstDay + n / symbols));
+                    if (stock == null && n < written.get() || stock != null && (stock.open != n || stock.volume != n)) errors.incrementAndGet();
+                    boolean consistent = store.read(a -> a.getStockStats(symbol).count == a.range(symbol, null, null).size());
+                    if (!consistent) errors.incrementAndGet();
+                    reads.addAndGet(2);
+                }
+            }));
+        }
+
+        long startTime = System.nanoTime();
+        writer.start();
+        for (Thread thread : threads) thread.start();
+        Thread.sleep(millis);
+        running.set(false);
+        writer.join();
+        for (Thread thread : threads) thread.join();
+        double seconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+
+        int total = written.get();
+        long lost = 0;
+        for (int n = 0; n < total; n++)
+            if (store.search(String.format("S%03d", n % symbols), StockAnalyser.toDate(firstDay + n / symbols)) == null) lost++;
+        if (store.size() != total) lost += Math.abs(total - store.size());
+
+        System.out.printf("%2d readers: %,12.0f reads/sec, %,10.0f inserts/sec, %d lost inserts, %d torn reads%n",
+                readers, reads.get() / seconds, total / seconds, lost, errors.get());
+        return lost == 0 && errors.get() == 0;
+    }
+
+    /**
+     * Runs the randomized self-tests, each of which checks the tree against a brute-force model.
+     * @param seed The random seed
+     * @return true if every check passed, false otherwise
+     */
+    public static boolean selfTest(long seed) {
+        boolean ok = checkRangeStats(seed, 5_000);
+        ok &= checkTreeOperations(seed, 40, 200);
+        ok &= checkPersistentTree(seed, 2_000);
+        return ok;
+    }
+
+    /**
+     * Checks insert, upsert, delete and bulkLoad against a brute-force model, running validate
+     * after every operation. Each bulk load is sorted, made of a few sorted runs, overlapping the
+     * bars already loaded (with duplicates inside the batch too) or shuffled, and new symbols
+     * that sort before the existing ones force the keys to be renumbered.
+     * @param seed The random seed
+     * @param trees The number of trees to build, each starting empty
+     * @param operations The number of operations per tree
+     * @return true if every tree matched its model and stayed valid, false otherwise
+     */
+    static boolean checkTreeOperations(long seed, int trees, int operations) {
+        java.util.Random random = new java.util.Random(seed);
+        int firstDay = StockAnalyser.epochDay(2000, 1, 3);
+        String[] kinds = { "sorted", "runs", "overlapping", "shuffled" };
+        int checks = 0, mismatches = 0;
+
+        for (int t = 0; t < trees; t++) {
+            StockAnalyser tree = new StockAnalyser();
+            Map<String, TreeMap<Integer, StockAnalyser.Stock>> model = new TreeMap<>();
+            for (int op = 0; op < operations; op++) {
+                String action;
+                String error = null;
+                int choice = op == 0 ? 9 : random.nextInt(10);
+                String symbol = randomSymbol(random);
+                int day = random.nextInt(300);
+                TreeMap<Integer, StockAnalyser.Stock> bars = model.computeIfAbsent(symbol, name -> new TreeMap<>());
+                if (choice < 3) {
+                    action = "insert";
+                    StockAnalyser.Stock stock = randomStock(random, symbol, firstDay + day);
+                    tree.insert(stock);
+                    bars.putIfAbsent(day, stock);
+                } else if (choice < 5) {
+                    action = "upsert";
+                    StockAnalyser.Stock stock = randomStock(random, symbol, firstDay + day);
+                    if (tree.upsert(stock) != bars.put(day, stock)) error = "upsert returned the wrong previous stock";
+                } else if (choice < 7) {
+                    action = "delete";
+                    if (tree.delete(symbol, StockAnalyser.toDate(firstDay + day)) != bars.remove(day)) error = "delete returned the wrong stock";
+                } else {
+                    String kind = kinds[random.nextInt(kinds.length)];
+                    action = "bulkLoad[" + kind + "]";
+                    List<StockAnalyser.Stock> batch = new ArrayList<>();
+                    int n = 1 + random.nextInt(300);
+                    for (int i = 0; i < n; i++) batch.add(randomStock(random, randomSymbol(random), firstDay + random.nextInt(300)));
+                    if (kind.equals("overlapping")) {
+                        List<StockAnalyser.Stock> loaded = tree.getAllStocks();
+                        for (int i = 0; i < n / 2 && !loaded.isEmpty(); i++) {
+                            StockAnalyser.Stock old = loaded.get(random.nextInt(loaded.size()));
+                            batch.add(randomStock(random, old.name, StockAnalyser.toEpochDay(old.date)));
+                        }
+                        for (int i = 0; i < n / 4; i++) {
+                            StockAnalyser.Stock copy = batch.get(random.nextInt(batch.size()));
+                            batch.add(randomStock(random, copy.name, StockAnalyser.toEpochDay(copy.date)));
+                        }
+                    }
+                    Comparator<StockAnalyser.Stock> order = Comparator.comparing((StockAnalyser.Stock stock) -> stock.name).thenComparing(stock -> stock.date);
+                    if (kind.equals("shuffled")) {
+                        java.util.Collections.shuffle(batch, random);
+                    } else if (kind.equals("runs")) {
+                        for (int from = 0; from < batch.size(); ) {
+                            int to = Math.min(batch.size(), from + 1 + random.nextInt(100));
+                            batch.subList(from, to).sort(order);
+                            from = to;
+                        }
+                    } else {
+                        batch.sort(order);
+                    }
+                    tree.bulkLoad(batch);
+                    for (StockAnalyser.Stock stock : batch)
+                        model.computeIfAbsent(stock.name, name -> new TreeMap<>()).putIfAbsent(StockAnalyser.toEpochDay(stock.date) - firstDay, stock);
+                }
+
+                checks++;
+                try {
+                    if (error == null) tree.validate();
+                } catch (IllegalStateException e) {
+                    error = e.getMessage();
+                }
+                List<StockAnalyser.Stock> expected = new ArrayList<>();
+                for (TreeMap<Integer, StockAnalyser.Stock> symbolBars : model.values()) expected.addAll(symbolBars.values());
+                List<StockAnalyser.Stock> actual = tree.getAllStocks();
+                if (error == null && (actual.size() != expected.size() || tree.size() != expected.size())) {
+                    error = "size " + tree.size() + ", expected " + expected.size();
+                }
+                for (int i = 0; error == null && i < actual.size(); i++)
+                    if (actual.get(i) != expected.get(i)) error = "stock " + i + " differs";
+                for (int i = 0; error == null && i < 10; i++) {
+                    String querySymbol = randomSymbol(random);
+                    int queryDay = random.nextInt(300);
+                    TreeMap<Integer, StockAnalyser.Stock> symbolBars = model.get(querySymbol);
+                    if (tree.search(querySymbol, StockAnalyser.toDate(firstDay + queryDay)) != (symbolBars == null ? null : symbolBars.get(queryDay)))
+                        error = "search(" + querySymbol + ", day " + queryDay + ") differs";
+                }
+                if (error != null) {
+                    if (mismatches++ < 10) System.out.printf("Tree %d, operation %d (%s): %s%n", t, op + 1, action, error);
+                    break;
+                }
+            }
+        }
+        System.out.printf("Tree operations: %d operations validated on %d trees, %d mismatches%n", checks, trees, mismatches);
+        return mismatches == 0;
+    }
+
+    /**
+     * Checks that persistent tree snapshots never change. Bars are inserted at random while every
+     * tenth snapshot is kept along with a copy of its expected contents; each kept snapshot and
+     * its asOf lookup are compared again after all the later inserts. The snapshots that were not
+     * kept must be garbage collected and their version entries dropped.
+     * @param seed The random seed
+     * @param operations The number of inserts
+     * @return true if every kept snapshot was unchanged and the released versions were reclaimed
+     */
+    static boolean checkPersistentTree(long seed, int operations) {
+        java.util.Random random = new java.util.Random(seed);
+        int firstDay = StockAnalyser.epochDay(2000, 1, 3);
+        StockAnalyser.PersistentTree tree = new StockAnalyser.PersistentTree();
+        Map<String, TreeMap<Integer, StockAnalyser.Stock>> model = new TreeMap<>();
+        List<StockAnalyser.PersistentTree.Snapshot> kept = new ArrayList<>();
+        List<List<StockAnalyser.Stock>> keptContents = new ArrayList<>();
+        int checks = 0, mismatches = 0;
+
+        for (int op = 0; op < operations; op++) {
+            String symbol = randomSymbol(random);
+            int day = random.nextInt(300);
+            StockAnalyser.Stock stock = randomStock(random, symbol, firstDay + day);
+            StockAnalyser.PersistentTree.Snapshot previous = tree.snapshot();
+            StockAnalyser.PersistentTree.Snapshot snapshot = tree.insert(stock);
+            boolean added = model.computeIfAbsent(symbol, name -> new TreeMap<>()).putIfAbsent(day, stock) == null;
+            if (added ? snapshot.version() != previous.version() + 1 : snapshot != previous) {
+                if (mismatches++ < 10) System.out.printf("Insert %d: wrong snapshot returned%n", op + 1);
+            }
+            if (op % 10 == 0) {
+                List<StockAnalyser.Stock> expected = new ArrayList<>();
+                for (TreeMap<Integer, StockAnalyser.Stock> bars : model.values()) expected.addAll(bars.values());
+                kept.add(snapshot);
+                keptContents.add(expected);
+            }
+            if (op % 100 == 99) {
+                for (int i = 0; i < kept.size(); i++) {
+                    StockAnalyser.PersistentTree.Snapshot old = kept.get(i);
+                    List<StockAnalyser.Stock> expected = keptContents.get(i);
+                    List<StockAnalyser.Stock> actual = old.getAllStocks();
+                    String error = null;
+                    if (old.size() != expected.size() || actual.size() != expected.size()) {
+                        error = "size " + old.size() + " with " + actual.size() + " stocks, expected " + expected.size();
+                    }
+                    for (int j = 0; error == null && j < actual.size(); j++)
+                        if (actual.get(j) != expected.get(j)) error = "stock " + j + " differs";
+                    if (error == null && tree.asOf(old.version()) != old) error = "asOf returned another snapshot";
+                    checks++;
+                    if (error != null && mismatches++ < 10)
+                        System.out.printf("Snapshot %d after %d inserts: %s%n", old.version(), op + 1, error);
+                }
+            }
+        }
+
+        java.util.Set<Long> keptVersions = new java.util.HashSet<>();
+        for (StockAnalyser.PersistentTree.Snapshot snapshot : kept) keptVersions.add(snapshot.version());
+        keptVersions.add(tree.snapshot().version());
+        long latest = tree.snapshot().version();
+        int leaked = -1;
+        for (int attempt = 0; attempt < 20 && leaked != 0; attempt++) {
+            System.gc();
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            tree.insert(randomStock(random, "Z" + attempt, firstDay));
+            keptVersions.add(tree.snapshot().version());
+            leaked = 0;
+            for (long version = 1; version <= latest; version++)
+                if (!keptVersions.contains(version) && (tree.asOf(version) != null || tree.hasVersionEntry(version))) leaked++;
+        }
+        if (leaked != 0) {
+            mismatches++;
+            System.out.printf("%d released versions were not reclaimed%n", leaked);
+        }
+        System.out.printf("Persistent tree: %d snapshot checks over %d inserts, %d kept versions, %d mismatches%n",
+                checks, operations, kept.size(), mismatches);
+        return mismatches == 0;
+    }
+
+    /**
+     * Picks a symbol for the tree checks. The A symbols sort before the S ones, so the first use
+     * of one renumbers the keys of every symbol after it.
+     * @param random The random source
+     * @return The symbol
+     */
+    private static String randomSymbol(java.util.Random random) {
+        return random.nextInt(4) == 0 ? "A" + random.nextInt(10) : "S" + random.nextInt(6);
+    }
+
+    /**
+     * Creates a bar with random prices and volume.
+     * @param random The random source
+     * @param symbol The stock symbol
+     * @param day The epoch day
+     * @return The stock
+     */
+    private static StockAnalyser.Stock randomStock(java.util.Random random, String symbol, int day) {
+        double close = random.nextInt(10_000) / 100.0;
+        return new StockAnalyser.Stock(symbol, close, StockAnalyser.toDate(day), random.nextInt(10_000) / 100.0, random.nextInt(10_000) / 100.0,
+                random.nextInt(10_000) / 100.0, close, close, random.nextInt(1_000_000));
+    }
+
+    /**
+     * Checks the subtree aggregates behind rangeStats against a brute-force scan. Bars are
+     * inserted and deleted at random on a few symbols, which exercises the aggregate updates in
+     * every rotation and color flip. After each change, random date windows are compared on their
+     * count, total volume, minimum open, minimum low and maximum high.
+     * @param seed The random seed
+     * @param operations The number of inserts and deletes
+     * @return true if every window matched, false otherwise
+     */
+    static boolean checkRangeStats(long seed, int operations) {
+        java.util.Random random = new java.util.Random(seed);
+        StockAnalyser tree = new StockAnalyser();
+        Map<String, TreeMap<Integer, StockAnalyser.Stock>> model = new TreeMap<>();
+        int firstDay = StockAnalyser.epochDay(2000, 1, 3);
+        int windows = 0, mismatches = 0;
+
+        for (int op = 0; op < operations; op++) {
+            String symbol = "S" + random.nextInt(4);
+            int day = random.nextInt(400);
+            TreeMap<Integer, StockAnalyser.Stock> bars = model.computeIfAbsent(symbol, name -> new TreeMap<>());
+            if (random.nextInt(10) < 7) {
+                StockAnalyser.Stock stock = new StockAnalyser.Stock(symbol, 0, StockAnalyser.toDate(firstDay + day), random.nextInt(10_000) / 100.0,
+                        random.nextInt(10_000) / 100.0, random.nextInt(10_000) / 100.0, 0, 0, random.nextInt(1_000_000));
+                tree.insert(stock);
+                bars.putIfAbsent(day, stock);
+            } else if (tree.delete(symbol, StockAnalyser.toDate(firstDay + day)) != bars.remove(day)) {
+                mismatches++;
+                System.out.printf("delete(%s, day %d) returned a different stock than expected%n", symbol, day);
+            }
+
+            for (int w = 0; w < 3; w++) {
+                String querySymbol = "S" + random.nextInt(5);
+                int from = random.nextInt(420) - 10;
+                int to = from + random.nextInt(200);
+                boolean open = random.nextInt(8) == 0;
+                StockAnalyser.StockStats expected = new StockAnalyser.StockStats();
+                for (Map.Entry<Integer, StockAnalyser.Stock> entry : model.getOrDefault(querySymbol, new TreeMap<>()).entrySet()) {
+                    StockAnalyser.Stock stock = entry.getValue();
+                    if (open || entry.getKey() >= from && entry.getKey() <= to) expected.add(stock.open, stock.high, stock.low, stock.volume);
+                }
+                StockAnalyser.StockStats actual = open ? tree.rangeStats(querySymbol, null, null)
+                        : tree.rangeStats(querySymbol, StockAnalyser.toDate(firstDay + from), StockAnalyser.toDate(firstDay + to));
+                windows++;
+                if (actual.count != expected.count || actual.totalVolume != expected.totalVolume || actual.minOpen != expected.minOpen
+                        || actual.minLow != expected.minLow || actual.maxHigh != expected.maxHigh) {
+                    if (mismatches++ < 10)
+                        System.out.printf("rangeStats(%s, day %d to %d) after %d operations: count %d, expected %d%n",
+                                querySymbol, from, to, op + 1, actual.count, expected.count);
+                }
+            }
+        }
+        System.out.printf("Range stats: %d windows over %d inserts and deletes, %d mismatches%n", windows, operations, mismatches);
+        return mismatches == 0;
+    }
+
+    /**
+     * Builds a mix of QueryServer request paths from the stocks of a store.
+     * @param store The store the server answers from
+     * @param count The number of paths
+     * @param seed The random seed
+     * @return The request paths
+     */
+    public static List<String> requestPaths(StockStore store, int count, long seed) {
+        List<StockAnalyser.Stock> stocks = store.getAllStocks();
+        java.util.Random random = new java.util.Random(seed);
+        List<String> paths = new ArrayList<>(count);
+        for (int i = 0; i < count && !stocks.isEmpty(); i++) {
+            StockAnalyser.Stock stock = stocks.get(random.nextInt(stocks.size()));
+            String date = StockAnalyser.appendDate(new StringBuilder(), StockAnalyser.toEpochDay(stock.date)).toString();
+            switch (i % 7) {
+                case 0: paths.add("/search?symbol=" + stock.name + "&date=" + date); break;
+                case 1: paths.add("/sma?symbol=" + stock.name + "&date=" + date + "&period=20"); break;
+                case 2: paths.add("/trend?symbol=" + stock.name + "&date=" + date); break;
+                case 3: paths.add("/avgvol?symbol=" + stock.name + "&from=1900-01-01&to=" + date); break;
+                case 4: paths.add("/stats?symbol=" + stock.name); break;
+                case 5: paths.add("/topk-volume?date=" + date + "&k=5"); break;
+                default: paths.add("/topk-open?date=" + date + "&k=5"); break;
+            }
+        }
+        return paths;
+    }
+
+    /*
+     * Class: LoadConnection
+     * Description: This class is used to hold the state of one load-test connection: the bytes of
+     *              the requests it still has to send and the responses it has received so far.
+     * Author: Demetrius Chatterjee
+     * Github ID: DemetriusChatterjee
+     * Version: 1.0
+     */
+    private static class LoadConnection {
+        final java.nio.channels.SocketChannel channel;
+        ByteBuffer out;
+        byte[] in = new byte[1 << 14];
+        int inLength;
+        int awaiting;
+        boolean connected;
+        long sentAt;
+
+        LoadConnection(java.nio.channels.SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Drives an HTTP server from many keep-alive connections on one selector thread and prints
+     * the latency percentiles. Each connection sends a burst of pipelined requests, waits for all
+     * of their responses, and repeats until the time is up. A request's latency runs from when its
+     * burst was written to when its response was complete. Only requests answered after every
+     * connection is open are counted.
+     * @param host The server host
+     * @param port The server port
+     * @param paths The request paths to pick from
+     * @param connections The number of concurrent connections
+     * @param seconds How long to send requests once connected, in seconds
+     * @param depth The number of requests pipelined on a connection at a time
+     * @return The latency histogram of the successful requests
+     * @throws IOException if the selector cannot be opened
+     */
+    public static StockAnalyser.LatencyHistogram loadTest(String host, int port, List<String> paths, int connections, int seconds, int depth) throws IOException {
+        java.net.InetSocketAddress address = new java.net.InetSocketAddress(host, port);
+        java.nio.channels.Selector selector = java.nio.channels.Selector.open();
+        java.util.Random random = new java.util.Random(7);
+        StockAnalyser.LatencyHistogram latencies = new StockAnalyser.LatencyHistogram();
+        long errors = 0, failedConnects = 0, requests = 0;
+        int opened = 0, connecting = 0, connected = 0, open = 0;
+
+        long startTime = System.nanoTime();
+        long connectedAt = 0, deadline = Long.MAX_VALUE;
+        try {
+            while (true) {
+                // Open connections a few hundred at a time so the listen backlog does not overflow
+                while (opened < connections && connecting < 256) {
+                    java.nio.channels.SocketChannel channel = java.nio.channels.SocketChannel.open();
+                    channel.configureBlocking(false);
+                    channel.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+                    LoadConnection connection = new LoadConnection(channel);
+                    if (channel.connect(address)) {
+                        connection.connected = true;
+                        connected++;
+                        send(connection, paths, random, depth, host);
+                        channel.register(selector, java.nio.channels.SelectionKey.OP_WRITE, connection);
+                    } else {
+                        connecting++;
+                        channel.register(selector, java.nio.channels.SelectionKey.OP_CONNECT, connection);
+                    }
+                    opened++;
+                    open++;
+                }
+                if (connectedAt == 0 && opened == connections && connecting == 0) {
+                    connectedAt = System.nanoTime();
+                    deadline = connectedAt + seconds * 1_000_000_000L;
+                    System.out.printf("Connected %d of %d connections in %.3f milliseconds%n",
+                            connected, connections, (connectedAt - startTime) / 1_000_000.0);
+                }
+                if (open == 0) break;
+                if (deadline != Long.MAX_VALUE && System.nanoTime() > deadline + 10_000_000_000L) break;
+
+                selector.select(100);
+                for (java.nio.channels.SelectionKey key : selector.selectedKeys()) {
+                    LoadConnection connection = (LoadConnection) key.attachment();
+                    try {
+                        if (key.isConnectable()) {
+                            connecting--;
+                            connection.channel.finishConnect();
+                            connection.connected = true;
+                            connected++;
+                            send(connection, paths, random, depth, host);
+                            key.interestOps(java.nio.channels.SelectionKey.OP_WRITE);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.channel.write(connection.out);
+                            if (!connection.out.hasRemaining()) key.interestOps(java.nio.channels.SelectionKey.OP_READ);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            if (connection.inLength == connection.in.length) connection.in = java.util.Arrays.copyOf(connection.in, connection.in.length * 2);
+                            int n = connection.channel.read(ByteBuffer.wrap(connection.in, connection.inLength, connection.in.length - connection.inLength));
+                            if (n < 0) throw new IOException("Connection closed by server");
+                            connection.inLength += n;
+
+                            int status;
+                            while ((status = nextResponse(connection)) != 0) {
+                                connection.awaiting--;
+                                if (connectedAt == 0) continue;
+                                requests++;
+                                if (status == 200) latencies.record(System.nanoTime() - connection.sentAt);
+                                else errors++;
+                            }
+                            if (connection.awaiting == 0) {
+                                if (System.nanoTime() < deadline) {
+                                    send(connection, paths, random, depth, host);
+                                    key.interestOps(java.nio.channels.SelectionKey.OP_WRITE);
+                                } else {
+                                    key.cancel();
+                                    connection.channel.close();
+                                    open--;
+                                }
+                            }
+                        }
+                    } catch (IOException e) {
+                        if (connection.connected) errors++;
+                        else failedConnects++;
+                        key.cancel();
+                        connection.channel.close();
+                        open--;
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } finally {
+            for (java.nio.channels.SelectionKey key : selector.keys()) key.channel().close();
+            selector.close();
+        }
+
+        double elapsed = (System.nanoTime() - (connectedAt != 0 ? connectedAt : startTime)) / 1_000_000_000.0;
+        System.out.printf("%d connections, pipeline depth %d: %d requests in %.1f seconds, %.0f requests/sec, %d errors, %d failed connects%n",
+                connections, depth, requests, elapsed, requests / elapsed, errors, failedConnects);
+        System.out.printf("Latency: p50=%.3fms p99=%.3fms max=%.3fms%n",
+                latencies.percentile(50) / 1_000_000.0, latencies.percentile(99) / 1_000_000.0, latencies.max() / 1_000_000.0);
+        return latencies;
+    }
+
+    /**
+     * Prepares the next burst of pipelined requests on a connection.
+     * @param connection The connection
+     * @param paths The request paths to pick from
+     * @param random The random source
+     * @param depth The number of requests in the burst
+     * @param host The value of the Host header
+     */
+    private static void send(LoadConnection connection, List<String> paths, java.util.Random random, int depth, String host) {
+        StringBuilder sb = new StringBuilder(depth * 128);
+        for (int i = 0; i < depth; i++) {
+            sb.append("GET ").append(paths.get(random.nextInt(paths.size()))).append(" HTTP/1.1\r\nHost: ").append(host).append("\r\n\r\n");
+        }
+        connection.out = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.US_ASCII));
+        connection.awaiting = depth;
+        connection.sentAt = System.nanoTime();
+    }
+
+    /**
+     * Removes the next complete response from a connection's input.
+     * @param connection The connection
+     * @return The status code of the response, or 0 if no complete response has arrived yet
+     * @throws IOException if the response has no Content-Length
+     */
+    private static int nextResponse(LoadConnection connection) throws IOException {
+        byte[] in = connection.in;
+        int headerEnd = -1;
+        for (int i = 3; i < connection.inLength; i++) {
+            if (in[i] == '\n' && in[i - 1] == '\r' && in[i - 2] == '\n' && in[i - 3] == '\r') {
+                headerEnd = i + 1;
+                break;
+            }
+        }
+        if (headerEnd < 0) return 0;
+
+        String header = new String(in, 0, headerEnd, StandardCharsets.US_ASCII);
+        int status = Integer.parseInt(header.substring(9, 12));
+        int lengthAt = header.toLowerCase().indexOf("content-length:");
+        if (lengthAt < 0) throw new IOException("Response without Content-Length");
+        int length = Integer.parseInt(header.substring(lengthAt + 15, header.indexOf('\r', lengthAt)).trim());
+        if (connection.inLength < headerEnd + length) return 0;
+
+        System.arraycopy(in, headerEnd + length, in, 0, connection.inLength - headerEnd - length);
+        connection.inLength -= headerEnd + length;
+        return status;
+    }
+
+    /*
+     * Class: PrintStreamSilencer
+     * Description: This class is used to discard the console output of methods that print while
+     *              they are being measured.
+     * Author: Demetrius Chatterjee
+     * Github ID: DemetriusChatterjee
+     * Version: 1.0
+     */
+    private static class PrintStreamSilencer {
+        private final java.io.PrintStream discard = new java.io.PrintStream(java.io.OutputStream.nullOutputStream());
+
+        /**
+         * Runs an action with System.out discarded.
+         * @param action The action
+         * @return The result of the action
+         * @throws Exception if the action fails
+         */
+        Object quietly(java.util.concurrent.Callable<Object> action) throws Exception {
+            java.io.PrintStream out = System.out;
+            System.setOut(discard);
+            try {
+                return action.call();
+            } finally {
+                System.setOut(out);
+            }
+        }
+    }
+
+    /**
+     * Runs a benchmark or self-test.
+     * @param args Command line arguments: --bench [symbols] [days] [results.csv], --bench-compare baseline.csv results.csv,
+     *             --stress [readers] [millis], --self-test [seed], --load-test file.csv [connections] [seconds] [depth] [port],
+     *             --follow-test [rows] [pollMillis] or --generate file symbols days [seed]
+     */
+    public static void main(String[] args) {
+        try {
+            if (args[0].equals("--bench")) {
+                runAll(args.length > 1 ? Integer.parseInt(args[1]) : 200, args.length > 2 ? Integer.parseInt(args[2]) : 1000,
+                        args.length > 3 ? args[3] : null);
+            } else if (args[0].equals("--bench-compare")) {
+                compare(args[1], args[2]);
+            } else if (args[0].equals("--stress")) {
+                boolean ok = stress(args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors(),
+                        args.length > 2 ? Long.parseLong(args[2]) : 2000);
+                System.out.println(ok ? "Stress test passed" : "Stress test FAILED");
+            } else if (args[0].equals("--self-test")) {
+                boolean ok = selfTest(args.length > 1 ? Long.parseLong(args[1]) : 42);
+                System.out.println(ok ? "Self-test passed" : "Self-test FAILED");
+                if (!ok) System.exit(1);
+            } else if (args[0].equals("--load-test")) {
+                StockAnalyser analyser = new StockAnalyser();
+                analyser.readCSV(args[1]);
+                int connections = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+                int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+                int depth = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+                StockAnalyser.QueryServer server = args.length > 5 ? null : StockAnalyser.QueryServer.start(analyser, "127.0.0.1", 0);
+                int port = server != null ? server.port() : Integer.parseInt(args[5]);
+                try {
+                    loadTest("127.0.0.1", port, requestPaths(analyser, 100_000, 1), connections, seconds, depth);
+                } finally {
+                    if (server != null) server.stop();
+                }
+            } else if (args[0].equals("--follow-test")) {
+                followLag(args.length > 1 ? Integer.parseInt(args[1]) : 500, args.length > 2 ? Long.parseLong(args[2]) : 10);
+            } else if (args[0].equals("--generate")) {
+                generate(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]), args.length > 4 ? Long.parseLong(args[4]) : 42);
+            } else {
+                System.out.println("Unknown option " + args[0] + ", expected --bench, --bench-compare, --stress, --self-test, --load-test, --follow-test or --generate");
+            }
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,129 @@
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+/*
+ * Interface: StockStore
+ * Description: This interface is implemented by every storage backend that can answer
+ *              the analyser's queries, so the menu can run against any of them.
+ * Author: Demetrius Chatterjee
+ * Github ID: DemetriusChatterjee
+ * Version: 1.0
+ */
+interface StockStore {
+    /**
+     * Searches for a stock by symbol and date.
+     * @param symbol The stock symbol to search for
+     * @param date The date to search for
+     * @return The found Stock object, or null if not found
+     */
+    StockAnalyser.Stock search(String symbol, Date date);
+
+    /**
+     * Returns a list of all stocks ordered by symbol and date.
+     * @return List of all stocks
+     */
+    List<StockAnalyser.Stock> getAllStocks();
+
+    /**
+     * Passes every stock to an action in symbol and date order.
+     * @param action The action to run for each stock
+     */
+    default void forEachStock(java.util.function.Consumer<StockAnalyser.Stock> action) {
+        getAllStocks().forEach(action);
+    }
+
+    /**
+     * Gets all stocks for a specific date.
+     * @param date The date to search for
+     * @return List of stocks on the given date
+     */
+    List<StockAnalyser.Stock> getStocksForDate(Date date);
+
+    /**
+     * Calculates the Simple Moving Average (SMA) of the closing price for a stock.
+     * @param symbol The stock symbol
+     * @param date The end date for calculation
+     * @param period The number of days to calculate SMA for
+     * @return The calculated SMA value, or 0 if there are fewer than period days
+     */
+    double calculateSMA(String symbol, Date date, int period);
+
+    /**
+     * Gets the average volume for a stock over a date range.
+     * @param symbol The stock symbol
+     * @param startDate The start date
+     * @param endDate The end date
+     * @return The average volume
+     */
+    double getAverageVolume(String symbol, Date startDate, Date endDate);
+
+    /**
+     * Gets the summary statistics for a stock symbol.
+     * @param symbol The stock symbol
+     * @return The statistics, with a count of 0 if the symbol is unknown
+     */
+    StockAnalyser.StockStats getStockStats(String symbol);
+
+    /**
+     * Selects the first k stocks on a date in comparator order, ties in symbol order.
+     * @param date The date
+     * @param k The number of stocks to select
+     * @param comparator The comparator to rank by, e.g. VolumeComparator for the highest volumes
+     * @return Up to k stocks in comparator order
+     */
+    default List<StockAnalyser.Stock> topKForDate(Date date, int k, Comparator<StockAnalyser.Stock> comparator) {
+        return StockAnalyser.topK(getStocksForDate(date), k, comparator);
+    }
+
+    /**
+     * Selects the first k stocks in comparator order, ties in symbol and date order, with a
+     * bounded heap fed by forEachStock.
+     * @param k The number of stocks to select
+     * @param comparator The comparator to rank by, e.g. VolumeComparator for the highest volumes
+     * @return Up to k stocks in comparator order
+     */
+    default List<StockAnalyser.Stock> topK(int k, Comparator<StockAnalyser.Stock> comparator) {
+        StockAnalyser.TopK topK = new StockAnalyser.TopK(k, comparator);
+        forEachStock(topK);
+        return topK.result();
+    }
+
+    /**
+     * Selects the first k stocks like topK, on all cores where the store can split its stocks.
+     * @param k The number of stocks to select
+     * @param comparator The comparator to rank by
+     * @return Up to k stocks in comparator order
+     */
+    default List<StockAnalyser.Stock> topKParallel(int k, Comparator<StockAnalyser.Stock> comparator) {
+        return topK(k, comparator);
+    }
+
+    /**
+     * Gets the price trend for a stock.
+     * @param symbol The stock symbol
+     * @param date The date to search for
+     * @return The price trend
+     */
+    default String getPriceTrend(String symbol, Date date) {
+        double shortSMA = calculateSMA(symbol, date, 5);
+        double longSMA = calculateSMA(symbol, date, 20);
+
+        if (shortSMA == 0 || longSMA == 0) return "Insufficient data";
+        return shortSMA > longSMA ? "Upward Trend" : "Downward Trend";
+    }
+
+    /**
+     * Displays the statistics for a stock symbol.
+     * @param symbol The stock symbol to display statistics for
+     */
+    default void displayStockStats(String symbol) {
+        StockAnalyser.StockStats stats = getStockStats(symbol);
+        if (stats.count > 0) {
+            System.out.printf("Statistics for %s: Minimum Price: $%.2f, Maximum Price: $%.2f, Average Volume: %d%n",
+                    symbol, stats.minOpen, stats.maxHigh, stats.totalVolume / stats.count);
+        } else {
+            System.out.println("No data found for symbol: " + symbol);
+        }
+    }
+}